@@ -0,0 +1,572 @@
+/*
+ * Copyright (C) 2017 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.jsync;
+
+import com.peyrona.jsync.config.Task;
+import com.peyrona.jsync.synchronizer.FullSyncBench;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Benchmarks for the hot paths of the synchronization: full scan (FullSync),
+ * Filter.accept(...), Utils.areEquals(...), Utils.getEquivalent(...) and
+ * copying (Copier) for every file size of the distribution.
+ * <p>
+ * A synthetic tree (of configurable shape) is generated under passed folder
+ * (use a tmpfs folder, e.g. /dev/shm, to measure CPU cost or a disk folder to
+ * measure I/O cost) and results are written as JSON, so they can be compared
+ * among releases.
+ * <p>
+ * Every benchmark is executed some times to warm-up the JVM (not measured) and
+ * then some more times (measured).
+ *
+ * @author peyrona
+ */
+public final class Bench
+{
+    private File   fWork    = new File( System.getProperty( "java.io.tmpdir" ), "jsync-bench" );
+    private File   fOut     = null;         // null == stdout
+    private int    nDepth   = 3;            // Levels of sub-folders
+    private int    nFanOut  = 4;            // Sub-folders per folder
+    private int    nFiles   = 20;           // Files per folder
+    private String sSizes   = "1k:70,64k:25,1m:5";
+    private int    nWarmup  = 2;
+    private int    nRuns    = 5;
+    private long   nSeed    = 1;
+
+    private final TreeMap<Long,Integer> mapSizes = new TreeMap<>();    // Size -> weight
+    private final List<String>          lstJson  = new ArrayList<>();  // Results
+
+    //----------------------------------------------------------------------------//
+
+    public static void main( String[] args ) throws Exception
+    {
+        Bench bench = new Bench();
+
+        for( int n = 0; n < args.length - 1; n += 2 )
+        {
+            switch( args[n].toLowerCase() )
+            {
+                case "--dir"    : bench.fWork   = new File( args[n+1] );            break;
+                case "--out"    : bench.fOut    = new File( args[n+1] );            break;
+                case "--depth"  : bench.nDepth  = Integer.parseInt( args[n+1] );    break;
+                case "--fanout" : bench.nFanOut = Integer.parseInt( args[n+1] );    break;
+                case "--files"  : bench.nFiles  = Integer.parseInt( args[n+1] );    break;
+                case "--sizes"  : bench.sSizes  = args[n+1];                        break;
+                case "--warmup" : bench.nWarmup = Integer.parseInt( args[n+1] );    break;
+                case "--runs"   : bench.nRuns   = Integer.parseInt( args[n+1] );    break;
+                case "--seed"   : bench.nSeed   = Long.parseLong( args[n+1] );      break;
+                default         : throw new IllegalArgumentException( "Unknown option: "+ args[n] );
+            }
+        }
+
+        bench.run();
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private void run() throws Exception
+    {
+        parseSizes();
+
+        File fOrigin = new File( fWork, "origin" );
+        File fDestin = new File( fWork, "destin" );
+        File fCopies = new File( fWork, "copies" );
+
+        deleteTree( fWork.toPath() );
+        fCopies.mkdirs();
+        fDestin.mkdirs();
+
+        Map<Long,List<File>> mapBySize = generate( fOrigin );
+        Task                 task      = createTask( fOrigin, fDestin );
+        Filter               filter    = new Filter( task );
+
+        benchFullSync( task, filter, fDestin );
+        benchFilter( filter, fOrigin );
+        benchCompare( fOrigin, fDestin );
+        benchEquivalent( fOrigin, fDestin );
+        benchCopy( mapBySize, fCopies );
+
+        writeResults();
+        deleteTree( fWork.toPath() );
+    }
+
+    //----------------------------------------------------------------------------//
+    // BENCHMARKS
+
+    private void benchFullSync( Task task, Filter filter, File fDestin ) throws IOException
+    {
+        FullSyncBench fsb = new FullSyncBench( task, filter, new File( fWork, "bench.index" ) );
+
+        measure( "fullsync.initial", "ms", () ->
+                 {
+                     deleteTree( fDestin.toPath() );
+                     fDestin.mkdirs();
+                     return fsb.sync( false ) / 1e6;
+                 } );
+
+        measure( "fullsync.unchanged", "ms", () -> fsb.sync( false ) / 1e6 );
+        measure( "fullsync.indexed"  , "ms", () -> fsb.sync( true  ) / 1e6 );
+    }
+
+    private void benchFilter( Filter filter, File fOrigin ) throws IOException
+    {
+        final List<Path>                lstPaths = new ArrayList<>();
+        final List<BasicFileAttributes> lstAttrs = new ArrayList<>();
+
+        Files.walkFileTree( fOrigin.toPath(), new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult preVisitDirectory( Path dir, BasicFileAttributes attrs )
+            {
+                lstPaths.add( dir );
+                lstAttrs.add( attrs );
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile( Path file, BasicFileAttributes attrs )
+            {
+                lstPaths.add( file );
+                lstAttrs.add( attrs );
+                return FileVisitResult.CONTINUE;
+            }
+        } );
+
+        final int nLoops = Math.max( 1, 1_000_000 / lstPaths.size() );
+
+        measure( "filter.accept.attrs", "ops/s", () ->
+                 {
+                     int  nAccepted = 0;
+                     long nStart    = System.nanoTime();
+
+                     for( int l = 0; l < nLoops; l++ )
+                     {
+                         for( int n = 0; n < lstPaths.size(); n++ )
+                         {
+                             nAccepted += filter.accept( lstPaths.get( n ), lstAttrs.get( n ) ) ? 1 : 0;
+                         }
+                     }
+
+                     return perSecond( (long) nLoops * lstPaths.size(), System.nanoTime() - nStart, nAccepted );
+                 } );
+
+        measure( "filter.accept.file", "ops/s", () ->
+                 {
+                     int  nAccepted = 0;
+                     long nStart    = System.nanoTime();
+
+                     for( Path path : lstPaths )
+                     {
+                         nAccepted += filter.accept( path.toFile() ) ? 1 : 0;
+                     }
+
+                     return perSecond( lstPaths.size(), System.nanoTime() - nStart, nAccepted );
+                 } );
+    }
+
+    private void benchCompare( File fOrigin, File fDestin ) throws IOException
+    {
+        final List<File>                lstFiles = listFiles( fOrigin );
+        final List<BasicFileAttributes> lstAttrs = new ArrayList<>();
+
+        for( File file : lstFiles )
+        {
+            lstAttrs.add( Files.readAttributes( file.toPath(), BasicFileAttributes.class ) );
+        }
+
+        measure( "compare.file", "ops/s", () ->
+                 {
+                     int  nEquals = 0;
+                     long nStart  = System.nanoTime();
+
+                     for( File file : lstFiles )
+                     {
+                         nEquals += Utils.areEquals( file, Utils.getEquivalent( fOrigin, fDestin, file ) ) ? 1 : 0;
+                     }
+
+                     return perSecond( lstFiles.size(), System.nanoTime() - nStart, nEquals );
+                 } );
+
+        measure( "compare.attrs", "ops/s", () ->
+                 {
+                     int  nEquals = 0;
+                     long nStart  = System.nanoTime();
+
+                     for( int n = 0; n < lstFiles.size(); n++ )
+                     {
+                         File file = lstFiles.get( n );
+
+                         nEquals += Utils.areEquals( file, lstAttrs.get( n ), Utils.getEquivalent( fOrigin, fDestin, file ), null ) ? 1 : 0;
+                     }
+
+                     return perSecond( lstFiles.size(), System.nanoTime() - nStart, nEquals );
+                 } );
+    }
+
+    private void benchEquivalent( File fOrigin, File fDestin ) throws IOException
+    {
+        final List<File> lstFiles = listFiles( fOrigin );
+        final int        nLoops   = Math.max( 1, 1_000_000 / Math.max( 1, lstFiles.size() ) );
+
+        measure( "utils.getEquivalent", "ops/s", () ->
+                 {
+                     int  nHash  = 0;
+                     long nStart = System.nanoTime();
+
+                     for( int l = 0; l < nLoops; l++ )
+                     {
+                         for( File file : lstFiles )
+                         {
+                             nHash += Utils.getEquivalent( fOrigin, fDestin, file ).getPath().length();
+                         }
+                     }
+
+                     return perSecond( (long) nLoops * lstFiles.size(), System.nanoTime() - nStart, nHash );
+                 } );
+    }
+
+    private void benchCopy( Map<Long,List<File>> mapBySize, File fCopies )
+    {
+        final Copier copier = new Copier( Copier.nDEFAULT_CHUNK, 0 );
+
+        for( Map.Entry<Long,List<File>> entry : mapBySize.entrySet() )
+        {
+            final List<File> lstFiles = entry.getValue();
+            final long       nBytes   = entry.getKey() * lstFiles.size();
+
+            measure( "copy.copier."+ toSize( entry.getKey() ), "MB/s", () ->
+                     {
+                         long nStart = System.nanoTime();
+
+                         for( int n = 0; n < lstFiles.size(); n++ )
+                         {
+                             copier.copy( lstFiles.get( n ), new File( fCopies, "c"+ n ) );
+                         }
+
+                         return (nBytes / (1024d * 1024d)) / ((System.nanoTime() - nStart) / 1e9);
+                     } );
+
+            measure( "copy.utils."+ toSize( entry.getKey() ), "MB/s", () ->
+                     {
+                         long nStart = System.nanoTime();
+
+                         for( int n = 0; n < lstFiles.size(); n++ )
+                         {
+                             Utils.copy( lstFiles.get( n ), new File( fCopies, "u"+ n ) );
+                         }
+
+                         return (nBytes / (1024d * 1024d)) / ((System.nanoTime() - nStart) / 1e9);
+                     } );
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // HARNESS
+
+    private void measure( String sName, String sUnit, Measurable bench )
+    {
+        List<Double> lstRuns = new ArrayList<>();
+
+        try
+        {
+            for( int n = 0; n < nWarmup; n++ )
+            {
+                bench.run();
+            }
+
+            for( int n = 0; n < nRuns; n++ )
+            {
+                lstRuns.add( bench.run() );
+            }
+        }
+        catch( IOException ioe )
+        {
+            throw new IllegalStateException( "Benchmark '"+ sName +"' failed", ioe );
+        }
+
+        double nMin  = Double.MAX_VALUE;
+        double nMax  = 0;
+        double nSum  = 0;
+
+        for( double d : lstRuns )
+        {
+            nMin  = Math.min( nMin, d );
+            nMax  = Math.max( nMax, d );
+            nSum += d;
+        }
+
+        double nMean = nSum / lstRuns.size();
+        double nVar  = 0;
+
+        for( double d : lstRuns )
+        {
+            nVar += (d - nMean) * (d - nMean);
+        }
+
+        StringBuilder sb = new StringBuilder();
+
+        for( double d : lstRuns )
+        {
+            sb.append( (sb.length() == 0) ? "" : ", " ).append( format( d ) );
+        }
+
+        lstJson.add( "    { \"benchmark\": \""+ sName +"\", \"unit\": \""+ sUnit +"\", "+
+                     "\"mean\": "+ format( nMean ) +", \"min\": "+ format( nMin ) +", \"max\": "+ format( nMax ) +", "+
+                     "\"stdev\": "+ format( Math.sqrt( nVar / lstRuns.size() ) ) +", \"runs\": ["+ sb +"] }" );
+
+        System.err.println( String.format( Locale.ROOT, "%-28s %14.2f %s", sName, nMean, sUnit ) );
+    }
+
+    private void writeResults() throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append( "{\n" )
+          .append( "  \"date\": \"" ).append( Instant.now() ).append( "\",\n" )
+          .append( "  \"java\": \"" ).append( System.getProperty( "java.version" ) ).append( "\",\n" )
+          .append( "  \"os\": \"" ).append( System.getProperty( "os.name" ) ).append( ' ' ).append( System.getProperty( "os.arch" ) ).append( "\",\n" )
+          .append( "  \"cpus\": " ).append( Runtime.getRuntime().availableProcessors() ).append( ",\n" )
+          .append( "  \"dir\": \"" ).append( fWork.getAbsolutePath().replace( "\\", "\\\\" ) ).append( "\",\n" )
+          .append( "  \"tree\": { \"depth\": " ).append( nDepth ).append( ", \"fanout\": " ).append( nFanOut )
+          .append( ", \"files\": " ).append( nFiles ).append( ", \"sizes\": \"" ).append( sSizes ).append( "\" },\n" )
+          .append( "  \"warmup\": " ).append( nWarmup ).append( ",\n" )
+          .append( "  \"runs\": " ).append( nRuns ).append( ",\n" )
+          .append( "  \"results\": [\n" ).append( String.join( ",\n", lstJson ) ).append( "\n  ]\n" )
+          .append( "}\n" );
+
+        if( fOut == null )
+        {
+            System.out.print( sb );
+        }
+        else
+        {
+            Files.write( fOut.toPath(), sb.toString().getBytes( StandardCharsets.UTF_8 ) );
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // SYNTHETIC TREE
+
+    /**
+     * Creates the Origin tree: every folder has nFiles files (10% of them are
+     * rejected by the filter) and nFanOut sub-folders (up to nDepth levels).
+     * Files sizes follow the configured distribution.
+     *
+     * @return Generated files (accepted by the filter) grouped by size.
+     */
+    private Map<Long,List<File>> generate( File fOrigin ) throws IOException
+    {
+        Map<Long,List<File>> mapBySize = new TreeMap<>();
+        Random               random    = new Random( nSeed );
+        byte[]               abData    = new byte[ (int) Math.min( Integer.MAX_VALUE, mapSizes.lastKey() ) ];
+
+        random.nextBytes( abData );
+        generate( fOrigin, 0, random, abData, mapBySize );
+
+        return mapBySize;
+    }
+
+    private void generate( File fFolder, int nLevel, Random random, byte[] abData, Map<Long,List<File>> mapBySize ) throws IOException
+    {
+        fFolder.mkdirs();
+
+        for( int n = 0; n < nFiles; n++ )
+        {
+            long    nSize   = pickSize( random );
+            boolean bReject = (n % 10 == 9);
+            File    file    = new File( fFolder, "file-"+ n + (bReject ? ".tmp" : ".dat") );
+            int     nOffset = random.nextInt( (int) (abData.length - nSize) + 1 );
+
+            try( OutputStream os = Files.newOutputStream( file.toPath() ) )
+            {
+                os.write( abData, nOffset, (int) nSize );
+            }
+
+            if( ! bReject )
+            {
+                mapBySize.computeIfAbsent( nSize, k -> new ArrayList<>() ).add( file );
+            }
+        }
+
+        if( nLevel < nDepth )
+        {
+            for( int n = 0; n < nFanOut; n++ )
+            {
+                generate( new File( fFolder, "folder-"+ n ), nLevel + 1, random, abData, mapBySize );
+            }
+        }
+
+        new File( fFolder, "build" ).mkdir();      // Ignored folder (see createTask(...))
+    }
+
+    private Task createTask( File fOrigin, File fDestin ) throws Exception
+    {
+        File fConfig = new File( fWork, "bench.config.xml" );
+        String sXML  = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"+
+                       "<root><task>"+
+                       "<origin>"+ fOrigin.getAbsolutePath() +"</origin>"+
+                       "<destination>"+ fDestin.getAbsolutePath() +"</destination>"+
+                       "<ignore_file_ext>.tmp</ignore_file_ext><ignore_file_ext>.jar</ignore_file_ext>"+
+                       "<ignore_folder>build</ignore_folder><ignore_folder>target</ignore_folder>"+
+                       "<exclude>*.bak</exclude><exclude>**/cache/</exclude><exclude>regex:.*/~[^/]*</exclude>"+
+                       "</task></root>";
+
+        Files.write( fConfig.toPath(), sXML.getBytes( StandardCharsets.UTF_8 ) );
+
+        return Task.loadTasks( fConfig ).iterator().next();
+    }
+
+    //----------------------------------------------------------------------------//
+    // AUXILIARY
+
+    private void parseSizes()
+    {
+        for( String sPair : sSizes.split( "," ) )
+        {
+            String[] as = sPair.trim().split( ":" );
+
+            mapSizes.put( parseSize( as[0] ), (as.length > 1) ? Integer.parseInt( as[1].trim() ) : 1 );
+        }
+    }
+
+    private long pickSize( Random random )
+    {
+        int nTotal = 0;
+
+        for( int nWeight : mapSizes.values() )
+        {
+            nTotal += nWeight;
+        }
+
+        int nPick = random.nextInt( nTotal );
+
+        for( Map.Entry<Long,Integer> entry : mapSizes.entrySet() )
+        {
+            nPick -= entry.getValue();
+
+            if( nPick < 0 )
+            {
+                return entry.getKey();
+            }
+        }
+
+        return mapSizes.lastKey();
+    }
+
+    private static long parseSize( String s )
+    {
+        s = s.trim().toLowerCase();
+
+        char cUnit = s.charAt( s.length() - 1 );
+        long nMult = (cUnit == 'k') ? 1024 : (cUnit == 'm') ? 1024 * 1024 : (cUnit == 'g') ? 1024 * 1024 * 1024 : 1;
+
+        return Long.parseLong( (nMult == 1) ? s : s.substring( 0, s.length() - 1 ) ) * nMult;
+    }
+
+    private static String toSize( long nBytes )
+    {
+        if( nBytes >= 1024 * 1024 && nBytes % (1024 * 1024) == 0 )  return (nBytes / (1024 * 1024)) +"m";
+        if( nBytes >= 1024        && nBytes % 1024 == 0 )           return (nBytes / 1024) +"k";
+        return String.valueOf( nBytes );
+    }
+
+    private static double perSecond( long nOps, long nNanos, long nSink )
+    {
+        if( nSink == Long.MIN_VALUE )      // Never true: avoids the JIT removing the measured code
+        {
+            System.err.print( "" );
+        }
+
+        return nOps / (nNanos / 1e9);
+    }
+
+    private static String format( double d )
+    {
+        return String.format( Locale.ROOT, "%.3f", d );
+    }
+
+    private static List<File> listFiles( File fFolder ) throws IOException
+    {
+        final List<File> lstFiles = new ArrayList<>();
+
+        Files.walkFileTree( fFolder.toPath(), new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile( Path file, BasicFileAttributes attrs )
+            {
+                lstFiles.add( file.toFile() );
+                return FileVisitResult.CONTINUE;
+            }
+        } );
+
+        return lstFiles;
+    }
+
+    private static void deleteTree( Path path ) throws IOException
+    {
+        if( ! Files.exists( path ) )
+        {
+            return;
+        }
+
+        Files.walkFileTree( path, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile( Path file, BasicFileAttributes attrs ) throws IOException
+            {
+                Files.delete( file );
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory( Path dir, IOException exc ) throws IOException
+            {
+                Files.delete( dir );
+                return FileVisitResult.CONTINUE;
+            }
+        } );
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+
+    private interface Measurable
+    {
+        /**
+         * Executes the benchmark once.
+         *
+         * @return Measured value.
+         */
+        double run() throws IOException;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2017 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.jsync.synchronizer;
+
+import com.peyrona.jsync.EntryFilter;
+import com.peyrona.jsync.config.Task;
+import java.io.File;
+
+/**
+ * Runs the initial synchronization of a task (FullSync) without starting the
+ * Watcher, so it can be measured by the benchmarks.
+ *
+ * @author peyrona
+ */
+public final class FullSyncBench
+{
+    private final Task        task;
+    private final EntryFilter filter;
+    private final File        fIndex;
+    private final Stage       stgCompare;
+    private final Stage       stgCopy;
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Constructor.
+     *
+     * @param task Task to synchronize.
+     * @param filter Its filter.
+     * @param fIndex Where to store the index.
+     */
+    public FullSyncBench( Task task, EntryFilter filter, File fIndex )
+    {
+        this.task       = task;
+        this.filter     = filter;
+        this.fIndex     = fIndex;
+        this.stgCompare = new Stage( task.getName() +":Compare", task.getCopyThreads(), 1024, null );
+        this.stgCopy    = new Stage( task.getName() +":Copy"   , task.getCopyThreads(), 1024, null );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Synchronizes Origin and Destination once.
+     *
+     * @param bUseIndex true to load the index saved by previous run.
+     * @return Elapsed time in nanos.
+     */
+    public long sync( boolean bUseIndex )
+    {
+        SyncIndex index = new SyncIndex( fIndex, task.getOriginFolder() +'|'+ task.getDestinFolder() +'|'+ filter.getSignature(), false );
+
+        if( bUseIndex )
+        {
+            index.load();
+        }
+        else
+        {
+            fIndex.delete();
+        }
+
+        FullSync fullSync = new FullSync( task, filter, index, null, null, null, null, null, stgCompare, stgCopy );
+        long     nStart   = System.nanoTime();
+
+        fullSync.sync();
+
+        long nElapsed = System.nanoTime() - nStart;
+
+        index.save();
+
+        return nElapsed;
+    }
+}
\ No newline at end of file
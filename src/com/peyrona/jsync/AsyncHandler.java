@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2017 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.jsync;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Passes log records to another handler (e.g. a FileHandler) using its own
+ * thread, so threads that log do not wait for the disk.
+ * <p>
+ * Records are stored in a bounded ring buffer and written in batches (the
+ * target handler is flushed once per batch). When the buffer is full, records
+ * below WARNING are dropped (and how many were dropped is logged later), while
+ * WARNING and SEVERE ones wait for room: they are never lost.
+ *
+ * @author peyrona
+ */
+final class AsyncHandler extends Handler
+{
+    private static final int nCAPACITY = 8192;
+    private static final int nBATCH    = 512;
+
+    private final    Handler                  target;
+    private final    BlockingQueue<LogRecord> buffer  = new ArrayBlockingQueue<>( nCAPACITY );
+    private final    AtomicLong               dropped = new AtomicLong();
+    private final    Thread                   writer;
+    private volatile boolean                  bClosed = false;
+
+    //----------------------------------------------------------------------------//
+
+    AsyncHandler( Handler target )
+    {
+        this.target = target;
+        this.writer = new Thread( this::write, Main.sAPP_NAME +":Log" );
+        this.writer.setDaemon( true );
+        this.writer.start();
+    }
+
+    //----------------------------------------------------------------------------//
+
+    @Override
+    public void publish( LogRecord record )
+    {
+        if( bClosed || (! isLoggable( record )) )
+        {
+            return;
+        }
+
+        if( buffer.offer( record ) )
+        {
+            return;
+        }
+
+        if( record.getLevel().intValue() < Level.WARNING.intValue() )
+        {
+            dropped.incrementAndGet();
+            return;
+        }
+
+        try
+        {
+            buffer.put( record );
+        }
+        catch( InterruptedException ie )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void flush()
+    {
+        // Nothing to do: records are flushed by the writer thread after every batch
+    }
+
+    @Override
+    public void close()
+    {
+        bClosed = true;
+        writer.interrupt();
+
+        try
+        {
+            writer.join( 2000 );
+        }
+        catch( InterruptedException ie )
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        target.close();
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private void write()
+    {
+        List<LogRecord> lstBatch = new ArrayList<>( nBATCH );
+
+        while( true )
+        {
+            try
+            {
+                LogRecord first = buffer.poll( 1, TimeUnit.SECONDS );
+
+                if( first != null )
+                {
+                    lstBatch.add( first );
+                    buffer.drainTo( lstBatch, nBATCH - 1 );
+                }
+            }
+            catch( InterruptedException ie )
+            {
+                buffer.drainTo( lstBatch );      // Closing: write all the pending ones
+                publish( lstBatch );
+                return;
+            }
+
+            publish( lstBatch );
+        }
+    }
+
+    private void publish( List<LogRecord> lstBatch )
+    {
+        long nDropped = dropped.getAndSet( 0 );
+
+        if( nDropped > 0 )
+        {
+            target.publish( new LogRecord( Level.WARNING, nDropped +" log records were dropped: logging faster than they can be written" ) );
+        }
+
+        if( lstBatch.isEmpty() )
+        {
+            return;
+        }
+
+        for( LogRecord record : lstBatch )
+        {
+            target.publish( record );
+        }
+
+        target.flush();
+        lstBatch.clear();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2017 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.jsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+
+/**
+ * Copies files from Origin into Destination.
+ * <p>
+ * Contents are written into a temporary file (in the same folder as the
+ * destination file) that is renamed when it is complete, so nobody can see a
+ * half written file in Destination. Data is moved using FileChannel.transferTo
+ * (which allows the OS to avoid copying data into user space) in chunks of a
+ * configurable size; when the OS can not transfer data this way, a pool of
+ * reusable direct buffers is used.
+ * <p>
+ * Files that already exist in Destination and are bigger than the delta
+ * threshold are updated in place by Delta class instead.
+ * <p>
+ * When there is a Throttle, every copy is an operation and every written
+ * chunk waits for the Throttle to allow it.
+ * <p>
+ * When the same Origin is copied into several Destinations (one Copier per
+ * Destination), Copiers can share their reads (see SharedReads): then data is
+ * moved through a heap buffer instead of using transferTo.
+ *
+ * @author peyrona
+ */
+public final class Copier
+{
+    public  static final int    nDEFAULT_CHUNK = 8 * 1024 * 1024;
+    private static final String sTMP_SUFFIX    = ".jsync.tmp";
+    private static final int    nBUFFER_SIZE   = 256 * 1024;
+    private static final int    nMAX_BUFFERS   = 8;
+
+    private final long nChunk;          // Max bytes per transferTo call
+    private final long nDeltaThresh;    // 0 == always copy whole files
+    private final Throttle throttle;    // null == no limits
+    private final SharedReads shared;   // null == reads are not shared
+    private final BlockingQueue<ByteBuffer> pool = new ArrayBlockingQueue<>( nMAX_BUFFERS );
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Constructor.
+     *
+     * @param nChunkSize Max bytes per transfer (&lt;= 0 means default).
+     * @param nDeltaThreshold In bytes: 0 == always copy the whole file.
+     */
+    public Copier( long nChunkSize, long nDeltaThreshold )
+    {
+        this( nChunkSize, nDeltaThreshold, null );
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param nChunkSize Max bytes per transfer (&lt;= 0 means default).
+     * @param nDeltaThreshold In bytes: 0 == always copy the whole file.
+     * @param throttle Limits bytes and operations per second (null == no limits).
+     */
+    public Copier( long nChunkSize, long nDeltaThreshold, Throttle throttle )
+    {
+        this( nChunkSize, nDeltaThreshold, throttle, null );
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param nChunkSize Max bytes per transfer (&lt;= 0 means default).
+     * @param nDeltaThreshold In bytes: 0 == always copy the whole file.
+     * @param throttle Limits bytes and operations per second (null == no limits).
+     * @param shared Reads shared with the Copiers of other Destinations (null == not shared).
+     */
+    public Copier( long nChunkSize, long nDeltaThreshold, Throttle throttle, SharedReads shared )
+    {
+        this.nChunk       = (nChunkSize <= 0) ? nDEFAULT_CHUNK : nChunkSize;
+        this.nDeltaThresh = nDeltaThreshold;
+        this.throttle     = throttle;
+        this.shared       = shared;
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Copies a file (replacing destination if it exists) and its last
+     * modified time.
+     *
+     * @param fOri File to copy.
+     * @param fDes Where to copy it.
+     * @return true if the file was successfully copied.
+     */
+    public boolean copy( File fOri, File fDes )
+    {
+        if( throttle != null )
+        {
+            throttle.operation();
+        }
+
+        if( (nDeltaThresh > 0) && (fOri.length() >= nDeltaThresh) && fDes.isFile() )
+        {
+            try
+            {
+                long nWritten = (Main.isTesting() ? 0 : Delta.update( fOri, fDes ));
+
+                if( throttle != null )
+                {
+                    throttle.bytes( nWritten );     // Delta writes scattered blocks: charged afterwards
+                }
+
+                Main.info( () -> fOri + " --> delta copied ("+ nWritten +" of "+ fOri.length() +" bytes written)" );
+                return true;
+            }
+            catch( IOException ex )
+            {
+                Main.log( Level.WARNING, "Error updating '"+ fDes +"' from '"+ fOri +"': the whole file will be copied", ex );
+            }
+        }
+
+        try
+        {
+            if( ! Main.isTesting() )
+            {
+                copyAndRename( fOri.toPath(), fDes.toPath() );
+            }
+
+            Main.info( () -> fOri + " --> copied" );
+            return true;
+        }
+        catch( IOException ex )
+        {
+            Main.log( Level.WARNING, "Error copying from: '"+ fOri +"' to '"+ fDes +"'", ex );
+            return false;
+        }
+    }
+
+    /**
+     * Returns true if passed file is a temporary file created by this class
+     * (it could be there if the application died while copying).
+     *
+     * @param file File to check.
+     * @return true if passed file is a temporary file created by this class.
+     */
+    public static boolean isTemporary( File file )
+    {
+        return file.getName().endsWith( sTMP_SUFFIX );
+    }
+
+    /**
+     * Returns the temporary file used by this class while copying into passed
+     * destination file.
+     *
+     * @param fDes Destination file.
+     * @return The temporary file used while copying into passed file.
+     */
+    public static File getTemporary( File fDes )
+    {
+        return new File( fDes.getParentFile(), '.'+ fDes.getName() + sTMP_SUFFIX );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private void copyAndRename( Path pOri, Path pDes ) throws IOException
+    {
+        Path                pTmp  = getTemporary( pDes.toFile() ).toPath();
+        BasicFileAttributes attrs = Files.readAttributes( pOri, BasicFileAttributes.class );
+
+        try
+        {
+            if( shared == null )
+            {
+                try( FileChannel chIn  = FileChannel.open( pOri, StandardOpenOption.READ );
+                     FileChannel chOut = FileChannel.open( pTmp, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING ) )
+                {
+                    transfer( chIn, chOut );
+                }
+            }
+            else
+            {
+                SharedReads.Window window = shared.open( pOri, attrs );
+
+                try( FileChannel chOut = FileChannel.open( pTmp, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING ) )
+                {
+                    transferShared( window, chOut );
+                }
+                finally
+                {
+                    shared.close( window );
+                }
+            }
+
+            Files.setLastModifiedTime( pTmp, attrs.lastModifiedTime() );
+
+            try
+            {
+                Files.setPosixFilePermissions( pTmp, Files.getPosixFilePermissions( pOri ) );
+            }
+            catch( UnsupportedOperationException uoe )
+            {
+                // Nothing to do: file system does not support POSIX permissions
+            }
+
+            try
+            {
+                Files.move( pTmp, pDes, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+            }
+            catch( AtomicMoveNotSupportedException amnse )
+            {
+                Files.move( pTmp, pDes, StandardCopyOption.REPLACE_EXISTING );
+            }
+        }
+        finally
+        {
+            Files.deleteIfExists( pTmp );       // Only exists when something went wrong
+        }
+    }
+
+    private void transfer( FileChannel chIn, FileChannel chOut ) throws IOException
+    {
+        long nSize = chIn.size();
+        long nPos  = 0;
+        long nStep = (throttle == null) ? nChunk : throttle.getChunk( nChunk );
+
+        while( nPos < nSize )
+        {
+            if( throttle != null )
+            {
+                throttle.bytes( Math.min( nStep, nSize - nPos ) );
+            }
+
+            long nSent = chIn.transferTo( nPos, Math.min( nStep, nSize - nPos ), chOut );
+
+            if( nSent <= 0 )        // OS can not transfer directly (or file was truncated meanwhile)
+            {
+                transferBuffered( chIn, chOut, nPos );
+                return;
+            }
+
+            nPos += nSent;
+        }
+    }
+
+    private void transferShared( SharedReads.Window window, FileChannel chOut ) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate( nBUFFER_SIZE );     // Heap: chunks are byte arrays
+        long       nPos   = 0;
+
+        while( window.read( buffer, nPos ) >= 0 )
+        {
+            buffer.flip();
+
+            if( throttle != null )
+            {
+                throttle.bytes( buffer.remaining() );
+            }
+
+            while( buffer.hasRemaining() )
+            {
+                nPos += chOut.write( buffer, nPos );
+            }
+
+            buffer.clear();
+        }
+    }
+
+    private void transferBuffered( FileChannel chIn, FileChannel chOut, long nPos ) throws IOException
+    {
+        ByteBuffer buffer = pool.poll();
+
+        if( buffer == null )
+        {
+            buffer = ByteBuffer.allocateDirect( nBUFFER_SIZE );
+        }
+
+        try
+        {
+            buffer.clear();
+
+            while( chIn.read( buffer, nPos ) >= 0 )
+            {
+                buffer.flip();
+
+                if( throttle != null )
+                {
+                    throttle.bytes( buffer.remaining() );
+                }
+
+                while( buffer.hasRemaining() )
+                {
+                    nPos += chOut.write( buffer, nPos );
+                }
+
+                buffer.clear();
+            }
+        }
+        finally
+        {
+            pool.offer( buffer );
+        }
+    }
+}
\ No newline at end of file
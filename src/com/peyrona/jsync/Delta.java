@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2017 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.jsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Updates an existing Destination file in place, writing only the parts that
+ * differ from its Origin file (same idea as rsync --inplace).
+ * <p>
+ * Destination file is split into blocks and, for every block, a weak (rolling)
+ * and a strong checksum are computed. Then, a window of the same size is
+ * rolled byte by byte over Origin file looking for blocks that already exist
+ * in Destination. Bytes that are not covered by any block are written as they
+ * are in Origin.
+ * <p>
+ * Because Destination is modified while it is being read, a block is only used
+ * when its offset is the same or greater than the offset where it has to be
+ * placed: everything before current offset could be already overwritten.
+ *
+ * @author peyrona
+ */
+public final class Delta
+{
+    private static final int nMIN_BLOCK   = 2 * 1024;
+    private static final int nMAX_BLOCK   = 128 * 1024;
+    private static final int nMAX_LITERAL = 1024 * 1024;   // Literals are written in chunks of this size (max)
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Makes fDes equal to fOri.
+     *
+     * @param fOri Origin file.
+     * @param fDes Destination file (it must exist).
+     * @return Number of bytes written into Destination.
+     * @throws IOException
+     */
+    public static long update( File fOri, File fDes ) throws IOException
+    {
+        long nWritten;
+
+        try( FileChannel chOri = FileChannel.open( fOri.toPath(), StandardOpenOption.READ );
+             FileChannel chDes = FileChannel.open( fDes.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE ) )
+        {
+            nWritten = (new Delta( chOri, chDes, getBlockSize( chOri.size() ) )).update();
+        }
+
+        Files.setLastModifiedTime( fDes.toPath(), Files.getLastModifiedTime( fOri.toPath() ) );
+
+        return nWritten;
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private final FileChannel   chOri;
+    private final FileChannel   chDes;
+    private final int           nBlock;
+    private final MessageDigest md5;
+    private final Map<Integer,List<Integer>> mapWeak = new HashMap<>();   // Weak checksum -> Indexes of Destination blocks
+    private final List<byte[]>  lstStrong = new ArrayList<>();           // Strong checksum of every Destination block
+    private final byte[]        window;                                   // Origin bytes (a part of Origin file)
+    private       long          nWinStart = 0;                            // Origin offset of window[0]
+    private       int           nWinLen   = 0;
+    private       long          nWritten  = 0;
+
+    private Delta( FileChannel chOri, FileChannel chDes, int nBlock ) throws IOException
+    {
+        try
+        {
+            this.md5 = MessageDigest.getInstance( "MD5" );
+        }
+        catch( NoSuchAlgorithmException nsae )
+        {
+            throw new IOException( nsae );
+        }
+
+        this.chOri  = chOri;
+        this.chDes  = chDes;
+        this.nBlock = nBlock;
+        this.window = new byte[ Math.max( nBlock * 4, nMAX_LITERAL ) ];
+    }
+
+    private long update() throws IOException
+    {
+        readSignatures();
+
+        final long nLength  = chOri.size();
+        long       nPos     = 0;      // Current Origin offset (where the rolling block starts)
+        long       nLiteral = 0;      // Origin offset where non-matched bytes start
+        int        a        = 0;      // Rolling checksum parts
+        int        b        = 0;
+        boolean    bFresh   = true;   // Rolling checksum has to be computed from scratch
+
+        while( nPos + nBlock <= nLength )
+        {
+            fill( nPos, nBlock + 1 );
+
+            int nOff = (int) (nPos - nWinStart);
+
+            if( bFresh )
+            {
+                a = 0;
+                b = 0;
+
+                for( int n = 0; n < nBlock; n++ )
+                {
+                    a += window[nOff + n] & 0xFF;
+                    b += (nBlock - n) * (window[nOff + n] & 0xFF);
+                }
+
+                a &= 0xFFFF;
+                b &= 0xFFFF;
+                bFresh = false;
+            }
+
+            long nMatch = findMatch( (b << 16) | a, nOff, nPos );
+
+            if( nMatch >= 0 )
+            {
+                writeLiteral( nLiteral, nPos );
+
+                if( nMatch != nPos )
+                {
+                    moveBlock( nMatch, nPos );
+                }
+
+                nPos    += nBlock;
+                nLiteral = nPos;
+                bFresh   = true;
+            }
+            else
+            {
+                if( nPos + nBlock < nLength )       // Roll one byte
+                {
+                    int nOut = window[nOff] & 0xFF;
+                    int nIn  = window[nOff + nBlock] & 0xFF;
+
+                    a = (a - nOut + nIn) & 0xFFFF;
+                    b = (b - (nBlock * nOut) + a) & 0xFFFF;
+                }
+
+                nPos++;
+
+                if( nPos - nLiteral >= nMAX_LITERAL )
+                {
+                    writeLiteral( nLiteral, nPos );
+                    nLiteral = nPos;
+                }
+            }
+        }
+
+        writeLiteral( nLiteral, nLength );
+
+        if( chDes.size() > nLength )
+        {
+            chDes.truncate( nLength );
+        }
+
+        return nWritten;
+    }
+
+    /**
+     * Computes the checksums of every complete block in Destination.
+     */
+    private void readSignatures() throws IOException
+    {
+        ByteBuffer buffer  = ByteBuffer.allocate( nBlock );
+        int        nBlocks = (int) (chDes.size() / nBlock);
+
+        for( int n = 0; n < nBlocks; n++ )
+        {
+            buffer.clear();
+            readFully( chDes, buffer, (long) n * nBlock );
+
+            byte[] abBlock = buffer.array();
+            int    a       = 0;
+            int    b       = 0;
+
+            for( int i = 0; i < nBlock; i++ )
+            {
+                a += abBlock[i] & 0xFF;
+                b += (nBlock - i) * (abBlock[i] & 0xFF);
+            }
+
+            int nWeak = ((b & 0xFFFF) << 16) | (a & 0xFFFF);
+
+            mapWeak.computeIfAbsent( nWeak, (k) -> new ArrayList<>( 1 ) ).add( n );
+            lstStrong.add( md5.digest( abBlock ) );
+        }
+    }
+
+    /**
+     * Returns the Destination offset of a block that is equal to the Origin
+     * block starting at nPos or -1 if there is no usable one.
+     */
+    private long findMatch( int nWeak, int nOff, long nPos )
+    {
+        List<Integer> lstCandidates = mapWeak.get( nWeak );
+
+        if( lstCandidates == null )
+        {
+            return -1;
+        }
+
+        md5.update( window, nOff, nBlock );
+
+        byte[] abStrong = md5.digest();
+        long   nFound   = -1;
+
+        for( int nIndex : lstCandidates )
+        {
+            long nOffset = (long) nIndex * nBlock;
+
+            if( (nOffset >= nPos) && Arrays.equals( abStrong, lstStrong.get( nIndex ) ) )
+            {
+                if( nOffset == nPos )               // Best case: nothing has to be written
+                {
+                    return nOffset;
+                }
+
+                if( nFound == -1 )
+                {
+                    nFound = nOffset;
+                }
+            }
+        }
+
+        return nFound;
+    }
+
+    /**
+     * Makes Origin bytes from nFrom to nFrom+nLen (or until end of file) be
+     * available in the window.
+     */
+    private void fill( long nFrom, int nLen ) throws IOException
+    {
+        if( (nFrom >= nWinStart) && (nFrom + nLen <= nWinStart + nWinLen) )
+        {
+            return;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap( window );
+
+        nWinStart = nFrom;
+        readFully( chOri, buffer, nFrom );
+        nWinLen = buffer.position();
+    }
+
+    private void writeLiteral( long nFrom, long nTo ) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate( (int) Math.min( nTo - nFrom, nMAX_LITERAL ) );
+
+        while( nFrom < nTo )
+        {
+            buffer.clear();
+            buffer.limit( (int) Math.min( nTo - nFrom, buffer.capacity() ) );
+            readFully( chOri, buffer, nFrom );
+            buffer.flip();
+
+            nFrom += writeFully( buffer, nFrom );
+        }
+    }
+
+    private void moveBlock( long nFrom, long nTo ) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate( nBlock );
+
+        readFully( chDes, buffer, nFrom );
+        buffer.flip();
+        writeFully( buffer, nTo );
+    }
+
+    private int writeFully( ByteBuffer buffer, long nPos ) throws IOException
+    {
+        int nBytes = buffer.remaining();
+
+        while( buffer.hasRemaining() )
+        {
+            nPos += chDes.write( buffer, nPos );
+        }
+
+        nWritten += nBytes;
+        return nBytes;
+    }
+
+    /**
+     * Reads from passed position until buffer is full or end of file.
+     */
+    private static void readFully( FileChannel channel, ByteBuffer buffer, long nPos ) throws IOException
+    {
+        while( buffer.hasRemaining() )
+        {
+            int nRead = channel.read( buffer, nPos );
+
+            if( nRead < 0 )
+            {
+                break;
+            }
+
+            nPos += nRead;
+        }
+    }
+
+    /**
+     * Block size grows with file size (square root of the size, as rsync does).
+     */
+    private static int getBlockSize( long nFileSize )
+    {
+        int nSize = (int) Math.sqrt( nFileSize ) & ~0x3FF;      // Multiple of 1 KB
+
+        return Math.max( nMIN_BLOCK, Math.min( nMAX_BLOCK, nSize ) );
+    }
+}
\ No newline at end of file
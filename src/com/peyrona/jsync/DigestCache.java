@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2017 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.jsync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+
+/**
+ * Computes files content digests and keeps them (in memory and in a file) so
+ * they are not computed again while the file does not change: a digest is
+ * valid while the file key, size and last modified time of the file are the
+ * same that they were when the digest was computed.
+ * <p>
+ * The digest is not cryptographic: it is made by a CRC32 (high 32 bits) and an
+ * Adler32 (low 32 bits), both are computed in the same pass and both are very
+ * fast. It is used only to know if two files have the same contents.
+ *
+ * @author peyrona
+ */
+public final class DigestCache
+{
+    private static final int  nMAGIC    = 0x4A534447;                  // "JSDG"
+    private static final long nMAX_IDLE = 30L * 24 * 60 * 60 * 1000;   // Not used digests are discarded after 30 days
+
+    private final File fStore;
+    private final Map<String,Digest> map = new ConcurrentHashMap<>();   // Key: file key (or path when there is no file key)
+
+    //----------------------------------------------------------------------------//
+
+    public DigestCache( File fStore )
+    {
+        this.fStore = fStore;
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Returns the digest of passed file contents.
+     *
+     * @param file File to digest.
+     * @return The digest of passed file contents.
+     * @throws IOException
+     */
+    public long digest( File file ) throws IOException
+    {
+        return digest( file, Files.readAttributes( file.toPath(), BasicFileAttributes.class ) );
+    }
+
+    /**
+     * Returns the digest of passed file contents using its already read
+     * attributes.
+     *
+     * @param file File to digest.
+     * @param attrs File attributes.
+     * @return The digest of passed file contents.
+     * @throws IOException
+     */
+    public long digest( File file, BasicFileAttributes attrs ) throws IOException
+    {
+        String sKey   = (attrs.fileKey() == null) ? file.getAbsolutePath() : attrs.fileKey().toString();
+        long   nSize  = attrs.size();
+        long   nModif = attrs.lastModifiedTime().toMillis();
+        Digest digest = map.get( sKey );
+
+        if( (digest == null) || (digest.nSize != nSize) || (digest.nModified != nModif) )
+        {
+            digest = new Digest( nSize, nModif, compute( file ) );
+            map.put( sKey, digest );
+        }
+
+        digest.nUsed = System.currentTimeMillis();
+
+        return digest.nDigest;
+    }
+
+    public void load()
+    {
+        if( ! fStore.exists() )
+        {
+            return;
+        }
+
+        try( DataInputStream dis = new DataInputStream( new BufferedInputStream( new FileInputStream( fStore ), 64*1024 ) ) )
+        {
+            if( dis.readInt() != nMAGIC )
+            {
+                return;
+            }
+
+            while( dis.readBoolean() )
+            {
+                String sKey   = dis.readUTF();
+                Digest digest = new Digest( dis.readLong(), dis.readLong(), dis.readLong() );
+                       digest.nUsed = dis.readLong();
+
+                map.put( sKey, digest );
+            }
+        }
+        catch( IOException ex )
+        {
+            Main.log( Level.WARNING, "Error reading digests '"+ fStore +"': they will be computed again", ex );
+            map.clear();
+        }
+    }
+
+    public synchronized void save()
+    {
+        File fTmp    = new File( fStore.getAbsolutePath() +".tmp" );
+        long nOldest = System.currentTimeMillis() - nMAX_IDLE;
+
+        try
+        {
+            try( DataOutputStream dos = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( fTmp ), 64*1024 ) ) )
+            {
+                dos.writeInt( nMAGIC );
+
+                for( Map.Entry<String,Digest> entry : map.entrySet() )
+                {
+                    Digest digest = entry.getValue();
+
+                    if( digest.nUsed >= nOldest )
+                    {
+                        dos.writeBoolean( true );
+                        dos.writeUTF( entry.getKey() );
+                        dos.writeLong( digest.nSize );
+                        dos.writeLong( digest.nModified );
+                        dos.writeLong( digest.nDigest );
+                        dos.writeLong( digest.nUsed );
+                    }
+                }
+
+                dos.writeBoolean( false );
+            }
+
+            Files.move( fTmp.toPath(), fStore.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        }
+        catch( IOException ex )
+        {
+            Main.log( Level.WARNING, "Error saving digests '"+ fStore +"'", ex );
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private static long compute( File file ) throws IOException
+    {
+        CRC32      crc    = new CRC32();
+        Adler32    adler  = new Adler32();
+        ByteBuffer buffer = ByteBuffer.allocate( 64*1024 );
+
+        try( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ ) )
+        {
+            while( channel.read( buffer ) >= 0 )
+            {
+                buffer.flip();
+                crc.update( buffer.array(), 0, buffer.limit() );
+                adler.update( buffer.array(), 0, buffer.limit() );
+                buffer.clear();
+            }
+        }
+
+        return (crc.getValue() << 32) | adler.getValue();
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+
+    private static final class Digest
+    {
+        final long    nSize;
+        final long    nModified;
+        final long    nDigest;
+        volatile long nUsed;
+
+        Digest( long nSize, long nModified, long nDigest )
+        {
+            this.nSize     = nSize;
+            this.nModified = nModified;
+            this.nDigest   = nDigest;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2017 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.jsync;
+
+import java.io.FileFilter;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * A FileFilter that can also decide using the attributes of the entry that the
+ * caller already read, so the file system is not queried again.
+ *
+ * @author peyrona
+ */
+public interface EntryFilter extends FileFilter
+{
+    /**
+     * Tests whether or not passed entry should be synchronized.
+     *
+     * @param path Entry to test.
+     * @param attrs Entry attributes or null if they are not available (e.g.
+     *              the entry was deleted): then it is treated as a file.
+     * @return true if passed entry should be synchronized.
+     */
+    boolean accept( Path path, BasicFileAttributes attrs );
+
+    /**
+     * Tests whether or not passed entry should be synchronized when its
+     * attributes can not be read (e.g. it was deleted) but it is known if it
+     * was a folder or a file: rules that need the attributes (like the max
+     * file size) are not applied.
+     *
+     * @param path Entry to test.
+     * @param bFolder true if the entry is (or was) a folder.
+     * @return true if passed entry should be synchronized.
+     */
+    boolean accept( Path path, boolean bFolder );
+
+    /**
+     * Returns a text that is different when the rules are different: used to
+     * know if a previous synchronization was done using the same rules.
+     *
+     * @return A text that is different when the rules are different.
+     */
+    String getSignature();
+}
\ No newline at end of file
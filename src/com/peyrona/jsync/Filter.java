@@ -16,104 +16,442 @@
 
 package com.peyrona.jsync;
 
+import com.peyrona.jsync.config.Task;
 import java.io.File;
-import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.regex.Pattern;
 
 /**
  * Determines if a file or folder is excluded or not based on configuration file
  * definitions.
+ * <p>
+ * Rules are compiled once (when the task is loaded):
+ * <ul>
+ *    <li>Extensions and folder names to ignore (case insensitive) are kept in
+ *        hash sets.</li>
+ *    <li>Exclude and include rules are globs (.gitignore syntax) or regular
+ *        expressions (when prefixed by "regex:") that are matched against the
+ *        path relative to Origin (using '/' as separator). Rules that are just
+ *        a name (e.g. "node_modules") or an extension (e.g. "*.tmp") are kept
+ *        in hash sets, so any number of them costs one lookup per entry; all
+ *        the others are joined into one single regular expression (one for
+ *        folders and one for files). It is compiled once, but matching it
+ *        tries its alternatives one after another, so the cost per entry grows
+ *        with the number of these rules.</li>
+ *    <li>Filter files contain one rule per line (.gitignore syntax): a line
+ *        starting with '!' is an include rule.</li>
+ * </ul>
+ * An entry is excluded when it matches any exclude rule and no include rule.
+ * Contents of an excluded folder are never visited (the folder is pruned), so
+ * they can not be included again.
  *
  * @author peyrona
  */
-final class Filter implements FileFilter
+final class Filter implements EntryFilter
 {
-    private final List<String> lstFileExt = new ArrayList<>();    // FileExtensions to be ignored
-    private final List<String> lstFolder  = new ArrayList<>();    // Folders to be ignored (as absolute path)
-    private       long         nMaxSize   = 0;                    // 0 == no restriction
+    private static final String sREGEX = "regex:";
+
+    private final String      sRoot;                                // Origin absolute path (ending with separator)
+    private final long        nMaxSize;                             // 0 == no restriction
+    private final Set<String> setFileExt = new HashSet<>();         // FileExtensions to be ignored (lower case)
+    private final Set<String> setFolder  = new HashSet<>();         // Folders names to be ignored (lower case)
+    private final Set<String> setExcName = new HashSet<>();         // Exclude rules that are just a name
+    private final Set<String> setExcDir  = new HashSet<>();         // Exclude rules that are just a name of a folder ("name/")
+    private final Set<String> setExcExt  = new HashSet<>();         // Exclude rules that are just an extension ("*.ext")
+    private final Pattern     patExcDir;                            // null == no rule
+    private final Pattern     patExcFile;
+    private final Pattern     patIncDir;
+    private final Pattern     patIncFile;
+    private final boolean     bHasRules;
+    private final String      sSignature;
 
     //----------------------------------------------------------------------------//
-    // BY IMPLEMENTING FileFilter
 
-    @Override
-    public boolean accept( final File file )    // Check if file is contained in any of folders to be ignored
+    /**
+     * Compiles the rules defined by passed task.
+     *
+     * @param task Task which rules will be used.
+     */
+    Filter( Task task )
     {
-        if( file.isDirectory() )
+        List<String> lstExclude = new ArrayList<>( task.getExcludes() );
+        List<String> lstInclude = new ArrayList<>( task.getIncludes() );
+
+        for( String sFile : task.getFilterFiles() )
         {
-            if( lstFolder.contains( file.getName().toLowerCase() ) )
+            readFilterFile( new File( task.getOriginFolder() ), sFile, lstExclude, lstInclude );
+        }
+
+        for( String ext : task.getIgnoreFileExts() )
+        {
+            if( (ext != null) && (! ext.trim().isEmpty()) )
             {
-                return false;
+                setFileExt.add( ext.trim().toLowerCase() );
             }
         }
-        else                                    // Everything that is not a dir will be treated as a file
+
+        for( String name : task.getFolderNames() )
         {
-            if( (nMaxSize > 0) && file.length() > nMaxSize )
+            if( (name != null) && (! name.trim().isEmpty()) )
             {
-                return false;
+                setFolder.add( name.trim().toLowerCase() );
             }
+        }
+
+        StringBuilder sbExcDir  = new StringBuilder();
+        StringBuilder sbExcFile = new StringBuilder();
+        StringBuilder sbIncDir  = new StringBuilder();
+        StringBuilder sbIncFile = new StringBuilder();
 
-            if( lstFileExt.contains( getFileExtension( file ) ) )
+        for( String sRule : lstExclude )
+        {
+            if( ! addToSets( sRule ) )
             {
-                return false;
+                compile( sRule, sbExcDir, sbExcFile );
             }
         }
 
-        return true;
+        for( String sRule : lstInclude )
+        {
+            compile( sRule, sbIncDir, sbIncFile );
+        }
+
+        this.sRoot      = new File( task.getOriginFolder() ).getAbsolutePath() + File.separator;
+        this.nMaxSize   = task.getMaxFileSize();
+        this.patExcDir  = toPattern( sbExcDir  );
+        this.patExcFile = toPattern( sbExcFile );
+        this.patIncDir  = toPattern( sbIncDir  );
+        this.patIncFile = toPattern( sbIncFile );
+        this.bHasRules  = (! lstExclude.isEmpty());
+        this.sSignature = nMaxSize +"|"+ new TreeSet<>( setFileExt ) +"|"+ new TreeSet<>( setFolder ) +"|"+ lstExclude +"|"+ lstInclude;
     }
 
     //----------------------------------------------------------------------------//
+    // BY IMPLEMENTING EntryFilter
 
-    void setFileExtensionsToIgnore( Set<String> lst )
+    @Override
+    public boolean accept( final File file )
     {
-        lstFileExt.clear();
+        BasicFileAttributes attrs;
 
-        for( String ext : lst )
+        try
+        {
+            attrs = Files.readAttributes( file.toPath(), BasicFileAttributes.class );
+        }
+        catch( IOException ioe )                // Does not exist
         {
-            addFileExtension( ext );
+            attrs = null;
         }
+
+        return accept( file.toPath(), attrs );
     }
 
-    void addFileExtension( String ext )
+    @Override
+    public boolean accept( final Path path, final BasicFileAttributes attrs )
     {
-        if( (ext != null) && (! ext.isEmpty()) )
+        boolean bDir = (attrs != null) && attrs.isDirectory();     // Everything that is not a dir will be treated as a file
+
+        if( (! bDir) && (nMaxSize > 0) && (attrs != null) && attrs.size() > nMaxSize )
         {
-            lstFileExt.add( ext.trim().toLowerCase() );
+            return false;
         }
+
+        return accept( path, bDir );
     }
 
-    void setFolderNamesToIgnore( Set<String> lst )
+    @Override
+    public boolean accept( final Path path, final boolean bDir )
     {
-        lstFolder.clear();
+        String sName = String.valueOf( path.getFileName() );
+        String sExt  = getFileExtension( sName );
+
+        if( bDir ? setFolder.contains( sName.toLowerCase() )
+                 : setFileExt.contains( sExt.toLowerCase() ) )
+        {
+            return false;
+        }
+
+        if( ! bHasRules )
+        {
+            return true;
+        }
+
+        String  sRelPath  = null;
+        boolean bExcluded = setExcName.contains( sName )
+                            || (bDir ? setExcDir.contains( sName ) : setExcExt.contains( sExt ));
+
+        if( (! bExcluded) && ((bDir ? patExcDir : patExcFile) != null) )
+        {
+            sRelPath  = relative( path );
+            bExcluded = (bDir ? patExcDir : patExcFile).matcher( sRelPath ).matches();
+        }
 
-        for( String name : lst )
+        if( bExcluded && ((bDir ? patIncDir : patIncFile) != null) )
         {
-            addFolderName( name );
+            sRelPath  = (sRelPath == null) ? relative( path ) : sRelPath;
+            bExcluded = ! (bDir ? patIncDir : patIncFile).matcher( sRelPath ).matches();
         }
+
+        return ! bExcluded;
     }
 
-    void addFolderName( String name )
+    @Override
+    public String getSignature()
     {
-        if( (name != null) && (! name.isEmpty()) )
+        return sSignature;
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Adds passed exclude rule to the hash sets if it is just a name or an
+     * extension.
+     *
+     * @return true if it was added.
+     */
+    private boolean addToSets( String sRule )
+    {
+        if( sRule.startsWith( sREGEX ) )
+        {
+            return false;
+        }
+
+        boolean bDirOnly = sRule.endsWith( "/" );
+        String  sGlob    = bDirOnly ? sRule.substring( 0, sRule.length() - 1 ) : sRule;
+
+        if( sGlob.isEmpty() || hasAny( sGlob, "/\\[?" ) )
+        {
+            return false;
+        }
+
+        if( sGlob.indexOf( '*' ) == -1 )
+        {
+            (bDirOnly ? setExcDir : setExcName).add( sGlob );
+            return true;
+        }
+
+        if( (! bDirOnly) && sGlob.startsWith( "*." ) && (! hasAny( sGlob.substring( 2 ), "*." )) )
+        {
+            setExcExt.add( sGlob.substring( 1 ) );
+            return true;
+        }
+
+        return false;
+    }
+
+    private String relative( Path path )
+    {
+        String sPath = path.isAbsolute() ? path.toString() : path.toAbsolutePath().toString();
+
+        if( sPath.startsWith( sRoot ) )
         {
-            lstFolder.add( name.trim().toLowerCase() );
+            sPath = sPath.substring( sRoot.length() );
         }
+
+        return (File.separatorChar == '/') ? sPath : sPath.replace( File.separatorChar, '/' );
     }
 
-    void setMaxSize( long size )
+    private static String getFileExtension( final String name )
     {
-        nMaxSize = size;
+        final int index = name.lastIndexOf( '.' );
+
+        return ((index == -1) ? "" : name.substring( index ));
     }
 
     //----------------------------------------------------------------------------//
 
-    private String getFileExtension( final File file )
+    /**
+     * Reads a .gitignore like file: empty lines and lines starting with '#' are
+     * ignored, lines starting with '!' are include rules and the rest are
+     * exclude rules. Relative paths are relative to Origin folder.
+     */
+    private static void readFilterFile( File fOrigin, String sFile, List<String> lstExclude, List<String> lstInclude )
+    {
+        File file = new File( sFile );
+
+        if( ! file.isAbsolute() )
+        {
+            file = new File( fOrigin, sFile );
+        }
+
+        try
+        {
+            for( String sLine : Files.readAllLines( file.toPath(), StandardCharsets.UTF_8 ) )
+            {
+                String sRule = sLine.replaceAll( "\\s+$", "" );
+
+                if( sRule.isEmpty() || sRule.startsWith( "#" ) )
+                {
+                    continue;
+                }
+
+                if( sRule.startsWith( "!" ) )
+                {
+                    lstInclude.add( sRule.substring( 1 ) );
+                }
+                else
+                {
+                    lstExclude.add( (sRule.startsWith( "\\#" ) || sRule.startsWith( "\\!" )) ? sRule.substring( 1 ) : sRule );
+                }
+            }
+        }
+        catch( IOException ioe )
+        {
+            Main.log( Level.WARNING, "Can not read filter file '"+ file +"': its rules will not be used", ioe );
+        }
+    }
+
+    /**
+     * Appends passed rule (as a regular expression) to the folders one and,
+     * unless it is only for folders (ends with '/'), to the files one.
+     */
+    private static void compile( String sRule, StringBuilder sbDir, StringBuilder sbFile )
     {
-        final String name  = file.getName();
-        final int    index = name.lastIndexOf( '.' );
+        String  sRegex;
+        boolean bDirOnly = false;
+
+        if( sRule.startsWith( sREGEX ) )
+        {
+            sRegex = sRule.substring( sREGEX.length() );
+        }
+        else
+        {
+            String sGlob = sRule;
+
+            if( sGlob.endsWith( "/" ) )
+            {
+                bDirOnly = true;
+                sGlob    = sGlob.substring( 0, sGlob.length() - 1 );
+            }
+
+            boolean bAnchored = sGlob.indexOf( '/' ) > -1;       // Otherwise matches the name at any depth
+
+            if( sGlob.startsWith( "/" ) )
+            {
+                sGlob = sGlob.substring( 1 );
+            }
+
+            sRegex = (bAnchored ? "" : "(?:.*/)?") + glob2Regex( sGlob );
+        }
+
+        Pattern.compile( sRegex );       // Fails now (with a clear message) if it is not valid
+
+        append( sbDir, sRegex );
+
+        if( ! bDirOnly )
+        {
+            append( sbFile, sRegex );
+        }
+    }
+
+    private static void append( StringBuilder sb, String sRegex )
+    {
+        if( sb.length() > 0 )
+        {
+            sb.append( '|' );
+        }
+
+        sb.append( "(?:" ).append( sRegex ).append( ')' );
+    }
+
+    private static Pattern toPattern( StringBuilder sb )
+    {
+        return (sb.length() == 0) ? null : Pattern.compile( sb.toString() );
+    }
+
+    private static String glob2Regex( String sGlob )
+    {
+        StringBuilder sb   = new StringBuilder();
+        int           nLen = sGlob.length();
+
+        for( int n = 0; n < nLen; n++ )
+        {
+            char c = sGlob.charAt( n );
+
+            if( c == '*' )
+            {
+                if( (n + 1 < nLen) && (sGlob.charAt( n + 1 ) == '*') )
+                {
+                    if( (n + 2 < nLen) && (sGlob.charAt( n + 2 ) == '/') )      // "**/" : zero or more folders
+                    {
+                        sb.append( "(?:.*/)?" );
+                        n += 2;
+                    }
+                    else
+                    {
+                        sb.append( ".*" );
+                        n++;
+                    }
+                }
+                else
+                {
+                    sb.append( "[^/]*" );
+                }
+            }
+            else if( c == '?' )
+            {
+                sb.append( "[^/]" );
+            }
+            else if( (c == '[') && (sGlob.indexOf( ']', n + 1 ) > n + 1) )
+            {
+                int nEnd = sGlob.indexOf( ']', n + 1 );
+
+                sb.append( '[' );
+
+                for( int i = n + 1; i < nEnd; i++ )
+                {
+                    char ch = sGlob.charAt( i );
+
+                    if( (i == n + 1) && (ch == '!') )
+                    {
+                        sb.append( '^' );
+                    }
+                    else
+                    {
+                        sb.append( ((ch == '\\') || (ch == '[') || (ch == '&')) ? "\\"+ ch : String.valueOf( ch ) );
+                    }
+                }
+
+                sb.append( ']' );
+                n = nEnd;
+            }
+            else if( (c == '\\') && (n + 1 < nLen) )
+            {
+                sb.append( Pattern.quote( String.valueOf( sGlob.charAt( ++n ) ) ) );
+            }
+            else if( "\\.[]{}()+-^$|".indexOf( c ) > -1 )
+            {
+                sb.append( '\\' ).append( c );
+            }
+            else
+            {
+                sb.append( c );
+            }
+        }
+
+        return sb.toString();
+    }
+
+    private static boolean hasAny( String s, String sChars )
+    {
+        for( int n = 0; n < sChars.length(); n++ )
+        {
+            if( s.indexOf( sChars.charAt( n ) ) > -1 )
+            {
+                return true;
+            }
+        }
 
-        return ((index == -1) ? ""
-                              : name.substring( index ).toLowerCase());
+        return false;
     }
 }
\ No newline at end of file
@@ -16,11 +16,16 @@
 
 package com.peyrona.jsync;
 
+import com.peyrona.jsync.config.Settings;
 import com.peyrona.jsync.config.Task;
+import com.peyrona.jsync.metrics.MetricsServer;
+import com.peyrona.jsync.synchronizer.Scheduler;
 import com.peyrona.jsync.synchronizer.Synchronizer;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.function.Supplier;
+import java.util.logging.ConsoleHandler;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -107,6 +112,20 @@ public class Main
         }
     }
 
+    /**
+     * Same as info(String) but the message is only composed when it is going
+     * to be logged (use it when composing the message has a cost).
+     *
+     * @param msg Supplies the message.
+     */
+    public static void info( Supplier<String> msg )
+    {
+        if( bVerbose )
+        {
+            log( Level.INFO, msg.get(), null );
+        }
+    }
+
     public static void log( Level level, Exception exc )
     {
         log( level, null, exc );
@@ -116,7 +135,8 @@ public class Main
     {
         if( logger != null )
         {
-            logger.log( level, msg, exc );
+            // Source is passed: otherwise it would be found walking the stack
+            logger.logp( level, Main.class.getName(), "log", msg, exc );
         }
     }
 
@@ -149,7 +169,11 @@ public class Main
             FileHandler fh = new FileHandler( sLogName, 5*1000*1024, 9, true );
                         fh.setFormatter( new SimpleFormatter() );
 
-            lgr.addHandler( fh );
+            // Records are written by other threads (see AsyncHandler): console
+            // handler (inherited from root logger) is made asynchronous too.
+            lgr.addHandler( new AsyncHandler( fh ) );
+            lgr.addHandler( new AsyncHandler( new ConsoleHandler() ) );
+            lgr.setUseParentHandlers( false );
         }
         catch( IOException ex )
         {
@@ -161,24 +185,42 @@ public class Main
         return lgr;
     }
 
+    /**
+     * All tasks are executed at the same time (each one in its own thread),
+     * sharing the I/O budget and the limits defined in the configuration file.
+     */
     private static void execute( File fConfig ) throws Exception
     {
+        Settings  settings  = Settings.load( fConfig );
+        Scheduler scheduler = new Scheduler( settings.getMaxIOJobs() );
+        Throttle  throttle  = Throttle.create( settings.getMaxBandwidth(), settings.getMaxOpsPerSec(), null );
+
+        if( settings.getMetricsPort() > 0 )
+        {
+            MetricsServer.start( settings.getMetricsPort() );
+        }
+
         for( Task task : Task.loadTasks( fConfig ) )
         {
-            File   fOrigin = new File( task.getOriginFolder() );
-            File   fDestin = new File( task.getDestinFolder() );
-            Filter filter  = new Filter();
-                   filter.setMaxSize( task.getMaxFileSize() );
-                   filter.setFileExtensionsToIgnore( task.getIgnoreFileExts() );
-                   filter.setFolderNamesToIgnore( task.getFolderNames() );
+            File          fOrigin  = new File( task.getOriginFolder() );
+            Filter        filter   = new Filter( task );
+            StringBuilder sDestins = new StringBuilder();
+
+            for( String sDestin : task.getDestinFolders() )
+            {
+                sDestins.append( "Destination: " ).append( new File( sDestin ) ).append( '\n' );
+            }
 
             info( "------------------------------------------------------------------------------\n"+
                   "Synchronization Started\n"+
                   "Config file: "+ fConfig +"\n"+
                   "Origin     : "+ fOrigin +"\n"+
-                  "Destination: "+ fDestin +"\n" );
+                  sDestins +
+                  "Parallelism: "+ task.getParallelism() +"\n" );
+
+            final Synchronizer sync = new Synchronizer( task, filter, scheduler, throttle );
 
-            (new Synchronizer( fOrigin, fDestin, filter )).start();
+            new Thread( sync::start, sAPP_NAME +":"+ task.getName() ).start();
         }
     }
 }
\ No newline at end of file
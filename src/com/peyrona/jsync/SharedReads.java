@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2017 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.jsync;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lets the Copiers of a task with many Destinations (one Copier per
+ * Destination) read every Origin file only once, even when they copy it at
+ * slightly different times.
+ * <p>
+ * The last chunks read from a file are kept in memory (a window) shared by all
+ * the Copiers of the file: the first one that needs a chunk reads it from the
+ * file and the others take it from memory. Copiers never wait for each other:
+ * the window slides forward when it is full and a Copier that falls behind it
+ * (e.g. because it writes into a slow Destination) reads what it missed by
+ * itself.
+ * <p>
+ * A window is discarded once the file was copied into all Destinations, or a
+ * while after its last Copier finished (a Destination that is lagging will
+ * read the file again); memory used by finished windows is also bounded.
+ *
+ * @author peyrona
+ */
+public final class SharedReads
+{
+    private static final int  nCHUNK  = 1024 * 1024;
+    private static final int  nWINDOW = 16;                  // Max chunks kept per file
+    private static final long nBUDGET = 64L * 1024 * 1024;   // Max bytes kept by finished windows
+    private static final long nLINGER = 10 * 1000;           // Millis a finished window is kept
+
+    private final int                nReaders;               // Destinations
+    private final Map<String,Window> mapWindows = new LinkedHashMap<>();    // Guarded by 'this' (oldest first)
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Constructor.
+     *
+     * @param nReaders How many times every file will be read (number of
+     *                 Destinations).
+     */
+    public SharedReads( int nReaders )
+    {
+        this.nReaders = nReaders;
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Returns the window of passed file, that has to be closed when it is not
+     * needed any more.
+     *
+     * @param path File to read.
+     * @param attrs Its attributes (a file that changed is a different one).
+     * @return The window of passed file.
+     */
+    synchronized Window open( Path path, BasicFileAttributes attrs )
+    {
+        String sKey   = path +"|"+ attrs.size() +'|'+ attrs.lastModifiedTime().toMillis();
+        Window window = mapWindows.get( sKey );
+
+        prune();
+
+        if( window == null )
+        {
+            window = new Window( sKey, path, attrs.size() );
+            mapWindows.put( sKey, window );
+        }
+
+        window.nOpen++;
+
+        return window;
+    }
+
+    synchronized void close( Window window )
+    {
+        window.nOpen--;
+        window.nServed++;
+        window.nLast = System.currentTimeMillis();
+
+        if( window.nServed >= nReaders )
+        {
+            mapWindows.remove( window.sKey, window );
+        }
+
+        if( window.nOpen == 0 )
+        {
+            window.closeChannel();
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Discards finished windows that are too old and, when finished windows
+     * are using too much memory, the oldest ones.
+     */
+    private void prune()
+    {
+        long nNow   = System.currentTimeMillis();
+        long nBytes = 0;
+
+        for( Window window : mapWindows.values() )
+        {
+            nBytes += (window.nOpen == 0) ? window.bytes() : 0;
+        }
+
+        for( Iterator<Window> itera = mapWindows.values().iterator(); itera.hasNext(); )
+        {
+            Window window = itera.next();
+
+            if( (window.nOpen == 0) && ((nNow - window.nLast > nLINGER) || (nBytes > nBUDGET)) )
+            {
+                nBytes -= window.bytes();
+                itera.remove();
+            }
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+
+    static final class Window
+    {
+        private final String       sKey;
+        private final Path         path;
+        private       long         nSize;
+        private       FileChannel  channel   = null;                 // Opened when needed
+        private       long         nFirst    = 0;                    // Index of first kept chunk
+        private final List<byte[]> lstChunks = new ArrayList<>();
+        private       int          nOpen     = 0;                    // Copiers using it (guarded by SharedReads)
+        private       int          nServed   = 0;                    // Copiers that used it (guarded by SharedReads)
+        private       long         nLast     = 0;                    // When last Copier finished (guarded by SharedReads)
+
+        private Window( String sKey, Path path, long nSize )
+        {
+            this.sKey  = sKey;
+            this.path  = path;
+            this.nSize = nSize;
+        }
+
+        /**
+         * Reads bytes starting at passed position of the file.
+         *
+         * @param buffer Where to put them.
+         * @param nPos Position of the file.
+         * @return Bytes read or -1 at end of file.
+         * @throws IOException
+         */
+        int read( ByteBuffer buffer, long nPos ) throws IOException
+        {
+            FileChannel ch;
+
+            synchronized( this )
+            {
+                if( nPos >= nSize )
+                {
+                    return -1;
+                }
+
+                long nChunk = nPos / nCHUNK;
+
+                if( nChunk >= nFirst )
+                {
+                    while( (nFirst + lstChunks.size() <= nChunk) && readNext() )
+                    {
+                        // Reading ahead until the chunk is in the window
+                    }
+
+                    if( nChunk < nFirst + lstChunks.size() )
+                    {
+                        byte[] abChunk = lstChunks.get( (int) (nChunk - nFirst) );
+                        int    nOffset = (int) (nPos - nChunk * nCHUNK);
+                        int    nLength = Math.min( buffer.remaining(), abChunk.length - nOffset );
+
+                        if( nLength <= 0 )
+                        {
+                            return -1;
+                        }
+
+                        buffer.put( abChunk, nOffset, nLength );
+                        return nLength;
+                    }
+
+                    return -1;                           // File was truncated meanwhile
+                }
+
+                ch = channel();
+            }
+
+            return ch.read( buffer, nPos );              // Behind the window: read by itself (not holding the lock)
+        }
+
+        private boolean readNext() throws IOException
+        {
+            long       nStart  = (nFirst + lstChunks.size()) * nCHUNK;
+            byte[]     abChunk = new byte[ (int) Math.min( nCHUNK, nSize - nStart ) ];
+            ByteBuffer bb      = ByteBuffer.wrap( abChunk );
+
+            while( bb.hasRemaining() )
+            {
+                if( channel().read( bb, nStart + bb.position() ) < 0 )
+                {
+                    nSize = nStart + bb.position();      // File was truncated meanwhile
+                    break;
+                }
+            }
+
+            if( bb.position() == 0 )
+            {
+                return false;
+            }
+
+            lstChunks.add( (bb.position() == abChunk.length) ? abChunk : Arrays.copyOf( abChunk, bb.position() ) );
+
+            if( lstChunks.size() > nWINDOW )
+            {
+                lstChunks.remove( 0 );
+                nFirst++;
+            }
+
+            return true;
+        }
+
+        private synchronized FileChannel channel() throws IOException
+        {
+            if( channel == null )
+            {
+                channel = FileChannel.open( path, StandardOpenOption.READ );
+            }
+
+            return channel;
+        }
+
+        private synchronized void closeChannel()
+        {
+            if( channel != null )
+            {
+                try
+                {
+                    channel.close();
+                }
+                catch( IOException ioe )
+                {
+                    // Nothing to do
+                }
+
+                channel = null;
+            }
+        }
+
+        private synchronized long bytes()
+        {
+            long nBytes = 0;
+
+            for( byte[] ab : lstChunks )
+            {
+                nBytes += ab.length;
+            }
+
+            return nBytes;
+        }
+    }
+}
\ No newline at end of file
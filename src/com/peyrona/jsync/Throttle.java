@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2017 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.jsync;
+
+import com.peyrona.jsync.config.Rate;
+import java.time.LocalTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the bytes written and the operations (copies and deletions) done per
+ * second, using a token bucket for each one: tokens are added at the
+ * configured rate (up to one second worth of them) and every byte or operation
+ * takes one token; when there are not enough tokens, the caller sleeps until
+ * they are available.
+ * <p>
+ * A Throttle can have a parent (e.g. the global one, shared by all tasks): then
+ * both limits have to be satisfied.
+ * <p>
+ * Instances are only created when there is something to limit: callers
+ * receive null otherwise, so there is no overhead at all when nothing is
+ * configured.
+ *
+ * @author peyrona
+ */
+public final class Throttle
+{
+    private final Bucket   bytes;      // null == no limit
+    private final Bucket   ops;        // null == no limit
+    private final Throttle parent;     // null == no parent
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Returns a Throttle for passed limits or parent if there is nothing to
+     * limit (which can be null).
+     *
+     * @param rBytes Bytes per second.
+     * @param rOps Operations per second.
+     * @param parent Another Throttle that has to be satisfied too (can be null).
+     * @return A Throttle for passed limits or parent if there is nothing to limit.
+     */
+    public static Throttle create( Rate rBytes, Rate rOps, Throttle parent )
+    {
+        boolean bBytes = (rBytes != null) && (! rBytes.isEmpty());
+        boolean bOps   = (rOps   != null) && (! rOps.isEmpty());
+
+        if( (! bBytes) && (! bOps) )
+        {
+            return parent;
+        }
+
+        return new Throttle( (bBytes ? new Bucket( rBytes ) : null),
+                             (bOps   ? new Bucket( rOps   ) : null),
+                             parent );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Waits until passed amount of bytes can be written.
+     *
+     * @param nBytes Amount of bytes.
+     */
+    public void bytes( long nBytes )
+    {
+        if( bytes != null )
+        {
+            bytes.take( nBytes );
+        }
+
+        if( parent != null )
+        {
+            parent.bytes( nBytes );
+        }
+    }
+
+    /**
+     * Waits until one more operation can be done.
+     */
+    public void operation()
+    {
+        if( ops != null )
+        {
+            ops.take( 1 );
+        }
+
+        if( parent != null )
+        {
+            parent.operation();
+        }
+    }
+
+    /**
+     * Returns the max amount of bytes that should be written at once, so the
+     * flow is smooth instead of big bursts followed by long pauses.
+     *
+     * @param nDefault Amount to use when there is no limit.
+     * @return The max amount of bytes that should be written at once.
+     */
+    public long getChunk( long nDefault )
+    {
+        long nRate = (bytes == null) ? 0 : bytes.getRate();
+        long nMax  = (nRate <= 0) ? nDefault : Math.max( 4 * 1024, nRate / 4 );
+
+        if( parent != null )
+        {
+            nMax = parent.getChunk( nMax );
+        }
+
+        return Math.min( nDefault, nMax );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private Throttle( Bucket bytes, Bucket ops, Throttle parent )
+    {
+        this.bytes  = bytes;
+        this.ops    = ops;
+        this.parent = parent;
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+
+    private static final class Bucket
+    {
+        private final Rate   rate;
+        private       long   nRate    = 0;       // Current limit (per second): 0 == no limit
+        private       double nTokens  = 0;
+        private       long   nLast    = 0;       // Last refill (nanos)
+        private       long   nChecked = 0;       // Last time the rate was checked (nanos)
+
+        Bucket( Rate rate )
+        {
+            this.rate = rate;
+        }
+
+        synchronized long getRate()
+        {
+            refill( System.nanoTime() );
+            return nRate;
+        }
+
+        void take( long nAmount )
+        {
+            long nWait;
+
+            synchronized( this )
+            {
+                refill( System.nanoTime() );
+
+                if( nRate <= 0 )
+                {
+                    return;
+                }
+
+                nTokens -= nAmount;                 // Can become negative: the debt is paid waiting
+                nWait    = (nTokens >= 0) ? 0 : (long) ((-nTokens * 1000_000_000d) / nRate);
+            }
+
+            if( nWait > 0 )
+            {
+                try
+                {
+                    TimeUnit.NANOSECONDS.sleep( nWait );
+                }
+                catch( InterruptedException ie )
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        private void refill( long nNow )      // Invoked only from synchronized methods
+        {
+            if( (nChecked == 0) || (nNow - nChecked >= 1000_000_000L) )    // Time windows have minute precision
+            {
+                LocalTime time = LocalTime.now();
+                long      nNew = rate.get( (time.getHour() * 60) + time.getMinute() );
+
+                if( nNew != nRate )
+                {
+                    nRate   = nNew;
+                    nTokens = Math.min( nTokens, nRate );
+                }
+
+                nChecked = nNow;
+            }
+
+            if( nLast > 0 )
+            {
+                nTokens = Math.min( nRate, nTokens + (((nNow - nLast) * (double) nRate) / 1000_000_000d) );
+            }
+
+            nLast = nNow;
+        }
+    }
+}
\ No newline at end of file
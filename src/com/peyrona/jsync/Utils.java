@@ -19,7 +19,7 @@ package com.peyrona.jsync;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.logging.Level;
 
 /**
@@ -29,6 +29,8 @@ import java.util.logging.Level;
  */
 public class Utils
 {
+    private static final Copier copier = new Copier( Copier.nDEFAULT_CHUNK, 0 );
+
     /**
      * Check if passed files have or not the same contents.<br>
      * Returns true when (OR applied):
@@ -52,43 +54,152 @@ public class Utils
     }
 
     /**
-     * Returns the equivalent file in Destination folder or passed file in
-     * Origin folder.
+     * Check if passed files have or not the same contents.<br>
+     * When no digests cache is passed, this method is the same as
+     * areEquals(File,File). Otherwise, returns true when (AND applied):
+     * <ul>
+     *    <li> Second passed file exists.
+     *    <li> Both files have same length.
+     *    <li> Both files have exactly the same 'lastmodified' or their contents
+     *         digests are equal.
+     * </ul>
+     * When contents are equal but 'lastmodified' is not, second file gets the
+     * 'lastmodified' of the first one (so next time no digest is needed).
      *
      * @param fOrig
      * @param fDest
-     * @param fEntry
-     * @return
+     * @param digests Cache of digests or null.
+     * @return true if both files are equal.
      */
-    public static File getEquivalent( final File fOrig, final File fDest, File fEntry )
+    public static boolean areEquals( final File fOrig, final File fDest, final DigestCache digests )
     {
-        String sOrigPath = fOrig.getAbsolutePath();
-        String sFilePath = fEntry.getAbsolutePath();
-        String sNewPath  = sFilePath.substring( sOrigPath.length() );
+        if( digests == null )
+        {
+            return areEquals( fOrig, fDest );
+        }
 
-        return new File( fDest, sNewPath );
+        try
+        {
+            return areEquals( fOrig, Files.readAttributes( fOrig.toPath(), BasicFileAttributes.class ), fDest, digests );
+        }
+        catch( IOException ex )     // Origin does not exist any more
+        {
+            return false;
+        }
     }
 
-    public static void copy( File fOri, File fDes )
+    /**
+     * Same as areEquals(File,File,DigestCache) but using the already read
+     * attributes of first file: the attributes of the second one are read only
+     * once (instead of one call per attribute).
+     *
+     * @param fOrig
+     * @param aOrig Attributes of fOrig.
+     * @param fDest
+     * @param digests Cache of digests or null.
+     * @return true if both files are equal.
+     */
+    public static boolean areEquals( final File fOrig, final BasicFileAttributes aOrig, final File fDest, final DigestCache digests )
     {
+        BasicFileAttributes aDest;
+
         try
         {
+            aDest = Files.readAttributes( fDest.toPath(), BasicFileAttributes.class );
+        }
+        catch( IOException ioe )    // Does not exist
+        {
+            return false;
+        }
+
+        return areEquals( fOrig, aOrig, fDest, aDest, digests );
+    }
+
+    /**
+     * Same as areEquals(File,BasicFileAttributes,File,DigestCache) but using
+     * the already read attributes of both files (e.g. they were read while
+     * listing their folders).
+     *
+     * @param fOrig
+     * @param aOrig Attributes of fOrig.
+     * @param fDest
+     * @param aDest Attributes of fDest.
+     * @param digests Cache of digests or null.
+     * @return true if both files are equal.
+     */
+    public static boolean areEquals( final File fOrig, final BasicFileAttributes aOrig,
+                                     final File fDest, final BasicFileAttributes aDest, final DigestCache digests )
+    {
+        if( aOrig.size() != aDest.size() )
+        {
+            return false;
+        }
+
+        long nOrig = aOrig.lastModifiedTime().toMillis();
+        long nDest = aDest.lastModifiedTime().toMillis();
+
+        if( digests == null )
+        {
+            return (nOrig / (1000*60)) == (nDest / (1000*60));
+        }
+
+        if( nOrig == nDest )
+        {
+            return true;
+        }
+
+        try
+        {
+            if( digests.digest( fOrig, aOrig ) != digests.digest( fDest, aDest ) )
+            {
+                return false;
+            }
+
             if( ! Main.isTesting() )
             {
-                Files.copy( fOri.toPath(),
-                            fDes.toPath(),
-                            StandardCopyOption.REPLACE_EXISTING,
-                            StandardCopyOption.COPY_ATTRIBUTES );
+                Files.setLastModifiedTime( fDest.toPath(), aOrig.lastModifiedTime() );
             }
 
-            Main.info( fOri + " --> copied");
+            return true;
         }
         catch( IOException ex )
         {
-            Main.log( Level.WARNING, "Error copying from: '"+ fOri +"' to '"+ fDes +"'", ex );
+            Main.log( Level.WARNING, "Error comparing '"+ fOrig +"' and '"+ fDest +"': they will be considered different", ex );
+            return false;
         }
     }
 
+    /**
+     * Returns the equivalent file in Destination folder or passed file in
+     * Origin folder.
+     *
+     * @param fOrig
+     * @param fDest
+     * @param fEntry
+     * @return
+     */
+    public static File getEquivalent( final File fOrig, final File fDest, File fEntry )
+    {
+        String sOrigPath = fOrig.getAbsolutePath();
+        String sFilePath = fEntry.getAbsolutePath();
+        String sNewPath  = sFilePath.substring( sOrigPath.length() );
+
+        return new File( fDest, sNewPath );
+    }
+
+    /**
+     * Copies a file (replacing destination if it exists) and its attributes
+     * using a Copier with default settings.
+     *
+     * @param fOri File to copy.
+     * @param fDes Where to copy it.
+     * @return true if the file was successfully copied.
+     */
+    public static boolean copy( File fOri, File fDes )
+    {
+        return copier.copy( fOri, fDes );
+    }
+
     /**
      * Deletes a file or a folder with all its contents.
      *
@@ -96,30 +207,47 @@ public class Utils
      */
     public static void delete( File file )
     {
-        if( file.isDirectory() )
+        delete( file, null );
+    }
+
+    /**
+     * Deletes a file or a folder with all its contents, waiting for passed
+     * Throttle to allow every deletion.
+     *
+     * @param file File or folder to delete.
+     * @param throttle Limits operations per second (null == no limits).
+     */
+    public static void delete( File file, Throttle throttle )
+    {
+        File[] afContents = (file.isDirectory() ? file.listFiles() : null);
+
+        if( afContents != null )           // Contents first (post-order): a folder has to be empty to be deleted
         {
-            for( File f : file.listFiles() )
+            for( File f : afContents )
             {
-                delete( f );
+                delete( f, throttle );
             }
         }
-        else
+
+        boolean bDeleted = true;
+
+        if( throttle != null )
         {
-            boolean bDeleted = true;
+            throttle.operation();
+        }
 
-            if( ! Main.isTesting() )
-            {
-                bDeleted = file.delete();
-            }
+        if( ! Main.isTesting() )
+        {
+            bDeleted = file.delete();
+        }
 
-            if( bDeleted )
-            {
-                Main.info( file + " --> deleted" );
-            }
-            else
-            {
-                Main.log( Level.WARNING, new IOException( "Can not delete: "+ file ) );
-            }
+        if( bDeleted )
+        {
+            Main.info( () -> file + " --> deleted" );
+        }
+        else
+        {
+            Main.log( Level.WARNING, new IOException( "Can not delete: "+ file ) );
         }
     }
 
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2017 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.jsync.config;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.w3c.dom.Node;
+
+/**
+ * A limit (units per second) that can be different depending on the time of
+ * the day. E.g.:
+ * <pre>
+ *    &lt;max_bandwidth&gt;2048&lt;/max_bandwidth&gt;
+ *    &lt;max_bandwidth from="09:00" to="18:00"&gt;256&lt;/max_bandwidth&gt;
+ * </pre>
+ * The value of the first time window that includes current time is used; when
+ * none includes it, the value without window is used. 0 means no limit.
+ *
+ * @author peyrona
+ */
+public final class Rate
+{
+    private final List<long[]> lstWindows = new ArrayList<>();   // {from minute, to minute, value}
+    private       long         nDefault   = 0;                   // 0 == no limit
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Returns true if there is no limit at any time of the day.
+     *
+     * @return true if there is no limit at any time of the day.
+     */
+    public boolean isEmpty()
+    {
+        if( nDefault > 0 )
+        {
+            return false;
+        }
+
+        for( long[] window : lstWindows )
+        {
+            if( window[2] > 0 )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the limit at passed time of the day.
+     *
+     * @param nMinute Minute of the day (0 to 1439).
+     * @return The limit at passed time of the day (0 == no limit).
+     */
+    public long get( int nMinute )
+    {
+        for( long[] window : lstWindows )
+        {
+            boolean bInside = (window[0] <= window[1]) ? ((nMinute >= window[0]) && (nMinute < window[1]))
+                                                       : ((nMinute >= window[0]) || (nMinute < window[1]));  // Crosses midnight
+            if( bInside )
+            {
+                return window[2];
+            }
+        }
+
+        return nDefault;
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Adds the value defined by passed node (with its "from" and "to"
+     * attributes if any).
+     *
+     * @param node XML node.
+     * @param nMultiplier Value is multiplied by this (e.g. 1024 for Kb).
+     */
+    void add( Node node, long nMultiplier )
+    {
+        long   nValue = Long.parseLong( XMLHelper.getNodeValue( node ).trim() ) * nMultiplier;
+        String sFrom  = XMLHelper.getNodeAttrValue( node, "from" ).trim();
+        String sTo    = XMLHelper.getNodeAttrValue( node, "to"   ).trim();
+
+        if( sFrom.isEmpty() && sTo.isEmpty() )
+        {
+            nDefault = nValue;
+        }
+        else
+        {
+            lstWindows.add( new long[] { toMinute( sFrom.isEmpty() ? "00:00" : sFrom ),
+                                         toMinute( sTo.isEmpty()   ? "24:00" : sTo   ),
+                                         nValue } );
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder().append( nDefault );
+
+        for( long[] window : lstWindows )
+        {
+            sb.append( ',' ).append( window[0] ).append( '-' ).append( window[1] ).append( '=' ).append( window[2] );
+        }
+
+        return sb.toString();
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private static long toMinute( String sTime )       // "HH:mm"
+    {
+        String[] asParts = sTime.split( ":" );
+
+        return (Integer.parseInt( asParts[0].trim() ) * 60) + ((asParts.length > 1) ? Integer.parseInt( asParts[1].trim() ) : 0);
+    }
+}
\ No newline at end of file
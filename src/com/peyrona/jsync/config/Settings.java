@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2017 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.jsync.config;
+
+import java.io.File;
+import java.io.IOException;
+import javax.xml.parsers.ParserConfigurationException;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * Settings that are shared by all tasks: they are defined directly under the
+ * root element of the configuration file (outside any task).
+ *
+ * @author peyrona
+ */
+public final class Settings
+{
+    private       int  nMaxIOJobs    = 0;              // 0 == no limit
+    private       int  nMetricsPort  = 0;              // 0 == no HTTP metrics
+    private final Rate rMaxBandwidth = new Rate();     // Bytes per second (adding all tasks)
+    private final Rate rMaxOpsPerSec = new Rate();     // Copies and deletions per second (adding all tasks)
+
+    //----------------------------------------------------------------------------//
+
+    public static Settings load( File fConfig )
+           throws ParserConfigurationException, SAXException, IOException
+    {
+        Settings settings = new Settings();
+        NodeList childs   = XMLHelper.getRoot( fConfig ).getChildNodes();
+
+        for( int n = 0; n < childs.getLength(); n++ )
+        {
+            Node node = childs.item( n );
+
+            if( node.getNodeType() == Node.ELEMENT_NODE )
+            {
+                String sNodeName = node.getNodeName().trim().toLowerCase();
+
+                if( "max_io_jobs".equals( sNodeName ) )
+                {
+                    settings.nMaxIOJobs = Math.max( 0, Integer.parseInt( XMLHelper.getNodeValue( node ).trim() ) );
+                }
+                else if( "metrics_port".equals( sNodeName ) )
+                {
+                    settings.nMetricsPort = Math.max( 0, Integer.parseInt( XMLHelper.getNodeValue( node ).trim() ) );
+                }
+                else if( "max_bandwidth".equals( sNodeName ) )
+                {
+                    settings.rMaxBandwidth.add( node, 1024 );
+                }
+                else if( "max_ops_per_sec".equals( sNodeName ) )
+                {
+                    settings.rMaxOpsPerSec.add( node, 1 );
+                }
+            }
+        }
+
+        return settings;
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Returns the max number of copy operations that can be running at the
+     * same time (adding the ones of all tasks).
+     *
+     * @return The max number of copy operations running at the same time: 0
+     *         means no limit.
+     */
+    public int getMaxIOJobs() { return nMaxIOJobs; }
+
+    /**
+     * Returns the (local host) port where metrics are exported in Prometheus
+     * format.
+     *
+     * @return The port where metrics are exported: 0 means they are not.
+     */
+    public int getMetricsPort() { return nMetricsPort; }
+
+    /**
+     * Returns the max bytes per second that can be written (adding all tasks).
+     *
+     * @return The max bytes per second that can be written (adding all tasks).
+     */
+    public Rate getMaxBandwidth() { return rMaxBandwidth; }
+
+    /**
+     * Returns the max copies and deletions per second (adding all tasks).
+     *
+     * @return The max copies and deletions per second (adding all tasks).
+     */
+    public Rate getMaxOpsPerSec() { return rMaxOpsPerSec; }
+}
\ No newline at end of file
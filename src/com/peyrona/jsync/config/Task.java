@@ -18,7 +18,9 @@ package com.peyrona.jsync.config;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import javax.xml.parsers.ParserConfigurationException;
 import org.w3c.dom.Node;
@@ -31,14 +33,36 @@ import org.xml.sax.SAXException;
  *
  * @author peyrona
  */
-public final class Task
+public final class Task implements Cloneable
 {
-    private String sOriginFolder;
-    private String sDestinFolder;
-    private long   nMaxFileSize = 0;   // 0 == no limit
+    private String  sName = null;          // null == derived from origin and destination
+    private String  sOriginFolder;
+    private String  sDestinFolder;         // First (or only) Destination
+    private long    nMaxFileSize = 0;      // 0 == no limit
+    private int     nParallelism = 1;      // 1 == sequential
+    private long    nQuietPeriod = 1000;   // Millis
+    private long    nDeltaThresh = 0;      // 0 == always copy whole files
+    private long    nCopyChunk   = 0;      // 0 == default
+    private int     nCopyThreads = 2;
+    private int     nWeight      = 1;      // Share of global I/O budget (relative to other tasks)
+    private long    nDestinTTL   = 0;      // Millis Destination metadata is cached (0 == strict, -1 == forever)
+    private boolean bCompareData = false;  // true == files contents are compared (using digests)
+    private boolean bIndexDirect = false;  // true == index is kept outside the Java heap
+    private boolean bPolling     = false;  // true == Origin changes are detected by polling it
+    private long    nPollPeriod  = 2000;   // Millis between polls of a folder that is changing
+    private boolean bTrash       = false;  // true == deleted Destination entries are moved into a trash
+    private long    nTrashKeep   = 0;      // Millis trashed entries are kept before being purged
+    private int     nPurgers     = 2;      // Threads purging the trash
 
-    private final Set<String> lstIgnoreFileExts    = new HashSet<>();
-    private final Set<String> lstIgnoreFolderNames = new HashSet<>();
+    private final Rate rMaxBandwidth = new Rate();     // Bytes per second
+    private final Rate rMaxOpsPerSec = new Rate();     // Copies and deletions per second
+
+    private final Set<String>  lstIgnoreFileExts    = new HashSet<>();
+    private final Set<String>  lstIgnoreFolderNames = new HashSet<>();
+    private final List<String> lstExcludes          = new ArrayList<>();    // Globs or regexes ("regex:...")
+    private final List<String> lstIncludes          = new ArrayList<>();    // Globs or regexes ("regex:...")
+    private final List<String> lstFilterFiles       = new ArrayList<>();    // .gitignore like files
+    private       List<String> lstMoreDestins       = new ArrayList<>();    // Destinations after the first one
 
     //----------------------------------------------------------------------------//
 
@@ -60,13 +84,112 @@ public final class Task
 
     //----------------------------------------------------------------------------//
 
-    public String getOriginFolder() { return sOriginFolder; }
-    public String getDestinFolder() { return sDestinFolder; }
-    public long   getMaxFileSize()  { return nMaxFileSize;  }
+    /**
+     * Returns the name of this task: used to name the files where the task
+     * state is persisted. When no name is set in the configuration file, one
+     * is derived from Origin and Destination folders.
+     *
+     * @return The name of this task.
+     */
+    public String getName()
+    {
+        String name = sName;
+
+        if( (name == null) || name.trim().isEmpty() )
+        {
+            name = new File( sOriginFolder ).getName() +'-'+
+                   Integer.toHexString( (sOriginFolder +'|'+ sDestinFolder).hashCode() );
+        }
+
+        return name.trim().replaceAll( "[^A-Za-z0-9._-]", "_" );
+    }
+
+    /**
+     * Returns all Destination folders (Origin is replicated into every one).
+     *
+     * @return All Destination folders.
+     */
+    public List<String> getDestinFolders()
+    {
+        List<String> lst = new ArrayList<>();
+                     lst.add( sDestinFolder );
+                     lst.addAll( lstMoreDestins );
+
+        return lst;
+    }
+
+    /**
+     * Returns one task per Destination: all of them equal to this one except
+     * for their Destination folder and name (the state of every Destination
+     * is kept in its own files). When there is only one Destination, the
+     * returned list contains this task.
+     *
+     * @return One task per Destination.
+     */
+    public List<Task> perDestination()
+    {
+        List<Task> lstTasks = new ArrayList<>();
+
+        if( lstMoreDestins.isEmpty() )
+        {
+            lstTasks.add( this );
+            return lstTasks;
+        }
+
+        List<String> lstDestins = getDestinFolders();
+
+        for( int n = 0; n < lstDestins.size(); n++ )
+        {
+            try
+            {
+                Task task = (Task) clone();
+                     task.sDestinFolder  = lstDestins.get( n );
+                     task.lstMoreDestins = new ArrayList<>();
+
+                if( (n > 0) && (sName != null) && (! sName.trim().isEmpty()) )
+                {
+                    task.sName = sName.trim() +'-'+ (n + 1);
+                }
+
+                lstTasks.add( task );
+            }
+            catch( CloneNotSupportedException cnse )
+            {
+                throw new IllegalStateException( cnse );     // Can not happen
+            }
+        }
+
+        return lstTasks;
+    }
+
+    public String  getOriginFolder() { return sOriginFolder; }
+    public String  getDestinFolder() { return sDestinFolder; }
+    public long    getMaxFileSize()  { return nMaxFileSize;  }
+    public int     getParallelism()  { return nParallelism;  }
+    public long    getQuietPeriod()  { return nQuietPeriod;  }
+    public long    getDeltaThresh()  { return nDeltaThresh;  }
+    public long    getCopyChunk()    { return nCopyChunk;    }
+    public int     getCopyThreads()  { return nCopyThreads;  }
+    public int     getWeight()       { return nWeight;       }
+    public long    getDestinTTL()    { return nDestinTTL;    }
+    public boolean isCompareData()   { return bCompareData;  }
+    public boolean isIndexOffHeap()  { return bIndexDirect;  }
+    public boolean isPolling()       { return bPolling;      }
+    public long    getPollInterval() { return nPollPeriod;   }
+    public boolean isTrash()         { return bTrash;        }
+    public long    getTrashKeep()    { return nTrashKeep;    }
+    public int     getPurgeThreads() { return nPurgers;      }
+
+    public Rate    getMaxBandwidth() { return rMaxBandwidth; }
+    public Rate    getMaxOpsPerSec() { return rMaxOpsPerSec; }
 
     public Set<String> getIgnoreFileExts() { return lstIgnoreFileExts;    }
     public Set<String> getFolderNames()    { return lstIgnoreFolderNames; }
 
+    public List<String> getExcludes()    { return lstExcludes;    }
+    public List<String> getIncludes()    { return lstIncludes;    }
+    public List<String> getFilterFiles() { return lstFilterFiles; }
+
     //----------------------------------------------------------------------------//
 
     private static Task configureTask( Task task, NodeList childs )
@@ -79,18 +202,95 @@ public final class Task
             {
                 String sNodeName = node.getNodeName().trim().toLowerCase();
 
-                if( "origin".equals( sNodeName ) )
+                if( "name".equals( sNodeName ) )
+                {
+                    task.sName = XMLHelper.getNodeValue( node );
+                }
+                else if( "origin".equals( sNodeName ) )
                 {
                     task.sOriginFolder = XMLHelper.getNodeValue( node );
                 }
                 else if( "destination".equals( sNodeName ) )
                 {
-                    task.sDestinFolder = XMLHelper.getNodeValue( node );
+                    if( task.sDestinFolder == null )
+                    {
+                        task.sDestinFolder = XMLHelper.getNodeValue( node );
+                    }
+                    else
+                    {
+                        task.lstMoreDestins.add( XMLHelper.getNodeValue( node ) );
+                    }
                 }
                 else if( "max_file_size".equals( sNodeName ) )
                 {
                     task.nMaxFileSize = Long.parseLong( XMLHelper.getNodeValue( node ) ) * 1024;
                 }
+                else if( "parallelism".equals( sNodeName ) )
+                {
+                    task.nParallelism = Math.max( 1, Integer.parseInt( XMLHelper.getNodeValue( node ).trim() ) );
+                }
+                else if( "quiet_period".equals( sNodeName ) )
+                {
+                    task.nQuietPeriod = Long.parseLong( XMLHelper.getNodeValue( node ).trim() );
+                }
+                else if( "delta_threshold".equals( sNodeName ) )
+                {
+                    task.nDeltaThresh = Long.parseLong( XMLHelper.getNodeValue( node ).trim() ) * 1024;
+                }
+                else if( "copy_chunk".equals( sNodeName ) )
+                {
+                    task.nCopyChunk = Long.parseLong( XMLHelper.getNodeValue( node ).trim() ) * 1024;
+                }
+                else if( "copy_threads".equals( sNodeName ) )
+                {
+                    task.nCopyThreads = Math.max( 1, Integer.parseInt( XMLHelper.getNodeValue( node ).trim() ) );
+                }
+                else if( "weight".equals( sNodeName ) )
+                {
+                    task.nWeight = Math.max( 1, Integer.parseInt( XMLHelper.getNodeValue( node ).trim() ) );
+                }
+                else if( "destin_cache".equals( sNodeName ) )
+                {
+                    long nSecs = Long.parseLong( XMLHelper.getNodeValue( node ).trim() );
+
+                    task.nDestinTTL = (nSecs < 0) ? -1 : nSecs * 1000;
+                }
+                else if( "compare".equals( sNodeName ) )
+                {
+                    task.bCompareData = "content".equalsIgnoreCase( XMLHelper.getNodeValue( node ).trim() );
+                }
+                else if( "index_memory".equals( sNodeName ) )
+                {
+                    task.bIndexDirect = "off-heap".equalsIgnoreCase( XMLHelper.getNodeValue( node ).trim() );
+                }
+                else if( "watcher".equals( sNodeName ) )
+                {
+                    task.bPolling = "polling".equalsIgnoreCase( XMLHelper.getNodeValue( node ).trim() );
+                }
+                else if( "poll_interval".equals( sNodeName ) )
+                {
+                    task.nPollPeriod = Long.parseLong( XMLHelper.getNodeValue( node ).trim() );
+                }
+                else if( "delete_mode".equals( sNodeName ) )
+                {
+                    task.bTrash = "trash".equalsIgnoreCase( XMLHelper.getNodeValue( node ).trim() );
+                }
+                else if( "trash_retention".equals( sNodeName ) )
+                {
+                    task.nTrashKeep = Math.max( 0, Long.parseLong( XMLHelper.getNodeValue( node ).trim() ) ) * 1000;
+                }
+                else if( "purge_threads".equals( sNodeName ) )
+                {
+                    task.nPurgers = Math.max( 1, Integer.parseInt( XMLHelper.getNodeValue( node ).trim() ) );
+                }
+                else if( "max_bandwidth".equals( sNodeName ) )
+                {
+                    task.rMaxBandwidth.add( node, 1024 );
+                }
+                else if( "max_ops_per_sec".equals( sNodeName ) )
+                {
+                    task.rMaxOpsPerSec.add( node, 1 );
+                }
                 else if( "ignore_file_ext".equals( sNodeName ) )
                 {
                     task.lstIgnoreFileExts.add( XMLHelper.getNodeValue( node ) );
@@ -99,6 +299,18 @@ public final class Task
                 {
                     task.lstIgnoreFolderNames.add( XMLHelper.getNodeValue( node ) );
                 }
+                else if( "exclude".equals( sNodeName ) )
+                {
+                    task.lstExcludes.add( XMLHelper.getNodeValue( node ).trim() );
+                }
+                else if( "include".equals( sNodeName ) )
+                {
+                    task.lstIncludes.add( XMLHelper.getNodeValue( node ).trim() );
+                }
+                else if( "filter_file".equals( sNodeName ) )
+                {
+                    task.lstFilterFiles.add( XMLHelper.getNodeValue( node ).trim() );
+                }
             }
         }
 
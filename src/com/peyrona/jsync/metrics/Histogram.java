@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2017 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.jsync.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of durations (in millis) using fixed buckets: recording a value
+ * only increments two adders (no locks), so it can be used in the hot path.
+ *
+ * @author peyrona
+ */
+final class Histogram
+{
+    static final long[] anBOUNDS = { 1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000 };    // Upper bounds (millis)
+
+    private final LongAdder[]     aBuckets = new LongAdder[ anBOUNDS.length + 1 ];    // Last one == +Inf
+    private final LongAdder       sum      = new LongAdder();
+    private final LongAccumulator max      = new LongAccumulator( Math::max, 0 );
+
+    //----------------------------------------------------------------------------//
+
+    Histogram()
+    {
+        for( int n = 0; n < aBuckets.length; n++ )
+        {
+            aBuckets[n] = new LongAdder();
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+
+    void record( long nMillis )
+    {
+        int n = 0;
+
+        while( (n < anBOUNDS.length) && (nMillis > anBOUNDS[n]) )
+        {
+            n++;
+        }
+
+        aBuckets[n].increment();
+        sum.add( nMillis );
+        max.accumulate( nMillis );
+    }
+
+    long getCount()
+    {
+        long nCount = 0;
+
+        for( LongAdder bucket : aBuckets )
+        {
+            nCount += bucket.sum();
+        }
+
+        return nCount;
+    }
+
+    long getSum()
+    {
+        return sum.sum();
+    }
+
+    long getMax()
+    {
+        return max.get();
+    }
+
+    double getMean()
+    {
+        long nCount = getCount();
+
+        return (nCount == 0) ? 0 : ((double) getSum() / nCount);
+    }
+
+    /**
+     * Returns the cumulative count of every bucket (as Prometheus needs them):
+     * last one is the total count.
+     *
+     * @return The cumulative count of every bucket.
+     */
+    long[] getCumulative()
+    {
+        long[] anCounts = new long[ aBuckets.length ];
+        long   nTotal   = 0;
+
+        for( int n = 0; n < aBuckets.length; n++ )
+        {
+            nTotal     += aBuckets[n].sum();
+            anCounts[n] = nTotal;
+        }
+
+        return anCounts;
+    }
+}
\ No newline at end of file
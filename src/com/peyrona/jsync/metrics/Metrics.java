@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2017 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.jsync.metrics;
+
+import com.peyrona.jsync.Main;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+import java.util.logging.Level;
+import javax.management.ObjectName;
+
+/**
+ * Counters, histograms and gauges of one task.
+ * <p>
+ * Counters and histograms are updated from the hot path using adders (no
+ * locks); gauges (queue depths) are only evaluated when they are read.
+ * Every instance is registered as a JMX MBean and can be exported in
+ * Prometheus format (see MetricsServer).
+ *
+ * @author peyrona
+ */
+public final class Metrics implements MetricsMBean
+{
+    private static final Map<String,Metrics> mapAll = new ConcurrentHashMap<>();    // Task name -> its metrics
+
+    private final String    sTask;
+    private final LongAdder filesScanned = new LongAdder();
+    private final LongAdder filesCopied  = new LongAdder();
+    private final LongAdder bytesCopied  = new LongAdder();
+    private final LongAdder filesDeleted = new LongAdder();
+    private final LongAdder filesMoved   = new LongAdder();
+    private final LongAdder events       = new LongAdder();
+    private final LongAdder overflows    = new LongAdder();
+    private final LongAdder rescans      = new LongAdder();
+    private final LongAdder errors       = new LongAdder();
+    private final Histogram copyLatency  = new Histogram();
+    private final Histogram replLag      = new Histogram();      // From the event to the change applied in Destination
+
+    private volatile IntSupplier changeQueue  = () -> 0;
+    private volatile IntSupplier compareQueue = () -> 0;
+    private volatile IntSupplier copyQueue    = () -> 0;
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Returns the metrics of passed task (they are created the first time).
+     *
+     * @param sTask Task name.
+     * @return The metrics of passed task.
+     */
+    public static Metrics get( String sTask )
+    {
+        return mapAll.computeIfAbsent( sTask, Metrics::new );
+    }
+
+    /**
+     * Returns the metrics of all tasks.
+     *
+     * @return The metrics of all tasks.
+     */
+    public static Collection<Metrics> getAll()
+    {
+        return new ArrayList<>( mapAll.values() );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    public void scanned()                { filesScanned.increment(); }
+    public void deleted()                { filesDeleted.increment(); }
+    public void moved()                  { filesMoved.increment();   }
+    public void event()                  { events.increment();       }
+    public void overflow()               { overflows.increment();    }
+    public void rescanned()              { rescans.increment();      }
+    public void error()                  { errors.increment();       }
+    public void replicated( long nLag )  { replLag.record( nLag );   }
+
+    /**
+     * A file was copied.
+     *
+     * @param nBytes File size.
+     * @param nMillis Time spent copying it.
+     */
+    public void copied( long nBytes, long nMillis )
+    {
+        filesCopied.increment();
+        bytesCopied.add( nBytes );
+        copyLatency.record( nMillis );
+    }
+
+    /**
+     * Sets the functions that return current depth of the queues.
+     *
+     * @param changes Changes waiting in the ChangeQueue.
+     * @param compare Jobs waiting in the compare stage.
+     * @param copy Jobs waiting in the copy stage.
+     */
+    public void setQueues( IntSupplier changes, IntSupplier compare, IntSupplier copy )
+    {
+        this.changeQueue  = changes;
+        this.compareQueue = compare;
+        this.copyQueue    = copy;
+    }
+
+    public String getTask() { return sTask; }
+
+    //----------------------------------------------------------------------------//
+    // BY IMPLEMENTING MetricsMBean
+
+    @Override public long   getFilesScanned()             { return filesScanned.sum();         }
+    @Override public long   getFilesCopied()              { return filesCopied.sum();          }
+    @Override public long   getBytesCopied()              { return bytesCopied.sum();          }
+    @Override public long   getFilesDeleted()             { return filesDeleted.sum();         }
+    @Override public long   getFilesMoved()               { return filesMoved.sum();           }
+    @Override public long   getEvents()                   { return events.sum();               }
+    @Override public long   getOverflows()                { return overflows.sum();            }
+    @Override public long   getRescans()                  { return rescans.sum();              }
+    @Override public long   getErrors()                   { return errors.sum();               }
+    @Override public int    getChangeQueueDepth()         { return changeQueue.getAsInt();     }
+    @Override public int    getCompareQueueDepth()        { return compareQueue.getAsInt();    }
+    @Override public int    getCopyQueueDepth()           { return copyQueue.getAsInt();       }
+    @Override public long   getCopyCount()                { return copyLatency.getCount();     }
+    @Override public double getCopyLatencyMeanMillis()    { return copyLatency.getMean();      }
+    @Override public long   getCopyLatencyMaxMillis()     { return copyLatency.getMax();       }
+    @Override public long   getReplicationCount()         { return replLag.getCount();         }
+    @Override public double getReplicationLagMeanMillis() { return replLag.getMean();          }
+    @Override public long   getReplicationLagMaxMillis()  { return replLag.getMax();           }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Appends the metrics of all tasks in Prometheus text format.
+     *
+     * @param sb Where to append.
+     */
+    static void toPrometheus( StringBuilder sb )
+    {
+        Collection<Metrics> all = getAll();
+
+        simple( sb, all, "files_scanned_total", "Files and folders visited while scanning Origin" , "counter", m -> m.getFilesScanned() );
+        simple( sb, all, "files_copied_total" , "Files copied into Destination"                  , "counter", m -> m.getFilesCopied()  );
+        simple( sb, all, "bytes_copied_total" , "Bytes copied into Destination"                  , "counter", m -> m.getBytesCopied()  );
+        simple( sb, all, "files_deleted_total", "Files and folders deleted in Destination"       , "counter", m -> m.getFilesDeleted() );
+        simple( sb, all, "files_moved_total"  , "Files and folders renamed in Destination"       , "counter", m -> m.getFilesMoved()   );
+        simple( sb, all, "events_total"       , "File system events received from Origin"        , "counter", m -> m.getEvents()       );
+        simple( sb, all, "overflows_total"    , "File system events lost (overflow)"             , "counter", m -> m.getOverflows()    );
+        simple( sb, all, "rescans_total"      , "Folders rescanned after losing their events"    , "counter", m -> m.getRescans()     );
+        simple( sb, all, "errors_total"       , "Operations that failed"                         , "counter", m -> m.getErrors()       );
+        simple( sb, all, "change_queue_depth" , "Changes waiting their quiet period"             , "gauge"  , m -> m.getChangeQueueDepth()  );
+        simple( sb, all, "compare_queue_depth", "Files waiting to be compared"                   , "gauge"  , m -> m.getCompareQueueDepth() );
+        simple( sb, all, "copy_queue_depth"   , "Operations waiting to be applied in Destination", "gauge"  , m -> m.getCopyQueueDepth()    );
+        histogram( sb, all, "copy_latency_seconds"   , "Time spent copying a file"                          , m -> m.copyLatency );
+        histogram( sb, all, "replication_lag_seconds", "Time from an Origin event to its Destination change", m -> m.replLag     );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private Metrics( String sTask )
+    {
+        this.sTask = sTask;
+
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer()
+                             .registerMBean( this, new ObjectName( "com.peyrona.jsync:type=Task,name="+ ObjectName.quote( sTask ) ) );
+        }
+        catch( Exception exc )
+        {
+            Main.log( Level.WARNING, "Can not register JMX metrics for task '"+ sTask +"'", exc );
+        }
+    }
+
+    private String label()
+    {
+        return "{"+ taskLabel() +"}";
+    }
+
+    private String taskLabel()
+    {
+        return "task=\""+ sTask.replace( "\\", "\\\\" ).replace( "\"", "\\\"" ) +"\"";
+    }
+
+    private static void simple( StringBuilder sb, Collection<Metrics> all, String sName, String sHelp, String sType, Value value )
+    {
+        header( sb, sName, sHelp, sType );
+
+        for( Metrics m : all )
+        {
+            sb.append( "jsync_" ).append( sName ).append( m.label() ).append( ' ' ).append( value.of( m ) ).append( '\n' );
+        }
+    }
+
+    private static void histogram( StringBuilder sb, Collection<Metrics> all, String sName, String sHelp, Function<Metrics,Histogram> getter )
+    {
+        header( sb, sName, sHelp, "histogram" );
+
+        for( Metrics m : all )
+        {
+            Histogram histo    = getter.apply( m );
+            long[]    anCounts = histo.getCumulative();
+            String    sTaskLbl = m.taskLabel();
+
+            for( int n = 0; n < anCounts.length; n++ )
+            {
+                String sLe = (n < Histogram.anBOUNDS.length) ? String.valueOf( Histogram.anBOUNDS[n] / 1000d ) : "+Inf";
+
+                sb.append( "jsync_" ).append( sName ).append( "_bucket{" ).append( sTaskLbl ).append( ",le=\"" ).append( sLe ).append( "\"} " )
+                  .append( anCounts[n] ).append( '\n' );
+            }
+
+            sb.append( "jsync_" ).append( sName ).append( "_sum" ).append( m.label() ).append( ' ' ).append( histo.getSum() / 1000d ).append( '\n' );
+            sb.append( "jsync_" ).append( sName ).append( "_count" ).append( m.label() ).append( ' ' ).append( anCounts[anCounts.length - 1] ).append( '\n' );
+        }
+    }
+
+    private static void header( StringBuilder sb, String sName, String sHelp, String sType )
+    {
+        sb.append( "# HELP jsync_" ).append( sName ).append( ' ' ).append( sHelp ).append( '\n' )
+          .append( "# TYPE jsync_" ).append( sName ).append( ' ' ).append( sType ).append( '\n' );
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+
+    private interface Value
+    {
+        long of( Metrics m );
+    }
+}
\ No newline at end of file
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2017 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.jsync.metrics;
+
+/**
+ * Metrics of a task as they are seen through JMX.
+ *
+ * @author peyrona
+ */
+public interface MetricsMBean
+{
+    long   getFilesScanned();
+    long   getFilesCopied();
+    long   getBytesCopied();
+    long   getFilesDeleted();
+    long   getFilesMoved();
+    long   getEvents();
+    long   getOverflows();
+    long   getRescans();
+    long   getErrors();
+
+    int    getChangeQueueDepth();
+    int    getCompareQueueDepth();
+    int    getCopyQueueDepth();
+
+    long   getCopyCount();
+    double getCopyLatencyMeanMillis();
+    long   getCopyLatencyMaxMillis();
+
+    long   getReplicationCount();
+    double getReplicationLagMeanMillis();
+    long   getReplicationLagMaxMillis();
+}
\ No newline at end of file
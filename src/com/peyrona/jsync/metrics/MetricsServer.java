@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2017 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.jsync.metrics;
+
+import com.peyrona.jsync.Main;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+
+/**
+ * A tiny HTTP server (only reachable from local host) that exports the metrics
+ * of all tasks in Prometheus text format at "/metrics".
+ *
+ * @author peyrona
+ */
+public final class MetricsServer
+{
+    private MetricsServer()
+    {
+        // Avoid this class instances creation
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Starts the server.
+     *
+     * @param nPort Port to listen at.
+     */
+    public static void start( int nPort )
+    {
+        try
+        {
+            HttpServer server = HttpServer.create( new InetSocketAddress( InetAddress.getLoopbackAddress(), nPort ), 0 );
+                       server.createContext( "/metrics", MetricsServer::handle );
+                       server.setExecutor( null );     // Scrapes are served by the server thread
+                       server.start();
+
+            Main.info( "Metrics available at http://localhost:"+ nPort +"/metrics" );
+        }
+        catch( IOException ioe )
+        {
+            Main.log( Level.WARNING, "Can not start metrics server at port "+ nPort, ioe );
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private static void handle( HttpExchange exchange ) throws IOException
+    {
+        StringBuilder sb = new StringBuilder( 4096 );
+
+        Metrics.toPrometheus( sb );
+
+        byte[] abBody = sb.toString().getBytes( StandardCharsets.UTF_8 );
+
+        exchange.getResponseHeaders().set( "Content-Type", "text/plain; version=0.0.4; charset=utf-8" );
+        exchange.sendResponseHeaders( 200, abBody.length );
+
+        try( OutputStream os = exchange.getResponseBody() )
+        {
+            os.write( abBody );
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,654 @@
+/*
+ * Copyright (C) 2017 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.jsync.synchronizer;
+
+import com.peyrona.jsync.Main;
+import com.peyrona.jsync.metrics.Metrics;
+import static com.peyrona.jsync.Main.sAPP_NAME;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Receives the changes detected by the Watcher and applies them into
+ * Destination once they are stable.
+ * <p>
+ * Changes are kept by path: all changes received for the same path are merged
+ * into one (e.g. a create followed by a delete cancels each other) and every
+ * new change restarts the quiet period of its path. An entry that was deleted
+ * and created again is replaced: what Destination has is deleted when the old
+ * or the new entry is a folder (a recreated folder must not keep the old
+ * contents) and then the new entry is synchronized. When the quiet period
+ * expires, files are copied only if their size and last modified time did not
+ * change since last change was received; otherwise they wait one more quiet
+ * period. This way, a file that is written many times in a burst is copied
+ * only once.
+ * <p>
+ * Changes of files are applied by the copy Stage (many at once), but never two
+ * changes of the same path at the same time. New folders are synchronized by
+ * this thread (that itself passes their files to the pipeline stages and waits
+ * for them: a job of the copy Stage can not do it, it would wait for itself).
+ * Whether a change is of a folder is decided when it is applied (its type
+ * could have changed since it was received).
+ * <p>
+ * When a folder is deleted, waiting deletes of its contents are discarded: the
+ * folder is deleted at once.
+ * <p>
+ * When the Watcher loses events of a folder (overflow), the folder is rescanned
+ * by this thread too. Rescans of the same folder are merged and a folder is not
+ * rescanned more than once every few seconds, so an events storm does not
+ * become a storm of rescans.
+ * <p>
+ * A rename or move is received as a delete plus a create. When the created
+ * entry has the same file key that the index has for a deleted one that is
+ * still waiting, both are paired and the entry is moved in Destination instead
+ * of being deleted and copied again.
+ * <p>
+ * This queue is started before the initial synchronization (FullSync), so
+ * changes are not missed while it runs: a change is applied only when FullSync
+ * grants it (once the part of Origin where it happened was reconciled);
+ * meanwhile it waits in the queue (and it is merged with newer changes).
+ *
+ * @author peyrona
+ */
+final class ChangeQueue extends Thread
+{
+    enum Kind { CREATE, MODIFY, DELETE, RESCAN, MOVE, REPLACE }
+
+    private static final long nRESCAN_INTERVAL = 5000;                     // Min millis between 2 rescans of same folder
+    private static final long nHOLD_INTERVAL   = 250;                      // Millis between 2 claims of a change not granted
+
+    private final FullSync            fullSync;
+    private final Stage               stgCopy;
+    private final long                nQuiet;                                // Millis
+    private final Metrics             metrics;
+    private final Map<Path,Pending>   mapPending = new LinkedHashMap<>();    // Guarded by 'this'
+    private final Set<Path>           setBusy    = new HashSet<>();          // Paths being applied (guarded by 'this')
+    private final Map<Path,Long>      mapRescan  = new HashMap<>();          // Folder -> when it was rescanned (guarded by 'this')
+    private final Map<String,Pending> mapDeleted = new HashMap<>();          // File key -> Waiting delete (guarded by 'this')
+    private final Map<Path,Pending>   mapMoved   = new HashMap<>();          // Old path -> Waiting move (guarded by 'this')
+
+    //----------------------------------------------------------------------------//
+
+    ChangeQueue( FullSync fullSync, Stage stgCopy, long nQuietPeriod, Metrics metrics )
+    {
+        super( sAPP_NAME +":"+ ChangeQueue.class.getSimpleName() );
+
+        this.fullSync = fullSync;
+        this.stgCopy  = stgCopy;
+        this.nQuiet   = Math.max( 0, nQuietPeriod );
+        this.metrics  = metrics;
+    }
+
+    //----------------------------------------------------------------------------//
+
+    @Override
+    public void run()
+    {
+        while( ! isInterrupted() )
+        {
+            List<Pending> lstDue;
+
+            try
+            {
+                lstDue = takeDue();
+            }
+            catch( InterruptedException ie )
+            {
+                return;
+            }
+
+            for( final Pending pending : lstDue )
+            {
+                if( isFolder( pending ) )
+                {
+                    applyAndRelease( pending );
+                }
+                else
+                {
+                    stgCopy.submit( () -> applyAndRelease( pending ) );
+                }
+            }
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * A file or folder was created.
+     *
+     * @param path Created entry.
+     * @param attrs Its attributes (null if they could not be read).
+     */
+    void created( Path path, BasicFileAttributes attrs )
+    {
+        add( path, Kind.CREATE, attrs );
+    }
+
+    /**
+     * A file or folder was modified.
+     *
+     * @param path Modified entry.
+     * @param attrs Its attributes (null if they could not be read).
+     */
+    void modified( Path path, BasicFileAttributes attrs )
+    {
+        add( path, Kind.MODIFY, attrs );
+    }
+
+    void deleted( Path path )
+    {
+        add( path, Kind.DELETE, null );
+    }
+
+    /**
+     * Some events of a folder were lost: its contents have to be compared with
+     * Destination.
+     *
+     * @param folder Folder which events were lost.
+     */
+    void rescan( Path folder )
+    {
+        add( folder, Kind.RESCAN, null );
+    }
+
+    /**
+     * Returns the number of changes waiting their quiet period.
+     *
+     * @return The number of changes waiting their quiet period.
+     */
+    synchronized int size()
+    {
+        return mapPending.size();
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private void add( Path path, Kind kind, BasicFileAttributes attrs )
+    {
+        synchronized( this )
+        {
+            Pending moved = mapMoved.remove( path );
+
+            if( moved != null )               // Something new at the old path of a move: it is not moved
+            {
+                moved.pFrom = null;
+                moved.kind  = (moved.kind == Kind.MOVE) ? Kind.CREATE : moved.kind;
+            }
+
+            Pending pending = mapPending.get( path );
+            Kind    before  = (pending == null) ? null : pending.kind;
+
+            if( pending == null )
+            {
+                pending = new Pending( path, kind );
+                mapPending.put( path, pending );
+
+                if( kind == Kind.DELETE )
+                {
+                    waitMove( pending );
+                }
+                else if( (kind == Kind.CREATE) && (attrs != null) )
+                {
+                    pairMove( pending, attrs );
+                }
+            }
+            else
+            {
+                pending.kind = merge( pending.kind, kind );
+
+                if( pending.kind == null )    // They cancel each other
+                {
+                    mapPending.remove( path );
+                    Main.info( () -> path +": created and deleted in Origin. Nothing to do." );
+                    return;
+                }
+            }
+
+            if( kind == Kind.DELETE )
+            {
+                dropContents( path );
+            }
+
+            if( attrs != null )
+            {
+                pending.observe( attrs );     // Just to store current size and modified time
+            }
+
+            if( pending.kind != Kind.RESCAN )
+            {
+                pending.nDue = System.currentTimeMillis() + nQuiet;
+            }
+            else if( before != Kind.RESCAN )  // Rescans are merged: the first one sets when
+            {
+                Long nLast = mapRescan.get( path );
+
+                pending.bFolder = true;
+                pending.nDue    = Math.max( System.currentTimeMillis() + nQuiet,
+                                            (nLast == null) ? 0 : nLast + nRESCAN_INTERVAL );
+            }
+
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits until there is at least one change which quiet period expired and
+     * returns all of them (removing them from the queue). Changes of paths that
+     * are still being applied have to wait.
+     */
+    private synchronized List<Pending> takeDue() throws InterruptedException
+    {
+        List<Pending> lstDue = new ArrayList<>();
+
+        while( lstDue.isEmpty() )
+        {
+            long nNow  = System.currentTimeMillis();
+            long nNext = Long.MAX_VALUE;
+
+            for( Iterator<Pending> itera = mapPending.values().iterator(); itera.hasNext(); )
+            {
+                Pending pending = itera.next();
+
+                if( setBusy.contains( pending.path ) || ((pending.pFrom != null) && setBusy.contains( pending.pFrom )) )
+                {
+                    continue;                 // Will be notified when released
+                }
+
+                if( (pending.nDue <= nNow) && (! claim( pending )) )
+                {
+                    nNext = Math.min( nNext, nNow + nHOLD_INTERVAL );
+                }
+                else if( pending.nDue <= nNow )
+                {
+                    lstDue.add( pending );
+                    setBusy.add( pending.path );
+                    itera.remove();
+
+                    if( pending.sKey != null )
+                    {
+                        mapDeleted.remove( pending.sKey, pending );
+                    }
+
+                    if( pending.pFrom != null )
+                    {
+                        mapMoved.remove( pending.pFrom, pending );
+                        setBusy.add( pending.pFrom );
+                    }
+                }
+                else
+                {
+                    nNext = Math.min( nNext, pending.nDue );
+                }
+            }
+
+            if( lstDue.isEmpty() )
+            {
+                wait( (nNext == Long.MAX_VALUE) ? 0 : (nNext - nNow) );
+            }
+        }
+
+        return lstDue;
+    }
+
+    private void applyAndRelease( Pending pending )
+    {
+        try
+        {
+            apply( pending );
+        }
+        finally
+        {
+            fullSync.release( pending.path );
+
+            if( pending.pFrom != null )
+            {
+                fullSync.release( pending.pFrom );
+            }
+
+            synchronized( this )
+            {
+                setBusy.remove( pending.path );
+
+                if( pending.pFrom != null )
+                {
+                    setBusy.remove( pending.pFrom );
+                }
+
+                notifyAll();
+            }
+        }
+    }
+
+    private void apply( Pending pending )
+    {
+        Path path = pending.path;
+
+        if( (Thread.currentThread() != this) && isFolder( pending ) )    // Became a folder after ::run() checked it
+        {
+            requeue( pending );
+            return;
+        }
+
+        if( pending.kind == Kind.RESCAN )
+        {
+            rescanned( path );
+
+            if( Files.isDirectory( path ) )   // If it was deleted, its delete event will come
+            {
+                fullSync.rescan( path );
+                metrics.rescanned();
+                Main.info( () -> path +": events were lost. Folder rescanned." );
+            }
+
+            return;
+        }
+
+        if( pending.kind == Kind.MOVE )
+        {
+            BasicFileAttributes attrs = readAttributes( path );
+
+            if( (attrs != null) && fullSync.move( pending.pFrom, path, attrs ) )
+            {
+                metrics.replicated( System.currentTimeMillis() - pending.nSince );
+                Main.info( () -> pending.pFrom +": detected to be moved in Origin to "+ path +". Moved in Destination." );
+                return;
+            }
+
+            pending.kind = Kind.CREATE;       // Could not be moved: deleted and copied
+        }
+
+        if( pending.pFrom != null )           // Was moved and later changed again
+        {
+            fullSync.delete( pending.pFrom );
+        }
+
+        if( pending.kind == Kind.DELETE )
+        {
+            fullSync.delete( path );
+            metrics.replicated( System.currentTimeMillis() - pending.nSince );
+            Main.info( () -> path +": detected to be deleted in Origin. Deleting in Destination." );
+            return;
+        }
+
+        BasicFileAttributes attrs = readAttributes( path );
+
+        if( attrs == null )                   // It was deleted: its delete event will come
+        {
+            return;
+        }
+
+        if( pending.kind == Kind.REPLACE )    // Deleted and created again: the old entry is not wanted
+        {
+            fullSync.replace( path, attrs );
+            pending.kind = Kind.CREATE;
+        }
+
+        if( attrs.isDirectory() )
+        {
+            if( pending.kind == Kind.CREATE ) // Changes inside a folder are notified by its own key
+            {
+                fullSync.sync( path );
+                metrics.replicated( System.currentTimeMillis() - pending.nSince );
+                Main.info( () -> path +": folder detected to be created in Origin. Copied to Destination." );
+            }
+        }
+        else if( ! pending.observe( attrs ) )
+        {
+            requeue( pending );
+        }
+        else if( fullSync.copy( path, attrs ) )
+        {
+            metrics.replicated( System.currentTimeMillis() - pending.nSince );
+            Main.info( () -> path +": detected to be changed in Origin. Copied to Destination." );
+        }
+    }
+
+    /**
+     * Asks FullSync permission to apply passed change (while the initial
+     * synchronization runs, only changes in reconciled parts of Origin can be
+     * applied).
+     */
+    private boolean claim( Pending pending )
+    {
+        boolean bFolder = pending.bFolder || (pending.kind == Kind.RESCAN);
+
+        if( ! fullSync.claim( pending.path, bFolder ) )
+        {
+            return false;
+        }
+
+        if( (pending.pFrom != null) && (! fullSync.claim( pending.pFrom, bFolder )) )
+        {
+            fullSync.release( pending.path );
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Waits one more quiet period for a file that is still being written (or
+     * for a change that has to be applied by this thread), unless a newer
+     * change for the same path was received meanwhile.
+     */
+    private synchronized void requeue( Pending pending )
+    {
+        if( ! mapPending.containsKey( pending.path ) )
+        {
+            pending.nDue = System.currentTimeMillis() + nQuiet;
+            mapPending.put( pending.path, pending );
+
+            if( pending.pFrom != null )
+            {
+                mapMoved.putIfAbsent( pending.pFrom, pending );
+            }
+
+            notifyAll();
+        }
+    }
+
+    /**
+     * Returns true if applying passed change synchronizes a folder: it has to
+     * be done by this thread (see ::run()). Deleting a folder does not.
+     */
+    private static boolean isFolder( Pending pending )
+    {
+        return (pending.kind == Kind.RESCAN)
+               ||
+               ((pending.kind != Kind.DELETE) && Files.isDirectory( pending.path ));
+    }
+
+    /**
+     * Keeps a delete waiting for a create of the same entry at another path
+     * (it could be a rename or move).
+     */
+    private void waitMove( Pending pending )
+    {
+        SyncIndex.Entry entry = fullSync.getIndexed( pending.path );
+
+        if( (entry != null) && (! entry.sFileKey.isEmpty()) )
+        {
+            pending.sKey = entry.sFileKey;
+            mapDeleted.put( pending.sKey, pending );
+        }
+    }
+
+    /**
+     * Converts passed create into a move when there is a waiting delete of the
+     * same entry (the delete is removed).
+     */
+    private void pairMove( Pending pending, BasicFileAttributes attrs )
+    {
+        Object  oKey    = attrs.fileKey();
+        Pending deleted = (oKey == null) ? null : mapDeleted.get( oKey.toString() );
+
+        if( (deleted == null) || (deleted.kind != Kind.DELETE) || (deleted.pFrom != null) || (mapPending.get( deleted.path ) != deleted) )
+        {
+            return;
+        }
+
+        SyncIndex.Entry entry = fullSync.getIndexed( deleted.path );
+
+        if( (entry != null) && entry.isSameFile( attrs ) )
+        {
+            mapDeleted.remove( deleted.sKey );
+            mapPending.remove( deleted.path );
+            mapMoved.put( deleted.path, pending );
+
+            pending.kind  = Kind.MOVE;
+            pending.pFrom = deleted.path;
+        }
+    }
+
+    /**
+     * A folder was deleted: waiting deletes of its contents are not needed any
+     * more (they are deleted with the folder: a single rename when Destination
+     * has a trash). When the folder is created again before the change is
+     * applied, it is applied as a REPLACE: Destination folder is deleted (with
+     * its old contents) and then synchronized, so dropped deletes are not
+     * needed either.
+     */
+    private void dropContents( Path folder )
+    {
+        SyncIndex.Entry entry = fullSync.getIndexed( folder );
+
+        if( (entry == null) || (! entry.bFolder) )
+        {
+            return;
+        }
+
+        for( Iterator<Pending> itera = mapPending.values().iterator(); itera.hasNext(); )
+        {
+            Pending pending = itera.next();
+
+            if( (pending.kind == Kind.DELETE) && (pending.pFrom == null) && (! pending.path.equals( folder )) && pending.path.startsWith( folder ) )
+            {
+                itera.remove();
+
+                if( pending.sKey != null )
+                {
+                    mapDeleted.remove( pending.sKey, pending );
+                }
+            }
+        }
+    }
+
+    private synchronized void rescanned( Path folder )
+    {
+        long nNow = System.currentTimeMillis();
+
+        mapRescan.values().removeIf( nWhen -> nWhen + nRESCAN_INTERVAL < nNow );
+        mapRescan.put( folder, nNow );
+    }
+
+    private static BasicFileAttributes readAttributes( Path path )
+    {
+        try
+        {
+            return Files.readAttributes( path, BasicFileAttributes.class );
+        }
+        catch( IOException ioe )
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the change that is equivalent to 'before' followed by 'after' or
+     * null if they cancel each other ('after' is never a MOVE nor a REPLACE:
+     * they are not received, they are the result of merging).
+     */
+    static Kind merge( Kind before, Kind after )
+    {
+        if( before == Kind.MOVE )            // Its old path is deleted anyway (see ::apply(...))
+        {
+            return (after == Kind.DELETE) ? Kind.DELETE : Kind.MOVE;
+        }
+
+        if( after == Kind.RESCAN )           // Creating, deleting or replacing the folder includes rescanning it
+        {
+            return ((before == Kind.CREATE) || (before == Kind.DELETE) || (before == Kind.REPLACE)) ? before : Kind.RESCAN;
+        }
+
+        if( before == Kind.RESCAN )
+        {
+            return (after == Kind.MODIFY) ? Kind.RESCAN : after;
+        }
+
+        if( after == Kind.DELETE )
+        {
+            return (before == Kind.CREATE) ? null : Kind.DELETE;
+        }
+
+        if( before == Kind.DELETE )          // Deleted and created again (maybe as a folder or as a file)
+        {
+            return Kind.REPLACE;
+        }
+
+        return before;                       // CREATE + ... == CREATE; MODIFY + ... == MODIFY; REPLACE + ... == REPLACE
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+
+    private static final class Pending
+    {
+        final Path path;
+        final long nSince = System.currentTimeMillis();    // When first event was received
+        Kind kind;
+        long nDue;
+        long nSize     = -1;                 // Last observed size (-1 == not observed yet)
+        long nModified = -1;                 // Last observed modified time
+        boolean bFolder = false;             // Last observed type
+        Path    pFrom   = null;              // Old path when it was moved
+        String  sKey    = null;              // File key of a delete waiting to be paired
+
+        Pending( Path path, Kind kind )
+        {
+            this.path = path;
+            this.kind = kind;
+        }
+
+        /**
+         * Stores current size and modified time and returns true if they are the
+         * same that were observed last time.
+         */
+        boolean observe( BasicFileAttributes attrs )
+        {
+            long nNewSize     = attrs.size();
+            long nNewModified = attrs.lastModifiedTime().toMillis();
+            boolean bStable   = (nSize == nNewSize) && (nModified == nNewModified);
+
+            nSize     = nNewSize;
+            nModified = nNewModified;
+            bFolder   = attrs.isDirectory();
+
+            return bStable;
+        }
+    }
+}
\ No newline at end of file
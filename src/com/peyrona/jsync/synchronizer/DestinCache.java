@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2017 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.jsync.synchronizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Metadata (type, size and modified time) of Destination entries, so they do
+ * not have to be asked to the file system one by one (on a network mount every
+ * question is a round trip).
+ * <p>
+ * The entries of a folder are cached all at once, by listing the folder (one
+ * bulk listing per folder), and they are updated with the changes done by this
+ * application (that is expected to be the only one writing in Destination).
+ * A folder is listed again when its time-to-live expires.
+ * <p>
+ * Listings are kept sorted by folder (so the sub-folders of a folder, that
+ * are forgotten with it, are found by range) and they do not stay forever:
+ * expired listings are removed once per time-to-live and, when there are too
+ * many, the oldest half is removed.
+ * <p>
+ * When the time-to-live is 0 (strict mode), nothing is cached: every question
+ * is asked to the file system.
+ * <p>
+ * Entries are identified by their path relative to Destination folder ("" is
+ * the Destination folder itself).
+ *
+ * @author peyrona
+ */
+final class DestinCache
+{
+    private static final int nMAX_FOLDERS = 16 * 1024;     // Max cached listings
+
+    private final File                    fDesti;
+    private final long                    nTTL;       // Millis (0 == strict, -1 == forever)
+    private final TreeMap<String,Listing> mapFolders = new TreeMap<>();    // Key == relative path of the folder (guarded by 'this')
+    private       long                    nSwept     = System.currentTimeMillis();    // When expired listings were removed (guarded by 'this')
+
+    //----------------------------------------------------------------------------//
+
+    DestinCache( File fDesti, long nTTL )
+    {
+        this.fDesti = fDesti;
+        this.nTTL   = nTTL;
+    }
+
+    //----------------------------------------------------------------------------//
+
+    boolean isStrict()
+    {
+        return nTTL == 0;
+    }
+
+    /**
+     * Returns the attributes of passed Destination entry.
+     *
+     * @param sRelPath Relative path of the entry.
+     * @return The attributes of passed Destination entry or null if it does not
+     *         exist.
+     */
+    BasicFileAttributes get( String sRelPath )
+    {
+        if( isStrict() || sRelPath.isEmpty() )
+        {
+            try
+            {
+                return Files.readAttributes( new File( fDesti, sRelPath ).toPath(), BasicFileAttributes.class );
+            }
+            catch( IOException ioe )
+            {
+                return null;
+            }
+        }
+
+        return getListing( SyncIndex.getParent( sRelPath ) ).mapEntries.get( SyncIndex.getName( sRelPath ) );
+    }
+
+    /**
+     * Returns the entries of passed Destination folder (sorted by name) and
+     * their attributes: if the folder does not exist, it is empty.
+     *
+     * @param sRelFolder Relative path of the folder.
+     * @return The entries of passed Destination folder and their attributes.
+     */
+    TreeMap<String,BasicFileAttributes> list( String sRelFolder )
+    {
+        if( isStrict() )
+        {
+            return new TreeMap<>( read( sRelFolder ).mapEntries );
+        }
+
+        return new TreeMap<>( getListing( sRelFolder ).mapEntries );
+    }
+
+    /**
+     * A file was copied into Destination.
+     *
+     * @param sRelPath Relative path of the file.
+     * @param attrs Attributes of Origin file (copies have same size and modified time).
+     */
+    void copied( String sRelPath, BasicFileAttributes attrs )
+    {
+        put( sRelPath, new Attrs( false, attrs.size(), attrs.lastModifiedTime() ) );
+    }
+
+    /**
+     * A folder was created in Destination: it is known to be empty.
+     *
+     * @param sRelPath Relative path of the folder.
+     */
+    void created( String sRelPath )
+    {
+        put( sRelPath, new Attrs( true, 0, FileTime.fromMillis( System.currentTimeMillis() ) ) );
+
+        if( ! isStrict() )
+        {
+            cache( sRelPath, new Listing() );
+        }
+    }
+
+    /**
+     * An entry (and, if it is a folder, all its contents) was deleted from
+     * Destination.
+     *
+     * @param sRelPath Relative path of the entry.
+     */
+    void deleted( String sRelPath )
+    {
+        if( isStrict() || sRelPath.isEmpty() )
+        {
+            return;
+        }
+
+        Listing parent = cached( SyncIndex.getParent( sRelPath ) );
+
+        if( parent != null )
+        {
+            parent.mapEntries.remove( SyncIndex.getName( sRelPath ) );
+        }
+
+        forget( sRelPath );
+    }
+
+    /**
+     * An entry was moved in Destination. The moved folder contents are not
+     * cached any more (they will be listed again at their new place).
+     *
+     * @param sFrom Relative path of the entry.
+     * @param sTo New relative path of the entry.
+     */
+    void moved( String sFrom, String sTo )
+    {
+        if( isStrict() )
+        {
+            return;
+        }
+
+        Listing             parent = cached( SyncIndex.getParent( sFrom ) );
+        BasicFileAttributes attrs  = (parent == null) ? null : parent.mapEntries.remove( SyncIndex.getName( sFrom ) );
+
+        forget( sFrom );
+
+        if( attrs != null )
+        {
+            put( sTo, attrs );
+        }
+        else
+        {
+            forget( SyncIndex.getParent( sTo ) );
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private void put( String sRelPath, BasicFileAttributes attrs )
+    {
+        if( isStrict() || sRelPath.isEmpty() )
+        {
+            return;
+        }
+
+        Listing parent = cached( SyncIndex.getParent( sRelPath ) );
+
+        if( parent != null )              // Otherwise it will be read when its folder is listed
+        {
+            parent.mapEntries.put( SyncIndex.getName( sRelPath ), attrs );
+        }
+    }
+
+    /**
+     * Removes the cached listings of passed folder and all its sub-folders.
+     */
+    private synchronized void forget( String sRelFolder )
+    {
+        if( sRelFolder.isEmpty() )
+        {
+            mapFolders.clear();
+            return;
+        }
+
+        mapFolders.remove( sRelFolder );
+
+        // Sub-folders are the keys starting with "folder/": from "folder/" up to "folder0" ('0' follows '/')
+        mapFolders.subMap( sRelFolder + File.separatorChar, sRelFolder + (char) (File.separatorChar + 1) ).clear();
+    }
+
+    private Listing getListing( String sRelFolder )
+    {
+        Listing listing = cached( sRelFolder );
+
+        if( (listing == null) || listing.isExpired( nTTL ) )
+        {
+            listing = read( sRelFolder );
+            cache( sRelFolder, listing );
+        }
+
+        return listing;
+    }
+
+    private synchronized Listing cached( String sRelFolder )
+    {
+        return mapFolders.get( sRelFolder );
+    }
+
+    /**
+     * Caches passed listing. Expired listings are removed (once per
+     * time-to-live) and, when there are too many listings, the oldest half.
+     */
+    private synchronized void cache( String sRelFolder, Listing listing )
+    {
+        mapFolders.put( sRelFolder, listing );
+
+        long nNow = System.currentTimeMillis();
+
+        if( (nTTL > 0) && (nNow - nSwept > nTTL) )
+        {
+            mapFolders.values().removeIf( (other) -> other.isExpired( nTTL ) );
+            nSwept = nNow;
+        }
+
+        if( mapFolders.size() > nMAX_FOLDERS )
+        {
+            long[] anRead = new long[ mapFolders.size() ];
+            int    n      = 0;
+
+            for( Listing other : mapFolders.values() )
+            {
+                anRead[n++] = other.nRead;
+            }
+
+            Arrays.sort( anRead );
+
+            long nOldest = anRead[ anRead.length / 2 ];
+
+            mapFolders.values().removeIf( (other) -> (other.nRead <= nOldest) && (other != listing) );
+        }
+    }
+
+    private Listing read( String sRelFolder )
+    {
+        final Path    path    = new File( fDesti, sRelFolder ).toPath();
+        final Listing listing = new Listing();
+
+        try
+        {
+            Files.walkFileTree( path, EnumSet.noneOf( FileVisitOption.class ), 1, new SimpleFileVisitor<Path>()
+            {
+                @Override
+                public FileVisitResult visitFile( Path pEntry, BasicFileAttributes attrs )
+                {
+                    listing.mapEntries.put( pEntry.getFileName().toString(), attrs );
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed( Path pEntry, IOException exc )
+                {
+                    // Folder does not exist (it is empty) or entry can not be read (it is ignored)
+                    return (pEntry.equals( path ) ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE);
+                }
+            } );
+        }
+        catch( IOException ioe )
+        {
+            // Nothing to do: what was read so far is used
+        }
+
+        return listing;
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+
+    private static final class Listing
+    {
+        final long                            nRead      = System.currentTimeMillis();
+        final Map<String,BasicFileAttributes> mapEntries = new ConcurrentHashMap<>();
+
+        boolean isExpired( long nTTL )
+        {
+            return (nTTL > 0) && (System.currentTimeMillis() - nRead > nTTL);
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Attributes of an entry written by this application (they are not read
+     * from the file system).
+     */
+    private static final class Attrs implements BasicFileAttributes
+    {
+        private final boolean  bFolder;
+        private final long     nSize;
+        private final FileTime modified;
+
+        Attrs( boolean bFolder, long nSize, FileTime modified )
+        {
+            this.bFolder  = bFolder;
+            this.nSize    = nSize;
+            this.modified = modified;
+        }
+
+        @Override public FileTime lastModifiedTime() { return modified; }
+        @Override public FileTime lastAccessTime()   { return modified; }
+        @Override public FileTime creationTime()     { return modified; }
+        @Override public boolean  isRegularFile()    { return ! bFolder; }
+        @Override public boolean  isDirectory()      { return bFolder;   }
+        @Override public boolean  isSymbolicLink()   { return false;     }
+        @Override public boolean  isOther()          { return false;     }
+        @Override public long     size()             { return nSize;     }
+        @Override public Object   fileKey()          { return null;      }
+    }
+}
\ No newline at end of file
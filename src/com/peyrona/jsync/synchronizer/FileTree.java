@@ -0,0 +1,986 @@
+/*
+ * Copyright (C) 2017 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.jsync.synchronizer;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact in-memory tree of files and folders, able to hold tens of millions
+ * of entries using a small amount of memory.
+ * <p>
+ * There are no objects per entry: every entry (a node) is a number and its
+ * data (parent, name, size, modified time, flags, file key...) is kept in
+ * columns of primitives. Names are interned: every different name is stored
+ * once (as UTF-8) no matter how many entries have it, and paths are never
+ * stored (they are built when needed). This makes ~60 bytes per entry plus
+ * its name when the name is unique.
+ * <p>
+ * Columns can be allocated outside the Java heap (direct memory), so a big
+ * tree does not need a big heap nor makes the garbage collector slower.
+ * <p>
+ * Nodes are found by relative path (segments separated by
+ * File.separatorChar; "" is the root) and the children of a node are chained,
+ * so a subtree can be iterated without creating any object.
+ * <p>
+ * A node can be a placeholder (it has no data): it is just the parent of
+ * other nodes. Placeholders are removed when they have no children.
+ * <p>
+ * This class is not thread safe.
+ *
+ * @author peyrona
+ */
+final class FileTree
+{
+    static final int nROOT = 0;
+    static final int nNONE = -1;
+
+    private static final byte bUSED   = 0x01;     // Node is not in the free list
+    private static final byte bDATA   = 0x02;     // Node is not a placeholder
+    private static final byte bFOLDER = 0x04;
+    private static final byte bKEY    = 0x08;     // File key is kept in dev and inode columns
+    private static final byte bKEYSTR = 0x10;     // File key has an unknown format: kept in mapKeys
+
+    private final boolean bOffHeap;
+
+    // Columns of nodes (indexed by node)
+    private final Column colFlags;
+    private final Column colParent;
+    private final Column colName;
+    private final Column colFirst;                // First child
+    private final Column colNext;                 // Next sibling (next free node when in the free list)
+    private final Column colPrev;                 // Previous sibling
+    private final Column colSize;
+    private final Column colModified;
+    private final Column colDev;
+    private final Column colInode;
+    private       Column colSlots;                // Hash table: (parent,name) -> node + 1 (0 == empty)
+    private       int    nNodes    = 0;           // Nodes ever allocated
+    private       int    nLive     = 0;           // Nodes in use
+    private       int    nFreeNode = nNONE;       // First node in the free list
+
+    // Columns of names (indexed by name)
+    private final Column colOffset;               // Where it starts in colBytes (next free name when free)
+    private final Column colLength;
+    private final Column colHash;
+    private final Column colRefs;                 // Nodes having this name (0 == free)
+    private       Column colBytes;                // UTF-8 of all names
+    private       Column colNameSlots;            // Hash table: name bytes -> name + 1 (0 == empty)
+    private       int    nNames     = 0;          // Names ever allocated
+    private       int    nNamesLive = 0;          // Names in use
+    private       int    nFreeName  = nNONE;      // First name in the free list
+    private       int    nBytes     = 0;          // Used bytes in colBytes
+    private       int    nDead      = 0;          // Bytes in colBytes of names not used any more
+
+    private final Map<Integer,String> mapKeys = new HashMap<>();    // File keys with an unknown format
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Constructor.
+     *
+     * @param bOffHeap true to keep the tree outside the Java heap.
+     */
+    FileTree( boolean bOffHeap )
+    {
+        this.bOffHeap = bOffHeap;
+
+        colFlags     = new Column( 1, 1024 );
+        colParent    = new Column( 4, 1024 );
+        colName      = new Column( 4, 1024 );
+        colFirst     = new Column( 4, 1024 );
+        colNext      = new Column( 4, 1024 );
+        colPrev      = new Column( 4, 1024 );
+        colSize      = new Column( 8, 1024 );
+        colModified  = new Column( 8, 1024 );
+        colDev       = new Column( 8, 1024 );
+        colInode     = new Column( 8, 1024 );
+        colOffset    = new Column( 4, 1024 );
+        colLength    = new Column( 4, 1024 );
+        colHash      = new Column( 4, 1024 );
+        colRefs      = new Column( 4, 1024 );
+
+        clear();
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Removes all nodes: only the root (a placeholder) is left.
+     */
+    void clear()
+    {
+        colSlots     = new Column( 4, 2048 );
+        colNameSlots = new Column( 4, 2048 );
+        colBytes     = new Column( 1, 16 * 1024 );
+        nNodes       = 0;
+        nLive        = 0;
+        nFreeNode    = nNONE;
+        nNames       = 0;
+        nNamesLive   = 0;
+        nFreeName    = nNONE;
+        nBytes       = 0;
+        nDead        = 0;
+        mapKeys.clear();
+
+        int nRoot = allocNode( nNONE, nNONE );      // Root has no parent and no name
+        colFlags.putByte( nRoot, (byte) (bUSED | bFOLDER) );
+    }
+
+    /**
+     * Returns the number of nodes (placeholders and root included).
+     *
+     * @return The number of nodes.
+     */
+    int size()
+    {
+        return nLive;
+    }
+
+    /**
+     * Returns the node at passed relative path.
+     *
+     * @param sRelPath Relative path.
+     * @param bCreate When true, missing nodes are created (as placeholders).
+     * @return The node or nNONE if it does not exist (and bCreate is false).
+     */
+    int find( String sRelPath, boolean bCreate )
+    {
+        int nNode  = nROOT;
+        int nStart = 0;
+
+        while( (nNode != nNONE) && (nStart < sRelPath.length()) )
+        {
+            int nEnd = sRelPath.indexOf( File.separatorChar, nStart );
+
+            if( nEnd == -1 )
+            {
+                nEnd = sRelPath.length();
+            }
+
+            nNode  = child( nNode, sRelPath.substring( nStart, nEnd ), bCreate );
+            nStart = nEnd + 1;
+        }
+
+        return nNode;
+    }
+
+    /**
+     * Returns the child named 'sName' of passed node.
+     *
+     * @param nNode A node.
+     * @param sName Name of the child.
+     * @param bCreate When true and the child does not exist, it is created (as
+     *                a placeholder).
+     * @return The child or nNONE if it does not exist (and bCreate is false).
+     */
+    int child( int nNode, String sName, boolean bCreate )
+    {
+        byte[] abName = sName.getBytes( StandardCharsets.UTF_8 );
+        int    nName  = findName( abName, bCreate );
+
+        if( nName == nNONE )
+        {
+            return nNONE;
+        }
+
+        int nChild = findChild( nNode, nName );
+
+        if( (nChild == nNONE) && bCreate )
+        {
+            nChild = allocNode( nNode, nName );
+            link( nChild );
+        }
+
+        return nChild;
+    }
+
+    //----------------------------------------------------------------------------//
+    // NAVIGATION
+
+    int getParent( int nNode )      { return colParent.getInt( nNode ); }
+    int getFirstChild( int nNode )  { return colFirst.getInt( nNode );  }
+    int getNextSibling( int nNode ) { return colNext.getInt( nNode );   }
+
+    /**
+     * Returns the node that follows passed one when walking (depth first) the
+     * subtree of 'nTop': this is how a subtree is iterated without recursion
+     * nor creating objects.
+     *
+     * @param nNode Current node (starts being nTop).
+     * @param nTop Root of the subtree.
+     * @return The next node or nNONE when the whole subtree was walked.
+     */
+    int getFollowing( int nNode, int nTop )
+    {
+        int nFirst = colFirst.getInt( nNode );
+
+        if( nFirst != nNONE )
+        {
+            return nFirst;
+        }
+
+        while( nNode != nTop )
+        {
+            int nNext = colNext.getInt( nNode );
+
+            if( nNext != nNONE )
+            {
+                return nNext;
+            }
+
+            nNode = colParent.getInt( nNode );
+        }
+
+        return nNONE;
+    }
+
+    String getName( int nNode )
+    {
+        if( nNode == nROOT )
+        {
+            return "";
+        }
+
+        int    nName  = colName.getInt( nNode );
+        int    nOff   = colOffset.getInt( nName );
+        byte[] abName = new byte[ colLength.getInt( nName ) ];
+
+        for( int n = 0; n < abName.length; n++ )
+        {
+            abName[n] = colBytes.getByte( nOff + n );
+        }
+
+        return new String( abName, StandardCharsets.UTF_8 );
+    }
+
+    /**
+     * Returns the relative path of passed node.
+     *
+     * @param nNode A node.
+     * @return The relative path of passed node.
+     */
+    String getPath( int nNode )
+    {
+        if( nNode == nROOT )
+        {
+            return "";
+        }
+
+        String sParent = getPath( colParent.getInt( nNode ) );
+
+        return SyncIndex.child( sParent, getName( nNode ) );
+    }
+
+    //----------------------------------------------------------------------------//
+    // DATA
+
+    boolean hasData( int nNode )     { return (colFlags.getByte( nNode ) & bDATA)   != 0; }
+    boolean isFolder( int nNode )    { return (colFlags.getByte( nNode ) & bFOLDER) != 0; }
+    long    getSize( int nNode )     { return colSize.getLong( nNode );     }
+    long    getModified( int nNode ) { return colModified.getLong( nNode ); }
+
+    /**
+     * Returns the file key of passed node.
+     *
+     * @param nNode A node.
+     * @return The file key of passed node ("" when it has none).
+     */
+    String getFileKey( int nNode )
+    {
+        byte nFlags = colFlags.getByte( nNode );
+
+        if( (nFlags & bKEY) != 0 )
+        {
+            return toFileKey( colDev.getLong( nNode ), colInode.getLong( nNode ) );
+        }
+
+        if( (nFlags & bKEYSTR) != 0 )
+        {
+            return mapKeys.get( nNode );
+        }
+
+        return "";
+    }
+
+    /**
+     * Sets the data of passed node (it stops being a placeholder).
+     *
+     * @param nNode A node.
+     * @param bFolder Is it a folder?
+     * @param nSize Its size.
+     * @param nModified Its last modified time.
+     * @param sFileKey Its file key ("" when it has none).
+     */
+    void setData( int nNode, boolean bFolder, long nSize, long nModified, String sFileKey )
+    {
+        byte nFlags = (byte) (bUSED | bDATA | (bFolder ? bFOLDER : 0));
+
+        mapKeys.remove( nNode );
+
+        if( ! sFileKey.isEmpty() )
+        {
+            long[] anKey = parseFileKey( sFileKey );
+
+            if( anKey == null )
+            {
+                mapKeys.put( nNode, sFileKey );
+                nFlags |= bKEYSTR;
+            }
+            else
+            {
+                colDev.putLong( nNode, anKey[0] );
+                colInode.putLong( nNode, anKey[1] );
+                nFlags |= bKEY;
+            }
+        }
+
+        colFlags.putByte( nNode, nFlags );
+        colSize.putLong( nNode, nSize );
+        colModified.putLong( nNode, nModified );
+    }
+
+    //----------------------------------------------------------------------------//
+    // CHANGES
+
+    /**
+     * Removes passed node and all its subtree; placeholders that become empty
+     * are removed too. When passed node is the root, only its subtree is
+     * removed.
+     *
+     * @param nNode Node to remove.
+     */
+    void remove( int nNode )
+    {
+        if( nNode == nROOT )
+        {
+            while( colFirst.getInt( nROOT ) != nNONE )
+            {
+                removeSubtree( colFirst.getInt( nROOT ) );
+            }
+
+            return;
+        }
+
+        int nParent = colParent.getInt( nNode );
+
+        removeSubtree( nNode );
+        prune( nParent );
+    }
+
+    /**
+     * Moves passed node (and its subtree) to another place of the tree. A
+     * node already at the new place is removed.
+     *
+     * @param nNode Node to move.
+     * @param sTo New relative path.
+     * @return false when the node can not be moved (new place is inside its
+     *         own subtree or it is the root).
+     */
+    boolean move( int nNode, String sTo )
+    {
+        if( (nNode == nROOT) || sTo.isEmpty() )
+        {
+            return false;
+        }
+
+        int    nSlash   = sTo.lastIndexOf( File.separatorChar );
+        int    nParent  = find( ((nSlash == -1) ? "" : sTo.substring( 0, nSlash )), true );
+        byte[] abName   = sTo.substring( nSlash + 1 ).getBytes( StandardCharsets.UTF_8 );
+        int    nOldPrnt = colParent.getInt( nNode );
+
+        for( int n = nParent; n != nNONE; n = colParent.getInt( n ) )
+        {
+            if( n == nNode )
+            {
+                prune( nParent );
+                return false;
+            }
+        }
+
+        int nName = findName( abName, true );
+        int nOld  = findChild( nParent, nName );
+
+        if( nOld == nNode )
+        {
+            return true;
+        }
+
+        for( int n = nNode; n != nNONE; n = colParent.getInt( n ) )
+        {
+            if( n == nOld )                                  // Would be removed with the node at new place
+            {
+                return false;
+            }
+        }
+
+        colRefs.putInt( nName, colRefs.getInt( nName ) + 1 );      // Before anything could release it
+
+        if( nOld != nNONE )
+        {
+            removeSubtree( nOld );
+        }
+
+        unhash( nNode );
+        unlink( nNode );
+        release( colName.getInt( nNode ) );
+
+        colName.putInt( nNode, nName );
+        colParent.putInt( nNode, nParent );
+
+        link( nNode );
+        prune( nOldPrnt );
+
+        return true;
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private int allocNode( int nParent, int nName )
+    {
+        int nNode = nFreeNode;
+
+        if( nNode == nNONE )
+        {
+            nNode = nNodes++;
+
+            for( Column col : new Column[] { colFlags, colParent, colName, colFirst, colNext, colPrev,
+                                             colSize, colModified, colDev, colInode } )
+            {
+                col.ensure( nNodes );
+            }
+        }
+        else
+        {
+            nFreeNode = colNext.getInt( nNode );
+        }
+
+        colFlags.putByte( nNode, bUSED );
+        colParent.putInt( nNode, nParent );
+        colName.putInt( nNode, nName );
+        colFirst.putInt( nNode, nNONE );
+        colNext.putInt( nNode, nNONE );
+        colPrev.putInt( nNode, nNONE );
+        colSize.putLong( nNode, 0 );
+        colModified.putLong( nNode, 0 );
+
+        if( nName != nNONE )
+        {
+            colRefs.putInt( nName, colRefs.getInt( nName ) + 1 );
+        }
+
+        nLive++;
+
+        return nNode;
+    }
+
+    /**
+     * Adds passed node to the children of its parent.
+     */
+    private void link( int nNode )
+    {
+        int nParent = colParent.getInt( nNode );
+        int nFirst  = colFirst.getInt( nParent );
+
+        colPrev.putInt( nNode, nNONE );
+        colNext.putInt( nNode, nFirst );
+
+        if( nFirst != nNONE )
+        {
+            colPrev.putInt( nFirst, nNode );
+        }
+
+        colFirst.putInt( nParent, nNode );
+
+        hash( nNode );
+    }
+
+    private void unlink( int nNode )
+    {
+        int nPrev = colPrev.getInt( nNode );
+        int nNext = colNext.getInt( nNode );
+
+        if( nPrev == nNONE )
+        {
+            colFirst.putInt( colParent.getInt( nNode ), nNext );
+        }
+        else
+        {
+            colNext.putInt( nPrev, nNext );
+        }
+
+        if( nNext != nNONE )
+        {
+            colPrev.putInt( nNext, nPrev );
+        }
+    }
+
+    /**
+     * Frees passed node and all its subtree (post-order, without recursion).
+     */
+    private void removeSubtree( int nTop )
+    {
+        int nNode = nTop;
+
+        while( true )
+        {
+            int nFirst = colFirst.getInt( nNode );
+
+            if( nFirst != nNONE )
+            {
+                nNode = nFirst;
+                continue;
+            }
+
+            int nParent = colParent.getInt( nNode );
+
+            unhash( nNode );
+            unlink( nNode );
+            release( colName.getInt( nNode ) );
+            mapKeys.remove( nNode );
+
+            colFlags.putByte( nNode, (byte) 0 );
+            colNext.putInt( nNode, nFreeNode );
+            nFreeNode = nNode;
+            nLive--;
+
+            if( nNode == nTop )
+            {
+                break;
+            }
+
+            nNode = nParent;
+        }
+    }
+
+    /**
+     * Removes passed node and its ancestors while they are placeholders
+     * without children.
+     */
+    private void prune( int nNode )
+    {
+        while( (nNode != nROOT) && (! hasData( nNode )) && (colFirst.getInt( nNode ) == nNONE) )
+        {
+            int nParent = colParent.getInt( nNode );
+
+            removeSubtree( nNode );
+            nNode = nParent;
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // (PARENT,NAME) -> NODE HASH TABLE
+
+    private int findChild( int nParent, int nName )
+    {
+        int nMask = colSlots.capacity() - 1;
+
+        for( int nSlot = mix( nParent, nName ) & nMask; ; nSlot = (nSlot + 1) & nMask )
+        {
+            int nNode = colSlots.getInt( nSlot ) - 1;
+
+            if( nNode == nNONE )
+            {
+                return nNONE;
+            }
+
+            if( (colParent.getInt( nNode ) == nParent) && (colName.getInt( nNode ) == nName) )
+            {
+                return nNode;
+            }
+        }
+    }
+
+    private void hash( int nNode )
+    {
+        if( nLive * 2 > colSlots.capacity() )
+        {
+            Column colOld = colSlots;
+            colSlots = new Column( 4, colOld.capacity() * 2 );
+
+            for( int n = 0; n < colOld.capacity(); n++ )
+            {
+                int nOld = colOld.getInt( n ) - 1;
+
+                if( (nOld != nNONE) && (nOld != nNode) )
+                {
+                    insert( colSlots, nOld, mix( colParent.getInt( nOld ), colName.getInt( nOld ) ) );
+                }
+            }
+        }
+
+        insert( colSlots, nNode, mix( colParent.getInt( nNode ), colName.getInt( nNode ) ) );
+    }
+
+    private void unhash( int nNode )
+    {
+        int nMask = colSlots.capacity() - 1;
+        int nSlot = mix( colParent.getInt( nNode ), colName.getInt( nNode ) ) & nMask;
+
+        while( colSlots.getInt( nSlot ) != nNode + 1 )
+        {
+            nSlot = (nSlot + 1) & nMask;
+        }
+
+        delete( colSlots, nSlot, (n) -> mix( colParent.getInt( n ), colName.getInt( n ) ) );
+    }
+
+    //----------------------------------------------------------------------------//
+    // NAMES
+
+    /**
+     * Returns the name having passed bytes.
+     *
+     * @param abName UTF-8 of the name.
+     * @param bCreate When true and the name does not exist, it is created (not
+     *                used by any node yet).
+     * @return The name or nNONE if it does not exist (and bCreate is false).
+     */
+    private int findName( byte[] abName, boolean bCreate )
+    {
+        int nHash = Arrays.hashCode( abName );
+        int nMask = colNameSlots.capacity() - 1;
+        int nSlot = mix( nHash, abName.length ) & nMask;
+
+        for( ; ; nSlot = (nSlot + 1) & nMask )
+        {
+            int nName = colNameSlots.getInt( nSlot ) - 1;
+
+            if( nName == nNONE )
+            {
+                break;
+            }
+
+            if( (colHash.getInt( nName ) == nHash) && isName( nName, abName ) )
+            {
+                return nName;
+            }
+        }
+
+        if( ! bCreate )
+        {
+            return nNONE;
+        }
+
+        int nName = nFreeName;
+
+        if( nName == nNONE )
+        {
+            nName = nNames++;
+
+            for( Column col : new Column[] { colOffset, colLength, colHash, colRefs } )
+            {
+                col.ensure( nNames );
+            }
+        }
+        else
+        {
+            nFreeName = colOffset.getInt( nName );
+        }
+
+        colBytes.ensure( nBytes + abName.length );
+
+        for( int n = 0; n < abName.length; n++ )
+        {
+            colBytes.putByte( nBytes + n, abName[n] );
+        }
+
+        colOffset.putInt( nName, nBytes );
+        colLength.putInt( nName, abName.length );
+        colHash.putInt( nName, nHash );
+        colRefs.putInt( nName, 0 );
+        nBytes += abName.length;
+        nNamesLive++;
+
+        if( nNamesLive * 2 > colNameSlots.capacity() )
+        {
+            Column colOld = colNameSlots;
+            colNameSlots  = new Column( 4, colOld.capacity() * 2 );
+
+            for( int n = 0; n < colOld.capacity(); n++ )
+            {
+                int nOld = colOld.getInt( n ) - 1;
+
+                if( nOld != nNONE )
+                {
+                    insert( colNameSlots, nOld, mix( colHash.getInt( nOld ), colLength.getInt( nOld ) ) );
+                }
+            }
+        }
+
+        insert( colNameSlots, nName, mix( nHash, abName.length ) );
+
+        return nName;
+    }
+
+    private boolean isName( int nName, byte[] abName )
+    {
+        if( colLength.getInt( nName ) != abName.length )
+        {
+            return false;
+        }
+
+        int nOff = colOffset.getInt( nName );
+
+        for( int n = 0; n < abName.length; n++ )
+        {
+            if( colBytes.getByte( nOff + n ) != abName[n] )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Frees passed name when no node uses it any more.
+     */
+    private void release( int nName )
+    {
+        int nRefs = colRefs.getInt( nName ) - 1;
+
+        colRefs.putInt( nName, nRefs );
+
+        if( nRefs > 0 )
+        {
+            return;
+        }
+
+        int nMask = colNameSlots.capacity() - 1;
+        int nSlot = mix( colHash.getInt( nName ), colLength.getInt( nName ) ) & nMask;
+
+        while( colNameSlots.getInt( nSlot ) != nName + 1 )
+        {
+            nSlot = (nSlot + 1) & nMask;
+        }
+
+        delete( colNameSlots, nSlot, (n) -> mix( colHash.getInt( n ), colLength.getInt( n ) ) );
+
+        nDead += colLength.getInt( nName );
+        colOffset.putInt( nName, nFreeName );
+        nFreeName = nName;
+        nNamesLive--;
+
+        if( (nDead > 1024 * 1024) && (nDead > nBytes / 2) )
+        {
+            compactNames();
+        }
+    }
+
+    /**
+     * Discards the bytes of names that are not used any more.
+     */
+    private void compactNames()
+    {
+        Column colNew = new Column( 1, Math.max( 16 * 1024, nBytes - nDead ) );
+        int    nUsed  = 0;
+
+        for( int nName = 0; nName < nNames; nName++ )
+        {
+            if( colRefs.getInt( nName ) > 0 )
+            {
+                int nOff = colOffset.getInt( nName );
+                int nLen = colLength.getInt( nName );
+
+                for( int n = 0; n < nLen; n++ )
+                {
+                    colNew.putByte( nUsed + n, colBytes.getByte( nOff + n ) );
+                }
+
+                colOffset.putInt( nName, nUsed );
+                nUsed += nLen;
+            }
+        }
+
+        colBytes = colNew;
+        nBytes   = nUsed;
+        nDead    = 0;
+    }
+
+    //----------------------------------------------------------------------------//
+    // FILE KEYS
+
+    // File keys are like "(dev=803,ino=1234567)" in Linux and macOS: they are
+    // kept as two longs (the String is built again when needed).
+
+    private static long[] parseFileKey( String sKey )
+    {
+        int nComma = sKey.indexOf( ",ino=" );
+
+        if( (! sKey.startsWith( "(dev=" )) || (! sKey.endsWith( ")" )) || (nComma == -1) )
+        {
+            return null;
+        }
+
+        try
+        {
+            long[] anKey = new long[] { Long.parseUnsignedLong( sKey.substring( 5, nComma ), 16 ),
+                                        Long.parseLong( sKey.substring( nComma + 5, sKey.length() - 1 ) ) };
+
+            return sKey.equals( toFileKey( anKey[0], anKey[1] ) ) ? anKey : null;
+        }
+        catch( NumberFormatException nfe )
+        {
+            return null;
+        }
+    }
+
+    private static String toFileKey( long nDev, long nInode )
+    {
+        return "(dev="+ Long.toHexString( nDev ) +",ino="+ nInode +')';
+    }
+
+    //----------------------------------------------------------------------------//
+    // OPEN ADDRESSING (LINEAR PROBING) HASH TABLES
+
+    private static int mix( int n1, int n2 )
+    {
+        int h = (n1 * 0x9E3779B9) ^ n2;
+
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+
+        return h;
+    }
+
+    private static void insert( Column colSlots, int nItem, int nHash )
+    {
+        int nMask = colSlots.capacity() - 1;
+        int nSlot = nHash & nMask;
+
+        while( colSlots.getInt( nSlot ) != 0 )
+        {
+            nSlot = (nSlot + 1) & nMask;
+        }
+
+        colSlots.putInt( nSlot, nItem + 1 );
+    }
+
+    /**
+     * Empties passed slot, moving back the items that follow it (so no item
+     * becomes unreachable).
+     */
+    private static void delete( Column colSlots, int nSlot, Hasher hasher )
+    {
+        int nMask = colSlots.capacity() - 1;
+        int nNext = nSlot;
+
+        colSlots.putInt( nSlot, 0 );
+
+        while( true )
+        {
+            nNext = (nNext + 1) & nMask;
+
+            int nItem = colSlots.getInt( nNext );
+
+            if( nItem == 0 )
+            {
+                return;
+            }
+
+            int nHome = hasher.hash( nItem - 1 ) & nMask;
+
+            if( ((nNext - nHome) & nMask) >= ((nNext - nSlot) & nMask) )     // Item can go back to the emptied slot
+            {
+                colSlots.putInt( nSlot, nItem );
+                colSlots.putInt( nNext, 0 );
+                nSlot = nNext;
+            }
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+
+    private interface Hasher
+    {
+        int hash( int nItem );
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Growable array of primitives (bytes, ints or longs) kept in the Java heap
+     * or outside it (direct memory).
+     */
+    private final class Column
+    {
+        private final int        nWidth;          // Bytes per item
+        private       int        nCapacity;       // Items
+        private       ByteBuffer buffer;
+
+        Column( int nWidth, int nCapacity )
+        {
+            this.nWidth    = nWidth;
+            this.nCapacity = nCapacity;
+            this.buffer    = allocate( nCapacity );
+        }
+
+        int  capacity()                   { return nCapacity; }
+        byte getByte( int n )             { return buffer.get( n );                       }
+        int  getInt( int n )              { return buffer.getInt( n << 2 );               }
+        long getLong( int n )             { return buffer.getLong( n << 3 );              }
+        void putByte( int n, byte b )     { buffer.put( n, b );                           }
+        void putInt( int n, int i )       { buffer.putInt( n << 2, i );                   }
+        void putLong( int n, long l )     { buffer.putLong( n << 3, l );                  }
+
+        /**
+         * Makes room for passed number of items (doubling the capacity).
+         */
+        void ensure( int nItems )
+        {
+            if( nItems <= nCapacity )
+            {
+                return;
+            }
+
+            long nNew = Math.min( Math.max( (long) nItems, nCapacity * 2L ), Integer.MAX_VALUE / nWidth );
+
+            if( nItems > nNew )
+            {
+                throw new IllegalStateException( "Too many entries in the tree: "+ nItems );
+            }
+
+            ByteBuffer bbNew = allocate( (int) nNew );
+
+            buffer.clear();
+            bbNew.put( buffer );
+            bbNew.clear();
+
+            buffer    = bbNew;
+            nCapacity = (int) nNew;
+        }
+
+        private ByteBuffer allocate( int nItems )
+        {
+            ByteBuffer bb = (bOffHeap ? ByteBuffer.allocateDirect( nItems * nWidth )
+                                      : ByteBuffer.allocate( nItems * nWidth ));
+
+            return bb.order( ByteOrder.nativeOrder() );
+        }
+    }
+}
\ No newline at end of file
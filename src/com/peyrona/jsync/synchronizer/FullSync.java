@@ -16,140 +16,1094 @@
 
 package com.peyrona.jsync.synchronizer;
 
+import com.peyrona.jsync.Copier;
+import com.peyrona.jsync.DigestCache;
+import com.peyrona.jsync.EntryFilter;
 import com.peyrona.jsync.Main;
+import com.peyrona.jsync.SharedReads;
+import com.peyrona.jsync.Throttle;
 import com.peyrona.jsync.Utils;
+import com.peyrona.jsync.config.Task;
+import com.peyrona.jsync.metrics.Metrics;
 import java.io.File;
-import java.io.FileFilter;
 import java.io.IOException;
-import java.nio.file.DirectoryStream;
+import java.io.UncheckedIOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.logging.Level;
 
 /**
  * Is in charge of performing the initial synchronization between the 2 folders
  * when this application is started, later only changed files and folders are
  * synchronized.
+ * <p>
+ * When task's parallelism is greater than 1, folders are traversed in parallel
+ * using a fork/join pool (one task per sub-folder).
+ * <p>
+ * Every listed folder of Origin is reconciled with its Destination equivalent
+ * in one pass: both listings are sorted by name and merged, so every entry is
+ * classified as added (only in Origin), removed (only in Destination: deleted
+ * at any depth) or existing in both (Destination attributes are kept, so they
+ * are not read again when comparing).
+ * <p>
+ * Destination metadata is obtained through a DestinCache (that, unless it is
+ * in strict mode, answers from memory instead of asking Destination).
+ * <p>
+ * Every copy, deletion and move done in Destination is recorded in the task
+ * Journal before it starts and when it ends; those that did not end because
+ * the application died are verified when it starts again (see ::recover(...)).
+ * <p>
+ * When there is an index from a previous execution, only the folders that
+ * changed since then are listed and files that did not change are not compared
+ * against Destination.
+ * <p>
+ * Traversing Origin, comparing files and copying them are done by different
+ * threads: traversing threads pass files to the compare Stage and this one
+ * passes those that are different to the copy Stage. Stages have bounded
+ * queues, so a slow copy stage makes the others wait.
+ * <p>
+ * Origin is watched while the initial synchronization runs: changes detected
+ * meanwhile are applied by the ChangeQueue as soon as the part of Origin where
+ * they happened was reconciled (see ::claim(...)), so nothing changed during a
+ * long initial synchronization has to wait until it finishes (or is lost).
  *
  * @author peyrona
  */
 final class FullSync
 {
-    private final File       fOrigi;
-    private final File       fDesti;
-    private final FileFilter filter;
+    private final File        fOrigi;
+    private final File        fDesti;
+    private final EntryFilter filter;
+    private final SyncIndex   index;
+    private final int         nParallelism;    // 1 == sequential
+    private final Copier      copier;
+    private final Throttle    throttle;        // null == no limits
+    private final DigestCache digests;         // null == files contents are not compared
+    private final Journal     journal;         // null == operations are not journaled
+    private final Trash       trash;           // null == Destination entries are deleted at once
+    private final DestinCache destin;
+    private final Stage       stgCompare;
+    private final Stage       stgCopy;
+    private final Metrics     metrics;
+    private final Map<String,Done> mapDone = new ConcurrentHashMap<>();   // Traversed folders (see ::finish())
+    private volatile OriginListings listings = null;   // null == Origin listings are not shared
+    private volatile boolean        bInitial = true;   // Initial synchronization is running
+    private final Set<String> setListed   = ConcurrentHashMap.newKeySet();   // Folders listed by initial synchronization
+    private final Set<String> setScanned  = ConcurrentHashMap.newKeySet();   // Folders completely traversed by initial synchronization
+    private final Set<String> setInFlight = ConcurrentHashMap.newKeySet();   // Files being synchronized while initial synchronization runs
 
     //----------------------------------------------------------------------------//
 
-    FullSync( File fOrigi, File fDesti, FileFilter filter )
+    FullSync( Task task, EntryFilter filter, SyncIndex index, DigestCache digests, Journal journal, Trash trash,
+              Throttle throttle, SharedReads reads, Stage stgCompare, Stage stgCopy )
     {
-        this.fOrigi = fOrigi;
-        this.fDesti = fDesti;
-        this.filter = filter;
+        this.fOrigi       = new File( task.getOriginFolder() ).getAbsoluteFile();     // Watcher reports absolute paths
+        this.fDesti       = new File( task.getDestinFolder() ).getAbsoluteFile();
+        this.filter       = filter;
+        this.index        = index;
+        this.nParallelism = Math.max( 1, task.getParallelism() );
+        this.copier       = new Copier( task.getCopyChunk(), task.getDeltaThresh(), throttle, reads );
+        this.throttle     = throttle;
+        this.digests      = digests;
+        this.journal      = journal;
+        this.trash        = trash;
+        this.destin       = new DestinCache( fDesti, task.getDestinTTL() );
+        this.stgCompare   = stgCompare;
+        this.stgCopy      = stgCopy;
+        this.metrics      = Metrics.get( task.getName() );
     }
 
     //----------------------------------------------------------------------------//
 
+    /**
+     * Sets the listings of Origin folders that this instance shares with the
+     * FullSyncs of other Destinations of the same Origin.
+     *
+     * @param listings Shared listings (null == not shared).
+     */
+    void share( OriginListings listings )
+    {
+        this.listings = listings;
+    }
+
     void sync()
     {
         try
         {
-            Main.info( "Deleting Destination obsolete files -----------------------------------------" );
-            traverse2Delete( fDesti.toPath() );
+            if( index.isLoaded() )
+            {
+                Main.info( "Index loaded: only folders changed since last execution will be listed ----" );
+            }
 
-            Main.info( "Updating files from Origin to Destination -----------------------------------" );
-            traverse2Copy( fOrigi.toPath() );
+            Main.info( "Updating Destination from Origin --------------------------------------------" );
+
+            if( nParallelism > 1 )
+            {
+                ForkJoinPool pool = new ForkJoinPool( nParallelism );
+
+                try
+                {
+                    pool.invoke( new CopyFolder( fOrigi.toPath(), null ) );
+                }
+                finally
+                {
+                    pool.shutdown();
+                }
+            }
+            else
+            {
+                traverse2Copy( fOrigi.toPath(), null, true );
+            }
         }
         catch( IOException ex )
         {
             Main.log( Level.SEVERE, null, ex );
         }
+        catch( UncheckedIOException ex )
+        {
+            Main.log( Level.SEVERE, null, ex.getCause() );
+        }
+        finally
+        {
+            finish();
+
+            bInitial = false;
+            setListed.clear();
+            setScanned.clear();
+        }
     }
 
-    //----------------------------------------------------------------------------//
+    /**
+     * Asks permission to apply a change detected in Origin while the initial
+     * synchronization is running (afterwards, it is always granted). It is
+     * granted when the change happened in a part of Origin that was already
+     * reconciled:
+     * <ul>
+     * <li>Files: when their folder was listed and the file is not being
+     * synchronized by the initial synchronization (it will not be until
+     * passed path is released).</li>
+     * <li>Folders: when their parent folder was completely traversed.</li>
+     * </ul>
+     * A change that is not granted has to wait: if its folder was not listed
+     * yet, the initial synchronization will find it anyway.
+     *
+     * @param path Changed Origin entry.
+     * @param bFolder true if it is (or was) a folder.
+     * @return true if the change can be applied now (then ::release(...) has
+     *         to be invoked once it is applied).
+     */
+    boolean claim( Path path, boolean bFolder )
+    {
+        if( ! bInitial )
+        {
+            return true;
+        }
+
+        String          sRelPath = relative( path );
+        SyncIndex.Entry entry    = index.get( sRelPath );
+
+        if( sRelPath.isEmpty() )
+        {
+            return false;
+        }
+
+        if( bFolder || setListed.contains( sRelPath ) || ((entry != null) && entry.bFolder) )
+        {
+            return setScanned.contains( SyncIndex.getParent( sRelPath ) );
+        }
+
+        return setListed.contains( SyncIndex.getParent( sRelPath ) ) && setInFlight.add( sRelPath );
+    }
 
     /**
-     * Delete those files in Destination that does not exist any more in Origin.
-     * In other words: those that were deleted since last time this tool was
-     * executed.
+     * A change which application was granted by ::claim(...) was applied.
      *
-     * @param path Where to start
+     * @param path Changed Origin entry.
+     */
+    void release( Path path )
+    {
+        setInFlight.remove( relative( path ) );
+    }
+
+    /**
+     * Verifies the entries affected by operations that did not end last time
+     * (the application died while doing them): every entry is synchronized
+     * again (folders with all their contents) as if it were not indexed.
+     *
+     * @param lstOps Operations that did not end (see Journal::recover(...)).
+     */
+    void recover( List<Journal.Op> lstOps )
+    {
+        for( Journal.Op op : lstOps )
+        {
+            if( op.cOp == Journal.cCOPY )
+            {
+                File fTmp = Copier.getTemporary( new File( fDesti, op.sPath ) );
+
+                if( fTmp.delete() )
+                {
+                    Main.info( () -> fTmp +": unfinished copy deleted." );
+                }
+            }
+
+            if( op.cOp == Journal.cMOVE )
+            {
+                reconcile( op.sFrom );
+            }
+
+            reconcile( op.sPath );
+            end( op.nOp, false, null );
+        }
+
+        finish();
+    }
+
+    /**
+     * Synchronizes a folder of Origin (and all its contents) that was created
+     * after the initial synchronization.
+     *
+     * @param pFolder Origin folder.
      */
-    private void traverse2Delete( Path path ) throws IOException
+    void sync( Path pFolder )
     {
-        try( DirectoryStream<Path> stream = Files.newDirectoryStream( path ) )
+        try
         {
-            for( Path pEntry : stream )
+            if( handleDestinFolder( relative( pFolder ) ) )
             {
-                File fEntry      = pEntry.toFile();
-                File fEquivalent = Utils.getEquivalent( fDesti, fOrigi, fEntry );
+                traverse2Copy( pFolder, null, false );
+            }
+        }
+        catch( IOException ex )
+        {
+            Main.log( Level.WARNING, "Error synchronizing folder '"+ pFolder +"'", ex );
+        }
+        finally
+        {
+            finish();
+        }
+    }
 
-                if( ! fEquivalent.exists() )
+    /**
+     * Compares the entries of an Origin folder with Destination after some of
+     * its events were lost. Only the folder itself is listed: its sub-folders
+     * have their own watch keys, so they are traversed only if they were not
+     * known (created while events were being lost).
+     *
+     * @param pFolder Origin folder.
+     */
+    void rescan( Path pFolder )
+    {
+        try
+        {
+            BasicFileAttributes attrs = Files.readAttributes( pFolder, BasicFileAttributes.class );
+
+            if( ! handleDestinFolder( relative( pFolder ) ) )
+            {
+                return;
+            }
+
+            List<Item> lstItems = listFolder( pFolder, attrs, false );
+
+            if( lstItems == null )
+            {
+                return;
+            }
+
+            for( Item item : lstItems )
+            {
+                SyncIndex.Entry     known      = index.get( relative( item.path ) );
+                BasicFileAttributes attrsEntry = syncEntry( item );
+
+                if( (attrsEntry != null) && ((known == null) || (! known.bFolder)) )
                 {
-                    Utils.delete( fEntry );
-                    Main.info( fEntry +" does not exists any more in Origin: file deleted in Destination." );
+                    traverse2Copy( item.path, attrsEntry, false );
                 }
             }
+
+            traversed( pFolder, attrs );
+        }
+        catch( IOException ex )
+        {
+            Main.log( Level.WARNING, "Error rescanning folder '"+ pFolder +"'", ex );
+        }
+        finally
+        {
+            finish();
+        }
+    }
+
+    /**
+     * Copies an Origin file into Destination (without comparing them) and
+     * updates the index. Nothing is done when the file did not change since it
+     * was indexed (e.g. it was already copied when its folder was synchronized)
+     * or, when comparing contents, if its contents are the same in Destination.
+     *
+     * @param pFile Origin file.
+     * @param attrs Origin file attributes.
+     * @return true if the file was successfully copied.
+     */
+    boolean copy( Path pFile, BasicFileAttributes attrs )
+    {
+        String          sRelPath = relative( pFile );
+        SyncIndex.Entry entry    = index.get( sRelPath );
+        File            fOrig    = pFile.toFile();
+        File            fDest    = new File( fDesti, sRelPath );
+
+        if( (entry != null) && entry.isSameAs( attrs ) )
+        {
+            return false;
+        }
+
+        BasicFileAttributes attrsDest = ((digests == null) ? null : destin.get( sRelPath ));
+
+        if( (attrsDest != null) && Utils.areEquals( fOrig, attrs, fDest, attrsDest, digests ) )
+        {
+            Main.info( () -> fOrig +" and "+ fDest +" have same contents: nothing to do." );
+            index.put( sRelPath, attrs );
+            return false;
         }
+
+        return copyFile( fOrig, fDest, sRelPath, attrs );
+    }
+
+    /**
+     * An Origin entry was renamed or moved: its Destination equivalent is moved
+     * too (instead of deleting it and copying it again) and then synchronized,
+     * so only what changed after it was moved is copied.
+     *
+     * @param pFrom Old Origin path of the entry.
+     * @param pTo New Origin path of the entry.
+     * @param attrs Entry attributes.
+     * @return true if it was moved in Destination; false when it could not be
+     *         moved (then it has to be deleted and copied).
+     */
+    boolean move( Path pFrom, Path pTo, BasicFileAttributes attrs )
+    {
+        if( ! moveInDestin( relative( pFrom ), relative( pTo ) ) )
+        {
+            return false;
+        }
+
+        if( attrs.isDirectory() )
+        {
+            sync( pTo );
+        }
+        else
+        {
+            copy( pTo, attrs );
+        }
+
+        return true;
     }
 
+    /**
+     * Returns true if passed Origin folder will be listed by the initial
+     * synchronization: it changed since it was synchronized (or it never was).
+     *
+     * @param pFolder Origin folder.
+     * @param attrs Its attributes.
+     * @return true if passed Origin folder will be listed.
+     */
+    boolean isToBeListed( Path pFolder, BasicFileAttributes attrs )
+    {
+        SyncIndex.Entry entry = index.get( relative( pFolder ) );
+
+        return (entry == null) || (! entry.isSameAs( attrs ));
+    }
+
+    /**
+     * Returns what is known (indexed) about passed Origin entry.
+     *
+     * @param pEntry Origin entry.
+     * @return What is known about passed Origin entry or null if nothing.
+     */
+    SyncIndex.Entry getIndexed( Path pEntry )
+    {
+        return index.get( relative( pEntry ) );
+    }
+
+    /**
+     * An Origin entry was deleted and created again (maybe a file became a
+     * folder or vice versa): before the new entry is synchronized, its
+     * Destination equivalent is deleted when any of them is a folder (a
+     * recreated folder must not keep the old contents) and it is removed from
+     * the index (the new entry is not the indexed one, even if it looks the
+     * same).
+     *
+     * @param pEntry Origin entry.
+     * @param attrs Attributes of the new entry.
+     */
+    void replace( Path pEntry, BasicFileAttributes attrs )
+    {
+        String              sRelPath  = relative( pEntry );
+        BasicFileAttributes attrsDest = destin.get( sRelPath );
+
+        if( (attrsDest != null) && (attrs.isDirectory() || attrsDest.isDirectory()) )
+        {
+            deleteInDestin( sRelPath );
+        }
+        else
+        {
+            index.remove( sRelPath );
+        }
+    }
+
+    /**
+     * Deletes the Destination equivalent of an Origin entry (if it exists) and
+     * removes it from the index.
+     *
+     * @param pEntry Origin entry (file or folder).
+     */
+    void delete( Path pEntry )
+    {
+        deleteInDestin( relative( pEntry ) );
+    }
+
+    //----------------------------------------------------------------------------//
+
     /**
      * Copy new created and modified files from origin to destination.
      *
      * @param path Where to start
+     * @param attrs Folder attributes (null == they have to be read).
+     * @param bShare true to use the Origin listings shared with other
+     *               Destinations (only the initial synchronization does).
      * @throws IOException
      */
-    private void traverse2Copy( Path path ) throws IOException
+    private void traverse2Copy( Path path, BasicFileAttributes attrs, boolean bShare ) throws IOException
     {
-        try( DirectoryStream<Path> stream = Files.newDirectoryStream( path ) )
+        if( attrs == null )
+        {
+            attrs = Files.readAttributes( path, BasicFileAttributes.class );
+        }
+
+        List<Item> lstItems = listFolder( path, attrs, bShare );
+
+        if( lstItems == null )
+        {
+            return;
+        }
+
+        for( Item item : lstItems )
+        {
+            BasicFileAttributes attrsEntry = syncEntry( item );
+
+            if( attrsEntry != null )
+            {
+                traverse2Copy( item.path, attrsEntry, bShare );
+            }
+        }
+
+        traversed( path, attrs );
+    }
+
+    /**
+     * Synchronizes an entry of Origin (and, if it is a folder, all its
+     * contents) without trusting what the index says about it.
+     *
+     * @param sRelPath Relative path of the entry.
+     */
+    private void reconcile( String sRelPath )
+    {
+        Path                path  = new File( fOrigi, sRelPath ).toPath();
+        BasicFileAttributes attrs;
+
+        try
+        {
+            attrs = Files.readAttributes( path, BasicFileAttributes.class );
+        }
+        catch( IOException ioe )
+        {
+            deleteInDestin( sRelPath );
+            return;
+        }
+
+        if( sRelPath.isEmpty() || (! filter.accept( path, attrs )) )
+        {
+            return;
+        }
+
+        index.remove( sRelPath );
+
+        if( ! attrs.isDirectory() )
+        {
+            compare( path.toFile(), new File( fDesti, sRelPath ), sRelPath, attrs, null );
+            return;
+        }
+
+        try
+        {
+            if( handleDestinFolder( sRelPath ) )
+            {
+                traverse2Copy( path, attrs, false );
+            }
+        }
+        catch( IOException ioe )
+        {
+            Main.log( Level.WARNING, "Error synchronizing folder '"+ path +"'", ioe );
+        }
+    }
+
+    /**
+     * A folder was traversed: all its entries were passed to the Stages.
+     */
+    private void traversed( Path path, BasicFileAttributes attrs )
+    {
+        String sRelPath = relative( path );
+
+        mapDone.put( sRelPath, new Done( attrs, stgCompare.getLastJob(), stgCopy.getLastJob() ) );
+
+        if( bInitial )
+        {
+            setScanned.add( sRelPath );
+        }
+    }
+
+    /**
+     * Waits until compare and copy stages finished all their jobs and then
+     * updates the index with the folders that were traversed. A folder can not
+     * be updated in the index before all its files were copied: otherwise, if
+     * the application died, next time the folder would be considered as not
+     * changed and files not copied would be never copied.
+     * <p>
+     * Several threads can invoke this method at the same time (e.g. the
+     * ChangeQueue while the initial synchronization runs): every one updates
+     * only the folders whose jobs it waited for; the rest are updated by
+     * whoever waits for them.
+     */
+    private void finish()
+    {
+        long nCompared = stgCompare.await();
+        long nCopied   = stgCopy.await();     // After compare: it includes the copies submitted by compare jobs
+
+        for( Map.Entry<String,Done> entry : mapDone.entrySet() )
+        {
+            Done done = entry.getValue();
+
+            if( (done.nCompareJob <= nCompared) && (done.nCopyJob <= nCopied) && mapDone.remove( entry.getKey(), done ) )
+            {
+                index.put( entry.getKey(), done.attrs );
+            }
+        }
+    }
+
+    /**
+     * Returns the entries of passed Origin folder that have to be synchronized.
+     * <p>
+     * When the folder last modified time is the same that is stored in the
+     * index, no entry was added or removed since last synchronization: the
+     * folder is not listed and the names stored in the index are used instead.
+     * <p>
+     * Otherwise the folder and its Destination equivalent are listed, both
+     * listings are sorted by name and merged: entries that are only in
+     * Destination are deleted (except the temporary files of the copies in
+     * progress) and, for the rest, Destination attributes are kept (null ==
+     * not in Destination). Those entries that are in the index but not in
+     * Origin any more are removed from the index.
+     * <p>
+     * Entries attributes are read while listing (only once per entry: on some
+     * systems they come with the listing itself); when the folder is not
+     * listed (or the attributes could not be read) they are null.
+     *
+     * @param path Origin folder.
+     * @param attrs Folder attributes (read before listing it).
+     * @param bShare true to use the Origin listings shared with other
+     *               Destinations (if any).
+     * @return The entries of passed Origin folder that have to be synchronized
+     *         or null if the folder does not exist any more (it was deleted in
+     *         Destination too).
+     * @throws IOException
+     */
+    private List<Item> listFolder( final Path path, BasicFileAttributes attrs, boolean bShare ) throws IOException
+    {
+        final String          sRelPath = relative( path );
+        final SyncIndex.Entry entry    = index.get( sRelPath );
+        final List<Item>      lstItems = new ArrayList<>();
+        final OriginListings  shared   = (bShare ? listings : null);
+
+        if( bInitial )
+        {
+            setListed.add( sRelPath );
+        }
+
+        if( (entry != null) && entry.isSameAs( attrs ) )
+        {
+            if( shared != null )              // Its listing is not kept for this instance
+            {
+                shared.skip( this, path );
+            }
+
+            for( String sName : index.getChilds( sRelPath ) )
+            {
+                lstItems.add( new Item( path.resolve( sName ), null, null, false ) );
+            }
+
+            return lstItems;
+        }
+
+        Set<String>                         setGone = new HashSet<>( index.getChilds( sRelPath ) );
+        TreeMap<String,BasicFileAttributes> mapOrig;
+
+        try
+        {
+            mapOrig = (shared == null) ? list( path ) : shared.list( this, path, attrs, FullSync::list );
+        }
+        catch( NoSuchFileException nsfe )
+        {
+            if( sRelPath.isEmpty() )
+            {
+                throw nsfe;
+            }
+
+            Main.info( () -> path +" does not exists any more in Origin." );     // Deleted after its parent was listed
+            deleteInDestin( sRelPath );
+            return null;
+        }
+
+        setGone.removeAll( mapOrig.keySet() );
+
+        if( ! setGone.isEmpty() )
         {
-            for( Path pEntry : stream )
+            findRenamed( sRelPath, mapOrig, setGone );
+        }
+
+        TreeMap<String,BasicFileAttributes> mapDest = destin.list( sRelPath );
+
+        Iterator<Map.Entry<String,BasicFileAttributes>> itOrig = mapOrig.entrySet().iterator();
+        Iterator<Map.Entry<String,BasicFileAttributes>> itDest = mapDest.entrySet().iterator();
+        Map.Entry<String,BasicFileAttributes>           orig   = next( itOrig );
+        Map.Entry<String,BasicFileAttributes>           dest   = next( itDest );
+
+        while( (orig != null) || (dest != null) )
+        {
+            int nCompare = (orig == null) ?  1 :
+                           (dest == null) ? -1 : orig.getKey().compareTo( dest.getKey() );
+
+            if( nCompare > 0 )                // Only in Destination
             {
-                File fEntry = pEntry.toFile();
+                boolean bTemp  = Copier.isTemporary( new File( dest.getKey() ) );    // A copy in progress (leftovers are deleted by ::recover(...))
+                boolean bTrash = (trash != null) && sRelPath.isEmpty() && Trash.sFOLDER.equals( dest.getKey() );
 
-                if( filter.accept( fEntry ) )
+                if( (! bTemp) && (! bTrash) )
                 {
-                    File fEquivalent = Utils.getEquivalent( fOrigi, fDesti, fEntry );
+                    deleteInDestin( SyncIndex.child( sRelPath, dest.getKey() ) );
+                }
 
-                    if( fEntry.isDirectory() )
-                    {
-                        if( handleDestinFolder( fEquivalent ) )
-                        {
-                            traverse2Copy( pEntry );
-                        }
-                    }
-                    else
-                    {
-                        if( Utils.areEquals( fEntry, fEquivalent ) )
-                        {
-                            Main.info( fEntry +" and "+ fEquivalent +" are equals: nothing to do." );
-                        }
-                        else
-                        {
-                            Utils.copy( fEntry, fEquivalent );
-                            Main.info( fEntry +" and "+ fEquivalent +" are not equals: updated in Destination." );
-                        }
-                    }
+                dest = next( itDest );
+            }
+            else
+            {
+                BasicFileAttributes attrsDest = ((nCompare == 0) ? dest.getValue() : null);
+
+                lstItems.add( new Item( path.resolve( orig.getKey() ), orig.getValue(), attrsDest, true ) );
+
+                if( nCompare == 0 )
+                {
+                    dest = next( itDest );
+                }
+
+                orig = next( itOrig );
+            }
+        }
+
+        for( String sName : setGone )
+        {
+            index.remove( SyncIndex.child( sRelPath, sName ) );
+        }
+
+        return lstItems;
+    }
+
+    /**
+     * Lists an Origin folder returning the names of its entries (sorted) and
+     * their attributes (links are followed: a broken link has null attributes).
+     * It is used by Poller too.
+     *
+     * @param path Origin folder to list.
+     * @return The names of the entries of the folder and their attributes.
+     * @throws IOException
+     */
+    static TreeMap<String,BasicFileAttributes> list( final Path path ) throws IOException
+    {
+        final TreeMap<String,BasicFileAttributes> mapEntries = new TreeMap<>();
+
+        Files.walkFileTree( path, EnumSet.of( FileVisitOption.FOLLOW_LINKS ), 1, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile( Path pEntry, BasicFileAttributes attrsEntry )
+            {
+                // A broken link is reported with the link attributes: treated as not existing
+                mapEntries.put( pEntry.getFileName().toString(), (attrsEntry.isSymbolicLink() ? null : attrsEntry) );
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed( Path pEntry, IOException exc ) throws IOException
+            {
+                if( pEntry.equals( path ) )
+                {
+                    throw exc;
                 }
-                else
+
+                mapEntries.put( pEntry.getFileName().toString(), null );
+                return FileVisitResult.CONTINUE;
+            }
+        } );
+
+        return mapEntries;
+    }
+
+    private static <T> T next( Iterator<T> itera )
+    {
+        return itera.hasNext() ? itera.next() : null;
+    }
+
+    /**
+     * Entries renamed inside a folder since last synchronization appear as a
+     * gone name plus a new (not indexed) one: when their file key (and, for
+     * files, size and modified time) are the same, the entry is renamed in
+     * Destination instead of being deleted and copied again.
+     *
+     * @param sRelPath Relative path of the folder.
+     * @param mapOrig Entries that are in Origin.
+     * @param setGone Names of the indexed entries that are not in Origin (those
+     *                that are renamed are removed from this set).
+     */
+    private void findRenamed( String sRelPath, Map<String,BasicFileAttributes> mapOrig, Set<String> setGone )
+    {
+        Map<String,String> mapKeys = new HashMap<>();     // File key -> Gone name
+
+        for( String sName : setGone )
+        {
+            SyncIndex.Entry entry = index.get( SyncIndex.child( sRelPath, sName ) );
+
+            if( (entry != null) && (! entry.sFileKey.isEmpty()) )
+            {
+                mapKeys.put( entry.sFileKey, sName );
+            }
+        }
+
+        for( Map.Entry<String,BasicFileAttributes> item : mapOrig.entrySet() )
+        {
+            BasicFileAttributes attrs = item.getValue();
+
+            if( mapKeys.isEmpty() )
+            {
+                return;
+            }
+
+            if( (attrs == null) || (attrs.fileKey() == null) )
+            {
+                continue;
+            }
+
+            String sFrom = mapKeys.get( attrs.fileKey().toString() );
+            String sTo   = SyncIndex.child( sRelPath, item.getKey() );
+
+            if( (sFrom != null) && (index.get( sTo ) == null) )
+            {
+                String sFromPath = SyncIndex.child( sRelPath, sFrom );
+
+                if( index.get( sFromPath ).isSameFile( attrs ) && moveInDestin( sFromPath, sTo ) )
                 {
-                    Main.info( fEntry + " --> not accepted.");
+                    mapKeys.remove( attrs.fileKey().toString() );
+                    setGone.remove( sFrom );
                 }
             }
         }
     }
 
-    private boolean handleDestinFolder( File fDest )
+    /**
+     * Synchronizes one entry of Origin: files are copied (when needed) and
+     * folders are created in Destination (when needed).
+     * <p>
+     * When the Destination folder was listed, files that are not there are
+     * copied without comparing them and the others are compared using the
+     * Destination attributes that were read while listing.
+     *
+     * @param item Entry in Origin.
+     * @return The attributes of passed entry if it is a folder that has to be
+     *         traversed or null otherwise.
+     */
+    private BasicFileAttributes syncEntry( Item item )
+    {
+        Path                pEntry   = item.path;
+        BasicFileAttributes attrs    = item.attrs;
+        File                fEntry   = pEntry.toFile();
+        String              sRelPath = relative( pEntry );
+        SyncIndex.Entry     entry    = index.get( sRelPath );
+
+        if( attrs == null )
+        {
+            try
+            {
+                attrs = Files.readAttributes( pEntry, BasicFileAttributes.class );
+            }
+            catch( IOException ioe )     // Deleted after its folder was listed (or listed from index)
+            {
+                Main.info( () -> fEntry +" does not exists any more in Origin." );
+                deleteInDestin( sRelPath );
+                return null;
+            }
+        }
+
+        if( ! filter.accept( pEntry, attrs ) )
+        {
+            index.remove( sRelPath );
+            Main.info( () -> fEntry + " --> not accepted." );
+            return null;
+        }
+
+        File fEquivalent = new File( fDesti, sRelPath );
+
+        metrics.scanned();
+
+        if( (item.attrsDest != null) && (item.attrsDest.isDirectory() != attrs.isDirectory()) )
+        {
+            long nOp = begin( Journal.cDELETE, sRelPath, null );
+
+            remove( fEquivalent );                     // A file where a folder has to be or vice versa
+            index.remove( sRelPath );
+            end( nOp, true, null );
+            destin.deleted( sRelPath );
+            metrics.deleted();
+            entry = null;
+            item  = new Item( pEntry, attrs, null, true );
+        }
+
+        if( attrs.isDirectory() )
+        {
+            if( item.bDestKnown )
+            {
+                return ((item.attrsDest != null) || handleDestinFolder( sRelPath )) ? attrs : null;
+            }
+
+            return (((entry != null) && entry.bFolder)     // Indexed: it was already created in Destination
+                    || handleDestinFolder( sRelPath )) ? attrs : null;
+        }
+
+        final BasicFileAttributes attrsFile = attrs;
+        final boolean             bMissing  = item.bDestKnown && (item.attrsDest == null);
+
+        if( (! bMissing) && (entry != null) && entry.isSameAs( attrs ) )
+        {
+            Main.info( () -> fEntry +" did not change since last synchronization: nothing to do." );
+        }
+        else if( ! claim( sRelPath ) )
+        {
+            Main.info( () -> fEntry +" changed and it is already being synchronized: nothing to do." );
+        }
+        else if( bMissing )
+        {
+            submitCopy( fEntry, fEquivalent, sRelPath, attrsFile, " does not exist in Destination: copied." );
+        }
+        else
+        {
+            final BasicFileAttributes attrsDest = item.attrsDest;
+
+            stgCompare.submit( () -> compare( fEntry, fEquivalent, sRelPath, attrsFile, attrsDest ) );
+        }
+
+        return null;
+    }
+
+    /**
+     * Compare stage job: when Origin and Destination files are different, a job
+     * to copy it is passed to the copy stage.
+     *
+     * @param attrsDest Destination file attributes (null == they have to be read).
+     */
+    private void compare( File fEntry, File fEquivalent, String sRelPath, BasicFileAttributes attrs, BasicFileAttributes attrsDest )
     {
-        if( fDest.exists() )
+        if( attrsDest == null )
+        {
+            attrsDest = destin.get( sRelPath );
+        }
+
+        if( (attrsDest != null) && Utils.areEquals( fEntry, attrs, fEquivalent, attrsDest, digests ) )
         {
-            Main.info( fDest +" already exists in destiantion: nothing to do." );
+            Main.info( () -> fEntry +" and "+ fEquivalent +" are equals: nothing to do." );
+            index.put( sRelPath, attrs );
+            setInFlight.remove( sRelPath );
+        }
+        else
+        {
+            submitCopy( fEntry, fEquivalent, sRelPath, attrs, " and "+ fEquivalent +" are not equals: updated in Destination." );
+        }
+    }
+
+    private void submitCopy( File fEntry, File fEquivalent, String sRelPath, BasicFileAttributes attrs, String sMsg )
+    {
+        stgCopy.submit( () ->
+                        {
+                            try
+                            {
+                                if( copyFile( fEntry, fEquivalent, sRelPath, attrs ) )
+                                {
+                                    Main.info( () -> fEntry + sMsg );
+                                }
+                            }
+                            finally
+                            {
+                                setInFlight.remove( sRelPath );
+                            }
+                        } );
+    }
+
+    /**
+     * The initial synchronization (or the ChangeQueue while it runs) is going
+     * to synchronize a file: returns false if it is already being synchronized
+     * (it must not be copied twice at the same time).
+     */
+    private boolean claim( String sRelPath )
+    {
+        return (! bInitial) || setInFlight.add( sRelPath );
+    }
+
+    private void deleteInDestin( String sRelPath )
+    {
+        File fEquivalent = new File( fDesti, sRelPath );
+
+        if( destin.get( sRelPath ) != null )
+        {
+            long nOp = begin( Journal.cDELETE, sRelPath, null );
+
+            remove( fEquivalent );
+            index.remove( sRelPath );
+            end( nOp, true, null );
+            destin.deleted( sRelPath );
+            metrics.deleted();
+            Main.info( () -> fEquivalent +" does not exists any more in Origin: deleted in Destination." );
+        }
+        else
+        {
+            index.remove( sRelPath );
+        }
+    }
+
+    /**
+     * Deletes an entry of Destination (a folder with all its contents): it is
+     * moved into the trash (and purged later) when there is one.
+     */
+    private void remove( File fEntry )
+    {
+        if( (trash == null) || (! trash.put( fEntry )) )
+        {
+            Utils.delete( fEntry, throttle );
+        }
+    }
+
+    private boolean moveInDestin( String sFrom, String sTo )
+    {
+        File fFrom = new File( fDesti, sFrom );
+        File fTo   = new File( fDesti, sTo );
+
+        if( (destin.get( sFrom ) == null) || (destin.get( sTo ) != null) )
+        {
+            return false;
+        }
+
+        if( throttle != null )
+        {
+            throttle.operation();
+        }
+
+        long nOp = begin( Journal.cMOVE, sTo, sFrom );
+
+        try
+        {
+            Files.createDirectories( fTo.getParentFile().toPath() );
+            Files.move( fFrom.toPath(), fTo.toPath() );
+        }
+        catch( IOException ioe )
+        {
+            end( nOp, false, null );
+            Main.log( Level.WARNING, "Can not move '"+ fFrom +"' to '"+ fTo +"'", ioe );
+            return false;
+        }
+
+        index.move( sFrom, sTo );
+        end( nOp, true, null );
+        destin.moved( sFrom, sTo );
+        metrics.moved();
+        Main.info( () -> fFrom +" was renamed or moved in Origin: moved to "+ fTo );
+        return true;
+    }
+
+    /**
+     * Copies a file and updates the index. The index is updated before the
+     * journal records the end of the copy: otherwise a checkpoint in between
+     * could compact the journal and save an index that does not have the file.
+     */
+    private boolean copyFile( File fOrig, File fDest, String sRelPath, BasicFileAttributes attrs )
+    {
+        long nStart = System.nanoTime();
+        long nOp    = begin( Journal.cCOPY, sRelPath, null );
+
+        if( ! copier.copy( fOrig, fDest ) )
+        {
+            end( nOp, false, null );
+            metrics.error();
+            return false;
+        }
+
+        index.put( sRelPath, attrs );
+        end( nOp, true, attrs );
+        destin.copied( sRelPath, attrs );
+
+        metrics.copied( attrs.size(), (System.nanoTime() - nStart) / 1000_000 );
+        return true;
+    }
+
+    private long begin( char cOp, String sRelPath, String sFrom )
+    {
+        return (journal == null) ? 0 : journal.begin( cOp, sRelPath, sFrom );
+    }
+
+    private void end( long nOp, boolean bDone, BasicFileAttributes attrs )
+    {
+        if( journal != null )
+        {
+            journal.end( nOp, bDone, attrs );
+        }
+    }
+
+    private boolean handleDestinFolder( String sRelPath )
+    {
+        File fDest = new File( fDesti, sRelPath );
+
+        if( destin.get( sRelPath ) != null )
+        {
+            Main.info( () -> fDest +" already exists in destiantion: nothing to do." );
             return true;
         }
 
         if( fDest.mkdirs() )
         {
-            Main.info( fDest +" did not exists in destiantion: successfully created." );
+            destin.created( sRelPath );
+            Main.info( () -> fDest +" did not exists in destiantion: successfully created." );
+            return true;
+        }
+
+        if( fDest.isDirectory() )             // Cached metadata was not up to date
+        {
             return true;
         }
 
@@ -157,4 +1111,116 @@ final class FullSync
                                                  "Folder in origin and its files can not be synchronized in destination" ) );
         return false;
     }
+
+    private String relative( Path path )
+    {
+        return fOrigi.toPath().relativize( path ).toString();
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+
+    /**
+     * An entry of an Origin folder that has to be synchronized.
+     */
+    private static final class Item
+    {
+        final Path                path;
+        final BasicFileAttributes attrs;         // null == they have to be read
+        final BasicFileAttributes attrsDest;     // null == not in Destination (or not known)
+        final boolean             bDestKnown;    // Destination folder was listed (attrsDest is meaningful)
+
+        Item( Path path, BasicFileAttributes attrs, BasicFileAttributes attrsDest, boolean bDestKnown )
+        {
+            this.path       = path;
+            this.attrs      = attrs;
+            this.attrsDest  = attrsDest;
+            this.bDestKnown = bDestKnown;
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+
+    /**
+     * A traversed folder waiting for its jobs to finish (see ::finish()).
+     */
+    private static final class Done
+    {
+        final BasicFileAttributes attrs;
+        final long                nCompareJob;   // Last compare job submitted when it was traversed
+        final long                nCopyJob;      // Last copy job submitted when it was traversed
+
+        Done( BasicFileAttributes attrs, long nCompareJob, long nCopyJob )
+        {
+            this.attrs       = attrs;
+            this.nCompareJob = nCompareJob;
+            this.nCopyJob    = nCopyJob;
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Parallel version of traverse2Copy(...): every sub-folder becomes a new
+     * fork/join task. Each entry is processed by the same code used by the
+     * sequential version (syncEntry(...)), so the final state of Destination
+     * and the messages logged are the same: only the order in which folders
+     * are visited changes.
+     */
+    private final class CopyFolder extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Path                path;
+        private       BasicFileAttributes attrs;      // null == they have to be read
+
+        CopyFolder( Path path, BasicFileAttributes attrs )
+        {
+            this.path  = path;
+            this.attrs = attrs;
+        }
+
+        @Override
+        protected void compute()
+        {
+            List<CopyFolder> lstSubTasks = new ArrayList<>();
+
+            try
+            {
+                if( attrs == null )
+                {
+                    attrs = Files.readAttributes( path, BasicFileAttributes.class );
+                }
+
+                List<Item> lstItems = listFolder( path, attrs, true );
+
+                if( lstItems == null )
+                {
+                    return;
+                }
+
+                for( Item item : lstItems )
+                {
+                    BasicFileAttributes attrsEntry = syncEntry( item );
+
+                    if( attrsEntry != null )
+                    {
+                        lstSubTasks.add( new CopyFolder( item.path, attrsEntry ) );
+                    }
+                }
+            }
+            catch( IOException ex )
+            {
+                throw new UncheckedIOException( ex );
+            }
+
+            invokeAll( lstSubTasks );
+            traversed( path, attrs );
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,669 @@
+/*
+ * Copyright (C) 2017 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.jsync.synchronizer;
+
+import com.peyrona.jsync.Main;
+import static com.peyrona.jsync.Main.sAPP_NAME;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of the operations done in Destination (copies, deletions
+ * and moves), so a task that was killed can recover without depending on its
+ * index being saved.
+ * <p>
+ * Before an operation starts, a 'begin' record is appended and the operation
+ * waits until it is in disk; when it ends, an 'end' record is appended (it
+ * does not wait). Records are written by this thread: all records appended
+ * while it was writing the previous ones are written together and followed by
+ * only one fsync (group commit), so many small files being copied at the same
+ * time do not wait for one fsync each.
+ * <p>
+ * When the task starts, the journal is read (see ::recover(...)): operations
+ * that ended are applied to the index (that could be older than them) and
+ * operations that did not end are returned to be verified (see FullSync).
+ * <p>
+ * Every time the index is saved, records that are in the saved index are
+ * removed from the journal (checkpoint); the index is saved too when the
+ * journal becomes too big.
+ * <p>
+ * Records are framed by their length and a CRC32: a record that was not
+ * completely written (the application died while writing it) is discarded
+ * with all that follows it.
+ *
+ * @author peyrona
+ */
+final class Journal extends Thread
+{
+    static final char cCOPY   = 'C';
+    static final char cDELETE = 'D';
+    static final char cMOVE   = 'M';
+
+    private static final int  nMAGIC    = 0x4A534A4E;              // "JSJN"
+    private static final int  nVERSION  = 1;
+    private static final byte nBEGIN    = 'B';
+    private static final byte nEND      = 'E';
+    private static final long nMAX_SIZE = 32L * 1024 * 1024;       // Bytes: checkpoint is requested when bigger
+
+    private final File                  fJournal;
+    private final String                sSignature;
+    private final Runnable              checkpointer;                         // Saves the index and invokes ::checkpoint(...)
+    private final Map<Long,Op>          mapOpen     = new HashMap<>();        // Operations that did not end (guarded by 'this')
+    private final ByteArrayOutputStream baosPending = new ByteArrayOutputStream();    // Records to write (guarded by 'this')
+    private       long                  nLast       = 0;                      // Number of last appended record (guarded by 'this')
+    private       long                  nDurable    = 0;                      // Number of last record in disk (guarded by 'this')
+    private       long                  nCheckpoint = -1;                     // Requested checkpoint mark (guarded by 'this')
+    private       long                  nCompacted  = -1;                     // Mark of last checkpoint (guarded by 'this')
+    private       boolean               bEnabled    = false;                  // Guarded by 'this'
+    private       boolean               bRequested  = false;                  // A checkpoint was requested because of size (used only by this thread)
+    private       FileChannel           channel     = null;                   // Used only by this thread (once started)
+    private       long                  nSize       = 0;                      // Used only by this thread (once started)
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Constructor.
+     *
+     * @param fJournal File where records are written.
+     * @param sSignature Identifies the task definition (as the index signature).
+     * @param checkpointer Invoked (in its own thread) when the journal becomes
+     *                     too big: it has to save the index and invoke
+     *                     ::checkpoint(...).
+     */
+    Journal( File fJournal, String sSignature, Runnable checkpointer )
+    {
+        super( sAPP_NAME +":"+ Journal.class.getSimpleName() );
+
+        this.fJournal     = fJournal;
+        this.sSignature   = sSignature;
+        this.checkpointer = checkpointer;
+
+        setDaemon( true );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Reads the journal (if it exists), applies to passed index the operations
+     * that ended and starts writing records.
+     *
+     * @param index Index of the task (already loaded).
+     * @return Operations that began but did not end: they have to be verified.
+     */
+    List<Op> recover( SyncIndex index )
+    {
+        List<Op> lstOpen = new ArrayList<>();
+
+        if( Main.isTesting() )      // Nothing is really copied or deleted
+        {
+            return lstOpen;
+        }
+
+        Map<Long,Op> mapBegun = new HashMap<>();
+        long         nValid   = read( index, mapBegun );
+
+        try
+        {
+            if( nValid <= 0 )       // Does not exist or it is not valid: a new one is created
+            {
+                channel = FileChannel.open( fJournal.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING );
+                writeHeader( channel );
+            }
+            else                    // Discards what follows last valid record
+            {
+                channel = FileChannel.open( fJournal.toPath(), StandardOpenOption.WRITE );
+                channel.truncate( nValid );
+                channel.position( nValid );
+            }
+
+            channel.force( true );
+            nSize = channel.size();
+        }
+        catch( IOException ioe )
+        {
+            Main.log( Level.WARNING, "Error opening journal '"+ fJournal +"': operations will not be journaled", ioe );
+            return new ArrayList<>( mapBegun.values() );
+        }
+
+        synchronized( this )
+        {
+            for( Op op : mapBegun.values() )
+            {
+                mapOpen.put( op.nOp, op );
+                nLast = Math.max( nLast, op.nOp );
+                lstOpen.add( op );
+            }
+
+            nDurable = nLast;
+            bEnabled = true;
+        }
+
+        start();
+
+        if( ! lstOpen.isEmpty() )
+        {
+            Main.info( () -> lstOpen.size() +" operation(s) did not end last time "+ sAPP_NAME +" ran: they will be verified." );
+        }
+
+        return lstOpen;
+    }
+
+    /**
+     * Appends a 'begin' record and waits until it is in disk.
+     *
+     * @param cOp Operation: ::cCOPY, ::cDELETE or ::cMOVE.
+     * @param sRelPath Relative path of the entry (its new path when moving).
+     * @param sFrom Old relative path of the entry when moving (null otherwise).
+     * @return The operation number (0 when the journal is not enabled).
+     */
+    synchronized long begin( char cOp, String sRelPath, String sFrom )
+    {
+        if( ! bEnabled )
+        {
+            return 0;
+        }
+
+        Op op = new Op( ++nLast, cOp, sRelPath, (sFrom == null) ? "" : sFrom );
+
+        mapOpen.put( op.nOp, op );
+        append( nBEGIN, op.nOp, op, false, null );
+        notifyAll();
+
+        while( bEnabled && (nDurable < op.nOp) )
+        {
+            try
+            {
+                wait();
+            }
+            catch( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        return op.nOp;
+    }
+
+    /**
+     * Appends an 'end' record (without waiting for it to be in disk).
+     *
+     * @param nOp Operation number returned by ::begin(...).
+     * @param bDone true if the operation was successfully done.
+     * @param attrs Attributes of the copied file (null for other operations).
+     */
+    synchronized void end( long nOp, boolean bDone, BasicFileAttributes attrs )
+    {
+        Op op = mapOpen.remove( nOp );
+
+        if( bEnabled && (op != null) )
+        {
+            append( nEND, ++nLast, op, bDone, attrs );
+            notifyAll();
+        }
+    }
+
+    /**
+     * Returns the number of the last appended record: it has to be requested
+     * before saving the index and passed to ::checkpoint(...) after saving it.
+     *
+     * @return The number of the last appended record.
+     */
+    synchronized long mark()
+    {
+        return nLast;
+    }
+
+    /**
+     * The index was saved: records of operations that ended before passed mark
+     * are removed from the journal. Waits until it is done.
+     *
+     * @param nMark What ::mark() returned before saving the index.
+     */
+    synchronized void checkpoint( long nMark )
+    {
+        if( ! bEnabled )
+        {
+            return;
+        }
+
+        nCheckpoint = Math.max( nCheckpoint, nMark );
+        notifyAll();
+
+        while( bEnabled && isAlive() && (nCompacted < nMark) )
+        {
+            try
+            {
+                wait( 1000 );
+            }
+            catch( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+
+    @Override
+    public void run()
+    {
+        while( true )
+        {
+            byte[] abRecords;
+            long   nUpTo;
+            long   nMark;
+
+            synchronized( this )
+            {
+                while( (baosPending.size() == 0) && (nCheckpoint < 0) )
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch( InterruptedException ie )
+                    {
+                        return;
+                    }
+                }
+
+                abRecords = baosPending.toByteArray();
+                nUpTo     = nLast;
+                nMark     = nCheckpoint;
+                nCheckpoint = -1;
+                baosPending.reset();
+            }
+
+            try
+            {
+                if( abRecords.length > 0 )
+                {
+                    ByteBuffer bb = ByteBuffer.wrap( abRecords );
+
+                    while( bb.hasRemaining() )
+                    {
+                        channel.write( bb );
+                    }
+
+                    channel.force( false );     // Only one fsync for all records written together
+                    nSize += abRecords.length;
+                }
+
+                if( nMark >= 0 )
+                {
+                    compact( nMark );
+                }
+            }
+            catch( IOException ioe )
+            {
+                Main.log( Level.SEVERE, "Error writing journal '"+ fJournal +"': operations will not be journaled", ioe );
+
+                synchronized( this )
+                {
+                    bEnabled = false;
+                    notifyAll();
+                }
+
+                return;
+            }
+
+            synchronized( this )
+            {
+                nDurable = nUpTo;
+
+                if( nMark >= 0 )
+                {
+                    nCompacted = Math.max( nCompacted, nMark );
+                    bRequested = false;
+                }
+
+                notifyAll();
+            }
+
+            if( (nSize > nMAX_SIZE) && (! bRequested) && (checkpointer != null) )
+            {
+                bRequested = true;
+                new Thread( checkpointer, sAPP_NAME +":Checkpoint" ).start();
+            }
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Appends a record into the pending records buffer.
+     */
+    private void append( byte nType, long nRecord, Op op, boolean bDone, BasicFileAttributes attrs )
+    {
+        try
+        {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream( 128 );
+            DataOutputStream      dos  = new DataOutputStream( baos );
+
+            dos.writeByte( nType );
+            dos.writeLong( nRecord );
+            dos.writeLong( op.nOp );
+            dos.writeByte( op.cOp );
+            dos.writeUTF( op.sPath );
+            dos.writeUTF( op.sFrom );
+
+            if( nType == nEND )
+            {
+                dos.writeBoolean( bDone );
+                dos.writeBoolean( attrs != null );
+
+                if( attrs != null )
+                {
+                    Object oKey = attrs.fileKey();
+
+                    dos.writeBoolean( attrs.isDirectory() );
+                    dos.writeLong( attrs.isDirectory() ? 0 : attrs.size() );
+                    dos.writeLong( attrs.lastModifiedTime().toMillis() );
+                    dos.writeUTF( (oKey == null) ? "" : oKey.toString() );
+                }
+            }
+
+            dos.flush();
+            writeFrame( new DataOutputStream( baosPending ), baos.toByteArray() );
+        }
+        catch( IOException ioe )
+        {
+            throw new IllegalStateException( ioe );     // Can not happen: written into memory
+        }
+    }
+
+    /**
+     * Reads the journal file applying ended operations to passed index and
+     * putting into passed map those that did not end.
+     *
+     * @return The position that follows last valid record or 0 if the file
+     *         does not exist or it is not valid.
+     */
+    private long read( SyncIndex index, Map<Long,Op> mapBegun )
+    {
+        if( ! fJournal.exists() )
+        {
+            return 0;
+        }
+
+        long nValid = 0;
+        int  nEnded = 0;
+
+        try( DataInputStream dis = new DataInputStream( new BufferedInputStream( new FileInputStream( fJournal ), 64*1024 ) ) )
+        {
+            if( (dis.readInt() != nMAGIC) || (dis.readInt() != nVERSION) || (! sSignature.equals( dis.readUTF() )) )
+            {
+                Main.info( () -> fJournal +" was created by a different version or task definition: ignored." );
+                return 0;
+            }
+
+            nValid = headerSize();
+
+            byte[] abRecord;
+
+            while( (abRecord = readFrame( dis )) != null )
+            {
+                DataInputStream disRec  = new DataInputStream( new ByteArrayInputStream( abRecord ) );
+                byte            nType   = disRec.readByte();
+                long            nRecord = disRec.readLong();
+                Op              op      = new Op( disRec.readLong(), (char) disRec.readByte(), disRec.readUTF(), disRec.readUTF() );
+
+                nLast   = Math.max( nLast, nRecord );
+                nValid += 4 + abRecord.length + 4;
+
+                if( nType == nBEGIN )
+                {
+                    mapBegun.put( op.nOp, op );
+                }
+                else
+                {
+                    mapBegun.remove( op.nOp );
+
+                    if( disRec.readBoolean() )      // Done
+                    {
+                        SyncIndex.Entry entry = (disRec.readBoolean() ? new SyncIndex.Entry( disRec.readBoolean(), disRec.readLong(), disRec.readLong(), disRec.readUTF() )
+                                                                      : null);
+                        replay( index, op, entry );
+                        nEnded++;
+                    }
+                }
+            }
+        }
+        catch( EOFException eofe )
+        {
+            // Nothing to do: last record was not completely written
+        }
+        catch( IOException ioe )
+        {
+            Main.log( Level.WARNING, "Error reading journal '"+ fJournal +"': only what was read will be used", ioe );
+        }
+
+        if( nEnded > 0 )
+        {
+            final int nOps = nEnded;
+            Main.info( () -> nOps +" journaled operation(s) applied to the index." );
+        }
+
+        return nValid;
+    }
+
+    /**
+     * Applies an operation that ended to the index (it could be already there).
+     */
+    private static void replay( SyncIndex index, Op op, SyncIndex.Entry entry )
+    {
+        switch( op.cOp )
+        {
+            case cCOPY:
+                if( entry != null )
+                {
+                    index.put( op.sPath, entry );
+                }
+                break;
+
+            case cDELETE:
+                index.remove( op.sPath );
+                break;
+
+            case cMOVE:
+                index.move( op.sFrom, op.sPath );
+                break;
+        }
+    }
+
+    /**
+     * Rewrites the journal keeping only the records of operations that did not
+     * end and the 'end' records appended after passed mark (those that could
+     * not be in the saved index).
+     */
+    private void compact( long nMark ) throws IOException
+    {
+        List<byte[]> lstFrames = new ArrayList<>();
+        Set<Long>    setEnded  = new HashSet<>();
+
+        channel.close();
+
+        try( DataInputStream dis = new DataInputStream( new BufferedInputStream( new FileInputStream( fJournal ), 64*1024 ) ) )
+        {
+            dis.readInt();
+            dis.readInt();
+            dis.readUTF();
+
+            byte[] abRecord;
+
+            while( (abRecord = readFrame( dis )) != null )
+            {
+                DataInputStream disRec  = new DataInputStream( new ByteArrayInputStream( abRecord ) );
+                byte            nType   = disRec.readByte();
+                long            nRecord = disRec.readLong();
+                long            nOp     = disRec.readLong();
+
+                if( nType == nEND )
+                {
+                    setEnded.add( nOp );
+
+                    if( nRecord <= nMark )
+                    {
+                        continue;
+                    }
+                }
+
+                lstFrames.add( abRecord );
+            }
+        }
+        catch( EOFException eofe )
+        {
+            // Nothing to do
+        }
+
+        File fTmp = new File( fJournal.getAbsolutePath() +".tmp" );
+
+        try( FileChannel chTmp = FileChannel.open( fTmp.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING ) )
+        {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream      dos  = new DataOutputStream( baos );
+
+            for( byte[] abRecord : lstFrames )
+            {
+                DataInputStream disRec = new DataInputStream( new ByteArrayInputStream( abRecord ) );
+                byte            nType  = disRec.readByte();
+
+                disRec.readLong();
+
+                if( (nType == nBEGIN) && setEnded.contains( disRec.readLong() ) )
+                {
+                    continue;       // Its 'end' record is kept or it is in the saved index
+                }
+
+                writeFrame( dos, abRecord );
+            }
+
+            writeHeader( chTmp );
+            chTmp.write( ByteBuffer.wrap( baos.toByteArray() ) );
+            chTmp.force( true );
+        }
+
+        Files.move( fTmp.toPath(), fJournal.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+
+        channel = FileChannel.open( fJournal.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND );
+        nSize   = channel.size();
+    }
+
+    private void writeHeader( FileChannel ch ) throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream      dos  = new DataOutputStream( baos );
+
+        dos.writeInt( nMAGIC );
+        dos.writeInt( nVERSION );
+        dos.writeUTF( sSignature );
+        dos.flush();
+
+        ch.write( ByteBuffer.wrap( baos.toByteArray() ) );
+    }
+
+    private long headerSize()
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+        try
+        {
+            new DataOutputStream( baos ).writeUTF( sSignature );
+        }
+        catch( IOException ioe )
+        {
+            throw new IllegalStateException( ioe );     // Can not happen: written into memory
+        }
+
+        return 4 + 4 + baos.size();
+    }
+
+    private static void writeFrame( DataOutputStream dos, byte[] abRecord ) throws IOException
+    {
+        CRC32 crc = new CRC32();
+              crc.update( abRecord, 0, abRecord.length );
+
+        dos.writeInt( abRecord.length );
+        dos.write( abRecord );
+        dos.writeInt( (int) crc.getValue() );
+        dos.flush();
+    }
+
+    /**
+     * Returns next record or null if there are no more valid records.
+     */
+    private static byte[] readFrame( DataInputStream dis ) throws IOException
+    {
+        int nLength = dis.readInt();
+
+        if( (nLength <= 0) || (nLength > 1024 * 1024) )
+        {
+            return null;
+        }
+
+        byte[] abRecord = new byte[ nLength ];
+        CRC32  crc      = new CRC32();
+
+        dis.readFully( abRecord );
+        crc.update( abRecord, 0, nLength );
+
+        return (dis.readInt() == (int) crc.getValue()) ? abRecord : null;
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+
+    static final class Op
+    {
+        final long   nOp;
+        final char   cOp;
+        final String sPath;
+        final String sFrom;      // "" when it is not a move
+
+        Op( long nOp, char cOp, String sPath, String sFrom )
+        {
+            this.nOp   = nOp;
+            this.cOp   = cOp;
+            this.sPath = sPath;
+            this.sFrom = sFrom;
+        }
+    }
+}
\ No newline at end of file
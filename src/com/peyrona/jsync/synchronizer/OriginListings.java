@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2017 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.jsync.synchronizer;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Listings of Origin folders shared by the FullSyncs of a task with many
+ * Destinations (one FullSync per Destination), so Origin is scanned only once
+ * no matter how many Destinations there are.
+ * <p>
+ * The first FullSync that needs a folder lists it; the others wait for it and
+ * receive a copy. A listing is kept only for the other FullSyncs that will
+ * list the folder too (those which index says that the folder changed): it is
+ * discarded once all of them took it or skipped the folder, so a Destination
+ * that is up to date does not make listings pile up.
+ *
+ * @author peyrona
+ */
+final class OriginListings
+{
+    private final List<FullSync>    lstReaders;        // One per Destination
+    private final Map<Path,Listing> mapListings = new ConcurrentHashMap<>();
+
+    //----------------------------------------------------------------------------//
+
+    OriginListings( List<FullSync> lstReaders )
+    {
+        this.lstReaders = lstReaders;
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Returns the listing of passed Origin folder, reading it only if no other
+     * FullSync did it already.
+     *
+     * @param reader FullSync that needs the listing.
+     * @param path Origin folder.
+     * @param attrs Folder attributes (used to know which other FullSyncs will
+     *              need the listing).
+     * @param lister What lists the folder.
+     * @return The names of the entries of the folder and their attributes.
+     * @throws IOException
+     */
+    TreeMap<String,BasicFileAttributes> list( FullSync reader, Path path, BasicFileAttributes attrs, Reader lister ) throws IOException
+    {
+        Listing listing = mapListings.computeIfAbsent( path, (p) -> new Listing( reader, p, attrs ) );
+
+        synchronized( listing )
+        {
+            try
+            {
+                if( (listing.mapEntries == null) && (listing.error == null) )
+                {
+                    try
+                    {
+                        listing.mapEntries = lister.list( path );
+                    }
+                    catch( IOException ioe )
+                    {
+                        listing.error = ioe;
+                    }
+                }
+
+                if( listing.error != null )
+                {
+                    throw listing.error;
+                }
+
+                return new TreeMap<>( listing.mapEntries );
+            }
+            finally
+            {
+                release( reader, path, listing );
+            }
+        }
+    }
+
+    /**
+     * Passed FullSync will not list passed folder (it did not change since it
+     * was synchronized): the listing is not kept for it.
+     *
+     * @param reader FullSync that skips the folder.
+     * @param path Origin folder.
+     */
+    void skip( FullSync reader, Path path )
+    {
+        Listing listing = mapListings.get( path );
+
+        if( listing != null )
+        {
+            synchronized( listing )
+            {
+                release( reader, path, listing );
+            }
+        }
+    }
+
+    /**
+     * Discards all listings (those folders that some FullSync did not take).
+     */
+    void clear()
+    {
+        mapListings.clear();
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private void release( FullSync reader, Path path, Listing listing )
+    {
+        listing.setWaiting.remove( reader );
+
+        if( listing.setWaiting.isEmpty() )
+        {
+            mapListings.remove( path, listing );
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+
+    interface Reader
+    {
+        TreeMap<String,BasicFileAttributes> list( Path path ) throws IOException;
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+
+    private final class Listing
+    {
+        final Set<FullSync>                 setWaiting = new HashSet<>();    // Will take it (guarded by 'this')
+        TreeMap<String,BasicFileAttributes> mapEntries = null;
+        IOException                         error      = null;
+
+        Listing( FullSync creator, Path path, BasicFileAttributes attrs )
+        {
+            setWaiting.add( creator );
+
+            for( FullSync reader : lstReaders )
+            {
+                if( (reader != creator) && reader.isToBeListed( path, attrs ) )
+                {
+                    setWaiting.add( reader );
+                }
+            }
+        }
+    }
+}
\ No newline at end of file
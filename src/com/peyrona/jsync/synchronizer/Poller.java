@@ -0,0 +1,455 @@
+/*
+ * Copyright (C) 2017 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.jsync.synchronizer;
+
+import com.peyrona.jsync.EntryFilter;
+import com.peyrona.jsync.Main;
+import com.peyrona.jsync.metrics.Metrics;
+import static com.peyrona.jsync.Main.sAPP_NAME;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+
+/**
+ * Monitorizes Origin folder changes by polling it: used instead of Watcher
+ * when the file system does not notify changes (e.g. NFS, WebDAV or FUSE
+ * mounts).
+ * <p>
+ * A picture of Origin (a FileTree with the size and modified time of every
+ * entry accepted by the filter) is taken when the thread starts (from the
+ * index when it was loaded, so Origin is not walked) and every folder is
+ * polled on its own: when the modified time of the folder changed
+ * (entries were created, deleted or renamed inside it) the folder is listed and
+ * compared with the picture; otherwise only the files it had are checked (a
+ * file modified in place does not change its folder time). Because some file
+ * systems do not update folders time, a folder is listed anyway when it was
+ * not listed during the max interval.
+ * <p>
+ * Poll intervals adapt to every folder: a folder where something changed is
+ * polled again after the min interval and every poll that finds nothing
+ * doubles it, up to the max interval (32 times the min one). This way, folders
+ * being worked on are polled often and the rest rarely, without scanning all
+ * Origin every time.
+ * <p>
+ * Detected changes are passed to the ChangeQueues, as Watcher does (deletes
+ * before creates, so renames inside a folder are paired).
+ *
+ * @author peyrona
+ */
+final class Poller extends Thread
+{
+    private static final int  nMAX_FACTOR = 32;     // Max interval == min interval * this
+    private static final long nCOARSE     = 2000;   // Millis: file systems times can be this coarse
+
+    private final Path                  pOrig;
+    private final EntryFilter           filter;
+    private final List<ChangeQueue>     lstQueues;          // One per Destination
+    private final SyncIndex             index;              // Its picture of Origin is taken if it was loaded
+    private final Metrics               metrics;
+    private final long                  nMinInterval;
+    private final long                  nMaxInterval;
+    private final FileTree              tree;               // Origin as it was last time it was polled
+    private final Map<String,Folder>    mapFolders = new HashMap<>();     // Relative path -> its poll schedule
+    private final PriorityQueue<Folder> pqFolders  = new PriorityQueue<>( (f1, f2) -> Long.compare( f1.nDue, f2.nDue ) );
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Constructor.
+     *
+     * @param fOrig Origin folder.
+     * @param filter What has to be synchronized.
+     * @param lstQueues Where detected changes are passed.
+     * @param index Index of a Destination (what was synchronized last time).
+     * @param metrics Where detected changes are counted.
+     * @param nMinInterval Millis between 2 polls of a folder that is changing.
+     * @param bOffHeap true to keep the picture of Origin outside the Java heap.
+     */
+    Poller( File fOrig, EntryFilter filter, List<ChangeQueue> lstQueues, SyncIndex index, Metrics metrics, long nMinInterval, boolean bOffHeap )
+    {
+        super( sAPP_NAME +":"+ Poller.class.getSimpleName() );
+
+        this.pOrig        = fOrig.getAbsoluteFile().toPath();
+        this.filter       = filter;
+        this.lstQueues    = lstQueues;
+        this.index        = index;
+        this.metrics      = metrics;
+        this.nMinInterval = Math.max( 100, nMinInterval );
+        this.nMaxInterval = this.nMinInterval * nMAX_FACTOR;
+        this.tree         = new FileTree( bOffHeap );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    @Override
+    public void run()
+    {
+        picture();
+
+        while( ! isInterrupted() )
+        {
+            Folder folder = pqFolders.peek();
+
+            try
+            {
+                long nWait = (folder == null) ? nMinInterval : (folder.nDue - System.currentTimeMillis());
+
+                if( nWait > 0 )
+                {
+                    Thread.sleep( nWait );
+                    continue;
+                }
+            }
+            catch( InterruptedException ie )
+            {
+                return;
+            }
+
+            pqFolders.poll();
+            poll( folder );
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private void poll( Folder folder )
+    {
+        int nNode = tree.find( folder.sRelPath, false );
+
+        if( (nNode == FileTree.nNONE) || (! tree.isFolder( nNode )) )     // Deleted
+        {
+            mapFolders.remove( folder.sRelPath );
+            return;
+        }
+
+        Path                path     = resolve( folder.sRelPath );
+        BasicFileAttributes attrs    = readAttributes( path );
+        long                nNow     = System.currentTimeMillis();
+        boolean             bChanged = false;
+
+        if( (attrs != null) && attrs.isDirectory() )         // Otherwise, its parent will notice it
+        {
+            try
+            {
+                long nModified = attrs.lastModifiedTime().toMillis();
+
+                // When it was listed right after it was modified, it could have been modified
+                // again without its time changing (coarse times): it is listed again.
+
+                if( (nModified != tree.getModified( nNode )) || (folder.nListed - nModified <= nCOARSE) || (nNow - folder.nListed >= nMaxInterval) )
+                {
+                    bChanged = compare( nNode, folder.sRelPath, FullSync.list( path ) );
+                    setData( nNode, attrs );
+                    folder.nListed = nNow;
+                }
+                else
+                {
+                    bChanged = check( nNode, folder );
+                }
+            }
+            catch( IOException ioe )
+            {
+                Main.log( Level.FINE, "Can not poll '"+ path +"'", ioe );      // Deleted or not reachable now
+            }
+        }
+
+        folder.nInterval = bChanged ? nMinInterval : Math.min( folder.nInterval * 2, nMaxInterval );
+        folder.nDue      = System.currentTimeMillis() + folder.nInterval;
+        pqFolders.add( folder );
+    }
+
+    /**
+     * Compares the listing of a folder with the picture, updating the picture
+     * and reporting the differences.
+     *
+     * @return true if something changed.
+     */
+    private boolean compare( int nFolder, String sRelFolder, TreeMap<String,BasicFileAttributes> mapNow )
+    {
+        boolean bChanged = false;
+        int     nChild   = tree.getFirstChild( nFolder );
+
+        while( nChild != FileTree.nNONE )
+        {
+            int                 nNext = tree.getNextSibling( nChild );      // Before nChild is removed
+            String              sName = tree.getName( nChild );
+            BasicFileAttributes attrs = mapNow.remove( sName );
+
+            if( (attrs == null) || (attrs.isDirectory() != tree.isFolder( nChild )) )
+            {
+                tree.remove( nChild );
+                report( Change.DELETED, SyncIndex.child( sRelFolder, sName ), null );
+                bChanged = true;
+
+                if( attrs != null )                            // Type changed: it is a new entry now
+                {
+                    mapNow.put( sName, attrs );
+                }
+            }
+            else if( (! attrs.isDirectory()) && isChanged( nChild, attrs ) )
+            {
+                setData( nChild, attrs );
+                report( Change.MODIFIED, SyncIndex.child( sRelFolder, sName ), attrs );
+                bChanged = true;
+            }
+
+            nChild = nNext;
+        }
+
+        for( Map.Entry<String,BasicFileAttributes> entry : mapNow.entrySet() )
+        {
+            BasicFileAttributes attrs    = entry.getValue();
+            String              sRelPath = SyncIndex.child( sRelFolder, entry.getKey() );
+
+            if( (attrs != null) && filter.accept( resolve( sRelPath ), attrs ) )
+            {
+                int nChildNew = tree.child( nFolder, entry.getKey(), true );
+
+                setData( nChildNew, attrs );
+
+                if( attrs.isDirectory() )                      // Has to be done now: its contents can change at any moment
+                {
+                    picture( nChildNew, sRelPath );
+                }
+
+                report( Change.CREATED, sRelPath, attrs );
+                bChanged = true;
+            }
+        }
+
+        return bChanged;
+    }
+
+    /**
+     * Checks the files of a folder that did not change (no entries were
+     * created or deleted inside it), updating the picture and reporting the
+     * differences.
+     *
+     * @return true if something changed.
+     */
+    private boolean check( int nFolder, Folder folder )
+    {
+        boolean bChanged = false;
+        int     nChild   = tree.getFirstChild( nFolder );
+
+        while( nChild != FileTree.nNONE )
+        {
+            int nNext = tree.getNextSibling( nChild );
+
+            if( ! tree.isFolder( nChild ) )
+            {
+                String              sRelPath = SyncIndex.child( folder.sRelPath, tree.getName( nChild ) );
+                BasicFileAttributes attrs    = readAttributes( resolve( sRelPath ) );
+
+                if( (attrs == null) || attrs.isDirectory() )   // Folder time was not updated: it is listed next time
+                {
+                    folder.nListed = 0;
+                    bChanged = true;
+                }
+                else if( isChanged( nChild, attrs ) )
+                {
+                    setData( nChild, attrs );
+                    report( Change.MODIFIED, sRelPath, attrs );
+                    bChanged = true;
+                }
+            }
+
+            nChild = nNext;
+        }
+
+        return bChanged;
+    }
+
+    /**
+     * Takes the picture of Origin. When the index was loaded, it is what was
+     * synchronized last time (changes made since then are found by the first
+     * polls, as FullSync finds them); otherwise Origin is walked.
+     */
+    private void picture()
+    {
+        if( index.isLoaded() )
+        {
+            index.copyTo( tree );
+
+            for( int nNode = FileTree.nROOT; nNode != FileTree.nNONE; nNode = tree.getFollowing( nNode, FileTree.nROOT ) )
+            {
+                if( tree.isFolder( nNode ) )
+                {
+                    schedule( tree.getPath( nNode ) );
+                }
+            }
+
+            return;
+        }
+
+        try
+        {
+            setData( FileTree.nROOT, Files.readAttributes( pOrig, BasicFileAttributes.class ) );
+        }
+        catch( IOException ioe )
+        {
+            Main.log( Level.WARNING, "Can not monitorize '"+ pOrig +"'", ioe );
+        }
+
+        picture( FileTree.nROOT, "" );
+    }
+
+    /**
+     * Adds to the picture all the entries inside passed folder (accepted by
+     * the filter) and schedules the polls of its sub-folders.
+     */
+    private void picture( int nFolder, String sRelFolder )
+    {
+        schedule( sRelFolder );
+
+        TreeMap<String,BasicFileAttributes> mapEntries;
+
+        try
+        {
+            mapEntries = FullSync.list( resolve( sRelFolder ) );
+        }
+        catch( IOException ioe )
+        {
+            Main.log( Level.WARNING, "Can not monitorize '"+ resolve( sRelFolder ) +"'", ioe );
+            return;
+        }
+
+        for( Map.Entry<String,BasicFileAttributes> entry : mapEntries.entrySet() )
+        {
+            BasicFileAttributes attrs    = entry.getValue();
+            String              sRelPath = SyncIndex.child( sRelFolder, entry.getKey() );
+
+            if( (attrs != null) && filter.accept( resolve( sRelPath ), attrs ) )
+            {
+                int nChild = tree.child( nFolder, entry.getKey(), true );
+
+                setData( nChild, attrs );
+
+                if( attrs.isDirectory() )
+                {
+                    picture( nChild, sRelPath );
+                }
+            }
+        }
+    }
+
+    /**
+     * Schedules the polls of a folder. Folders modified lately start being
+     * polled often; the others start with the max interval (their first polls
+     * are spread along it).
+     */
+    private void schedule( String sRelFolder )
+    {
+        if( mapFolders.containsKey( sRelFolder ) )         // Deleted and created again before it was polled
+        {
+            return;
+        }
+
+        long    nNow   = System.currentTimeMillis();
+        int     nNode  = tree.find( sRelFolder, false );
+        boolean bHot   = (nNow - tree.getModified( nNode ) < nMaxInterval);
+        Folder  folder = new Folder( sRelFolder );
+
+        folder.nListed   = nNow;
+        folder.nInterval = bHot ? nMinInterval : nMaxInterval;
+        folder.nDue      = nNow + (bHot ? nMinInterval : ThreadLocalRandom.current().nextLong( nMaxInterval ));
+
+        mapFolders.put( sRelFolder, folder );
+        pqFolders.add( folder );
+    }
+
+    private void report( Change change, String sRelPath, BasicFileAttributes attrs )
+    {
+        Path path = resolve( sRelPath );
+
+        metrics.event();
+
+        switch( change )
+        {
+            case CREATED : lstQueues.forEach( (queue) -> queue.created( path, attrs ) );  break;
+            case MODIFIED: lstQueues.forEach( (queue) -> queue.modified( path, attrs ) ); break;
+            case DELETED : lstQueues.forEach( (queue) -> queue.deleted( path ) );         break;
+        }
+    }
+
+    private boolean isChanged( int nNode, BasicFileAttributes attrs )
+    {
+        return (tree.getSize( nNode ) != attrs.size())
+               ||
+               (tree.getModified( nNode ) != attrs.lastModifiedTime().toMillis());
+    }
+
+    private void setData( int nNode, BasicFileAttributes attrs )
+    {
+        Object oKey = attrs.fileKey();
+
+        tree.setData( nNode,
+                      attrs.isDirectory(),
+                      (attrs.isDirectory() ? 0 : attrs.size()),
+                      attrs.lastModifiedTime().toMillis(),
+                      (oKey == null) ? "" : oKey.toString() );
+    }
+
+    private Path resolve( String sRelPath )
+    {
+        return sRelPath.isEmpty() ? pOrig : pOrig.resolve( sRelPath );
+    }
+
+    private static BasicFileAttributes readAttributes( Path path )
+    {
+        try
+        {
+            return Files.readAttributes( path, BasicFileAttributes.class );
+        }
+        catch( IOException ioe )         // Deleted meanwhile: its parent will notice it
+        {
+            return null;
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+
+    private enum Change { CREATED, MODIFIED, DELETED }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+
+    private static final class Folder
+    {
+        final String sRelPath;
+        long         nDue      = 0;        // When it has to be polled
+        long         nInterval = 0;        // Millis between its polls
+        long         nListed   = 0;        // When it was listed last time
+
+        Folder( String sRelPath )
+        {
+            this.sRelPath = sRelPath;
+        }
+    }
+}
\ No newline at end of file
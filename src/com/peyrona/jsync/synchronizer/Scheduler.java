@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2017 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.jsync.synchronizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shares a global budget of concurrent I/O operations among all tasks.
+ * <p>
+ * Every task gets a Ticket (with a weight) that has to be acquired before
+ * every copy operation and released after it. When the budget is exhausted,
+ * operations wait and, when one finishes, next one to run is taken from the
+ * task that received less operations in relation to its weight (weighted fair
+ * queuing: every granted operation advances the task virtual time by
+ * 1/weight and the task with the lowest virtual time goes first). A task that
+ * was idle starts again at current virtual time, so it can not claim the
+ * share it did not use.
+ * <p>
+ * If there is a tie, the one which Destination device (file store) is less
+ * busy wins, so tasks that write into the same device share it instead of
+ * taking the budget from tasks that write into other devices. Last tie-break
+ * is arrival order.
+ *
+ * @author peyrona
+ */
+public final class Scheduler
+{
+    private final int                 nBudget;                          // 0 == no limit
+    private       int                 nRunning   = 0;
+    private       double              nClock     = 0;                   // Virtual time of last granted operation
+    private final List<Waiter>        lstWaiting = new ArrayList<>();   // In arrival order
+    private final Map<Object,Integer> mapDevice  = new HashMap<>();     // Device -> operations running
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Constructor.
+     *
+     * @param nBudget Max operations running at the same time (0 == no limit).
+     */
+    public Scheduler( int nBudget )
+    {
+        this.nBudget = Math.max( 0, nBudget );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Returns a new Ticket for a task.
+     *
+     * @param nWeight Task weight (relative to other tasks weights).
+     * @param fDestin Task Destination folder.
+     * @return A new Ticket for a task.
+     */
+    Ticket newTicket( int nWeight, File fDestin )
+    {
+        return new Ticket( Math.max( 1, nWeight ), getDevice( fDestin.toPath() ) );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private synchronized void acquire( Ticket ticket ) throws InterruptedException
+    {
+        Waiter waiter = new Waiter( ticket );
+
+        if( (ticket.nRunning == 0) && (ticket.nWaiting == 0) )     // Was idle
+        {
+            ticket.nVirtual = Math.max( ticket.nVirtual, nClock );
+        }
+
+        ticket.nWaiting++;
+        lstWaiting.add( waiter );
+        grant();
+
+        try
+        {
+            while( ! waiter.bGranted )
+            {
+                wait();
+            }
+        }
+        catch( InterruptedException ie )
+        {
+            if( waiter.bGranted )
+            {
+                release( ticket );
+            }
+            else
+            {
+                lstWaiting.remove( waiter );
+                ticket.nWaiting--;
+            }
+
+            throw ie;
+        }
+    }
+
+    private synchronized void release( Ticket ticket )
+    {
+        nRunning--;
+        ticket.nRunning--;
+        mapDevice.merge( ticket.oDevice, -1, Integer::sum );
+        grant();
+    }
+
+    private void grant()       // Invoked only from synchronized methods
+    {
+        boolean bAny = false;
+
+        while( ((nBudget == 0) || (nRunning < nBudget)) && (! lstWaiting.isEmpty()) )
+        {
+            Waiter best = null;
+
+            for( Waiter waiter : lstWaiting )
+            {
+                if( (best == null) || isBetter( waiter.ticket, best.ticket ) )
+                {
+                    best = waiter;
+                }
+            }
+
+            lstWaiting.remove( best );
+            best.bGranted = true;
+            best.ticket.nWaiting--;
+            best.ticket.nRunning++;
+            nClock = best.ticket.nVirtual;
+            best.ticket.nVirtual += 1.0 / best.ticket.nWeight;
+            nRunning++;
+            mapDevice.merge( best.ticket.oDevice, 1, Integer::sum );
+            bAny = true;
+        }
+
+        if( bAny )
+        {
+            notifyAll();
+        }
+    }
+
+    private boolean isBetter( Ticket t1, Ticket t2 )
+    {
+        if( t1.nVirtual != t2.nVirtual )
+        {
+            return t1.nVirtual < t2.nVirtual;
+        }
+
+        return mapDevice.getOrDefault( t1.oDevice, 0 ) < mapDevice.getOrDefault( t2.oDevice, 0 );
+    }
+
+    private static Object getDevice( Path path )
+    {
+        for( Path p = path.toAbsolutePath(); p != null; p = p.getParent() )    // Destination could not exist yet
+        {
+            try
+            {
+                return Files.getFileStore( p );
+            }
+            catch( IOException ioe )
+            {
+                // Try with its parent
+            }
+        }
+
+        return path.toAbsolutePath().getRoot();
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASSES
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Allows a task to run operations under the control of the Scheduler.
+     */
+    final class Ticket
+    {
+        private final int    nWeight;
+        private final Object oDevice;
+        private       int    nRunning = 0;       // These 3 are guarded by Scheduler.this
+        private       int    nWaiting = 0;
+        private       double nVirtual = 0;
+
+        private Ticket( int nWeight, Object oDevice )
+        {
+            this.nWeight = nWeight;
+            this.oDevice = oDevice;
+        }
+
+        /**
+         * Waits until this task can run one more operation.
+         *
+         * @throws InterruptedException
+         */
+        void acquire() throws InterruptedException
+        {
+            Scheduler.this.acquire( this );
+        }
+
+        void release()
+        {
+            Scheduler.this.release( this );
+        }
+    }
+
+    private static final class Waiter
+    {
+        final Ticket ticket;
+        boolean bGranted = false;
+
+        Waiter( Ticket ticket )
+        {
+            this.ticket = ticket;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2017 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.jsync.synchronizer;
+
+import com.peyrona.jsync.Main;
+import static com.peyrona.jsync.Main.sAPP_NAME;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * One step of the synchronization pipeline (e.g. comparing or copying): a pool
+ * of threads with a bounded queue of jobs.
+ * <p>
+ * When the queue is full, submit(...) blocks until there is room: this way a
+ * slow stage makes the previous one wait instead of accumulating jobs without
+ * limit (back-pressure).
+ * <p>
+ * When the stage has a Scheduler ticket, every job waits for the Scheduler to
+ * allow it before running.
+ *
+ * @author peyrona
+ */
+final class Stage
+{
+    private final String          sName;
+    private final ExecutorService executor;
+    private final Semaphore       slots;             // Running + queued jobs can not exceed threads + queue size
+    private final Scheduler.Ticket ticket;           // null == jobs are not scheduled
+    private       long            nLastJob   = 0;    // Number of last submitted job (guarded by 'this')
+    private final TreeSet<Long>   setJobs    = new TreeSet<>();    // Numbers of not finished jobs (guarded by 'this')
+    private final Set<Thread>     setThreads = ConcurrentHashMap.newKeySet();    // Threads that run the jobs
+
+    //----------------------------------------------------------------------------//
+
+    Stage( String sName, int nThreads, int nQueueSize, Scheduler.Ticket ticket )
+    {
+        final AtomicInteger nCount = new AtomicInteger();
+
+        this.sName    = sName;
+        this.ticket   = ticket;
+        this.slots    = new Semaphore( Math.max( 1, nThreads ) + Math.max( 1, nQueueSize ) );
+        this.executor = Executors.newFixedThreadPool( Math.max( 1, nThreads ),
+                                                      (Runnable r) ->
+                                                      {
+                                                          Thread t = new Thread( r, sAPP_NAME +":"+ sName +"-"+ nCount.incrementAndGet() );
+                                                                 t.setDaemon( true );
+                                                          setThreads.add( t );
+                                                          return t;
+                                                      } );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Adds a job to this stage, waiting while the queue is full.
+     *
+     * @param job What to do.
+     */
+    void submit( final Runnable job )
+    {
+        final long nJob;
+
+        slots.acquireUninterruptibly();
+
+        synchronized( this )
+        {
+            nJob = ++nLastJob;
+            setJobs.add( nJob );
+        }
+
+        executor.execute( () ->
+                          {
+                              try
+                              {
+                                  run( job );
+                              }
+                              catch( RuntimeException exc )
+                              {
+                                  Main.log( Level.SEVERE, "Error in stage '"+ sName +"'", exc );
+                              }
+                              finally
+                              {
+                                  slots.release();
+                                  done( nJob );
+                              }
+                          } );
+    }
+
+    /**
+     * Waits until all jobs submitted before calling this method finished (jobs
+     * submitted later, e.g. by the ChangeQueue, are not waited for: otherwise
+     * a stage that never becomes empty would make the caller wait forever).
+     * <p>
+     * It can not be invoked by a job of this stage (it would wait for itself).
+     *
+     * @return The number of the last job that finished, being finished all
+     *         jobs submitted before it (see ::getLastJob()).
+     */
+    synchronized long await()
+    {
+        if( setThreads.contains( Thread.currentThread() ) )
+        {
+            throw new IllegalStateException( "A job of stage '"+ sName +"' can not wait for the stage" );
+        }
+
+        long nUpTo = nLastJob;
+
+        while( (! setJobs.isEmpty()) && (setJobs.first() <= nUpTo) )
+        {
+            try
+            {
+                wait();
+            }
+            catch( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        return (setJobs.isEmpty() ? nLastJob : setJobs.first() - 1);
+    }
+
+    /**
+     * Returns the number of the last submitted job: once ::await() returns
+     * this number or a greater one, this job and all previous ones finished.
+     *
+     * @return The number of the last submitted job.
+     */
+    synchronized long getLastJob()
+    {
+        return nLastJob;
+    }
+
+    /**
+     * Returns the number of jobs submitted that did not finish yet.
+     *
+     * @return The number of jobs submitted that did not finish yet.
+     */
+    synchronized int getPending()
+    {
+        return setJobs.size();
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private void run( Runnable job )
+    {
+        if( ticket == null )
+        {
+            job.run();
+            return;
+        }
+
+        try
+        {
+            ticket.acquire();
+        }
+        catch( InterruptedException ie )
+        {
+            return;
+        }
+
+        try
+        {
+            job.run();
+        }
+        finally
+        {
+            ticket.release();
+        }
+    }
+
+    private synchronized void done( long nJob )
+    {
+        setJobs.remove( nJob );
+        notifyAll();
+    }
+}
\ No newline at end of file
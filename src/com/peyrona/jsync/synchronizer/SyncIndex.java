@@ -0,0 +1,465 @@
+/*
+ * Copyright (C) 2017 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.jsync.synchronizer;
+
+import com.peyrona.jsync.Main;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+
+/**
+ * Persistent record of the entries (files and folders) of Origin that were
+ * successfully synchronized into Destination: for every one of them, its
+ * size, last modification time and file key are kept.
+ * <p>
+ * Entries are identified by their path relative to Origin folder ("" is the
+ * Origin folder itself) and are kept in a FileTree, so the children of a
+ * folder can be obtained without listing the folder and millions of entries
+ * need little memory (the tree can also be kept outside the Java heap).
+ * <p>
+ * The index is saved into a compact binary file; it is discarded when it was
+ * created for a different Origin, Destination or filter definition (this is
+ * what the signature is for).
+ *
+ * @author peyrona
+ */
+final class SyncIndex
+{
+    private static final int nMAGIC   = 0x4A53494E;    // "JSIN"
+    private static final int nVERSION = 1;
+
+    private final File     fIndex;
+    private final String   sSignature;
+    private final FileTree tree;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();     // Guards the tree
+    private volatile boolean bLoaded = false;
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Constructor.
+     *
+     * @param fIndex File where the index is saved.
+     * @param sSignature Task definition the index belongs to.
+     * @param bOffHeap true to keep the index outside the Java heap.
+     */
+    SyncIndex( File fIndex, String sSignature, boolean bOffHeap )
+    {
+        this.fIndex     = fIndex;
+        this.sSignature = sSignature;
+        this.tree       = new FileTree( bOffHeap );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Reads the index file (if it exists).
+     *
+     * @return true if the index was read and it belongs to this task.
+     */
+    boolean load()
+    {
+        if( ! fIndex.exists() )
+        {
+            return false;
+        }
+
+        lock.writeLock().lock();
+
+        try( DataInputStream dis = new DataInputStream( new BufferedInputStream( new FileInputStream( fIndex ), 64*1024 ) ) )
+        {
+            if( (dis.readInt() != nMAGIC) || (dis.readInt() != nVERSION) || (! sSignature.equals( dis.readUTF() )) )
+            {
+                Main.info( () -> fIndex +" was created by a different version or task definition: ignored." );
+                return false;
+            }
+
+            readEntry( dis, FileTree.nROOT );
+
+            while( dis.readBoolean() )                 // There is one more folder
+            {
+                int nFolder = tree.find( dis.readUTF(), true );
+
+                while( dis.readBoolean() )             // There is one more child
+                {
+                    readEntry( dis, tree.child( nFolder, dis.readUTF(), true ) );
+                }
+            }
+
+            bLoaded = true;
+        }
+        catch( IOException ex )
+        {
+            Main.log( Level.WARNING, "Error reading index '"+ fIndex +"': it will be rebuilt", ex );
+            tree.clear();
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+
+        return bLoaded;
+    }
+
+    /**
+     * Writes the index into its file. A temporary file is used to avoid
+     * leaving a corrupted index if the application dies while saving.
+     * <p>
+     * Changes made to the index wait until it is saved.
+     *
+     * @return true if the index was saved.
+     */
+    synchronized boolean save()
+    {
+        if( Main.isTesting() )      // Nothing was really copied or deleted
+        {
+            return false;
+        }
+
+        File fTmp = new File( fIndex.getAbsolutePath() +".tmp" );
+
+        lock.readLock().lock();
+
+        try
+        {
+            try( DataOutputStream dos = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( fTmp ), 64*1024 ) ) )
+            {
+                dos.writeInt( nMAGIC );
+                dos.writeInt( nVERSION );
+                dos.writeUTF( sSignature );
+                writeEntry( dos, FileTree.nROOT );
+
+                // Every folder having children is followed by its children: a flag
+                // precedes every item (instead of writing items count).
+
+                for( int nFolder = FileTree.nROOT; nFolder != FileTree.nNONE; nFolder = tree.getFollowing( nFolder, FileTree.nROOT ) )
+                {
+                    if( tree.getFirstChild( nFolder ) == FileTree.nNONE )
+                    {
+                        continue;
+                    }
+
+                    dos.writeBoolean( true );
+                    dos.writeUTF( tree.getPath( nFolder ) );
+
+                    for( int nChild = tree.getFirstChild( nFolder ); nChild != FileTree.nNONE; nChild = tree.getNextSibling( nChild ) )
+                    {
+                        if( tree.hasData( nChild ) )       // Placeholders are created again when loading
+                        {
+                            dos.writeBoolean( true );
+                            dos.writeUTF( tree.getName( nChild ) );
+                            writeEntry( dos, nChild );
+                        }
+                    }
+
+                    dos.writeBoolean( false );
+                }
+
+                dos.writeBoolean( false );
+            }
+
+            Files.move( fTmp.toPath(), fIndex.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+            Main.info( "Index saved: "+ fIndex );
+            return true;
+        }
+        catch( IOException ex )
+        {
+            Main.log( Level.WARNING, "Error saving index '"+ fIndex +"'", ex );
+            return false;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    boolean isLoaded()
+    {
+        return bLoaded;
+    }
+
+    Entry get( String sRelPath )
+    {
+        lock.readLock().lock();
+
+        try
+        {
+            int nNode = tree.find( sRelPath, false );
+
+            if( (nNode == FileTree.nNONE) || (! tree.hasData( nNode )) )
+            {
+                return null;
+            }
+
+            return new Entry( tree.isFolder( nNode ), tree.getSize( nNode ), tree.getModified( nNode ), tree.getFileKey( nNode ) );
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the names of the indexed entries inside passed folder.
+     *
+     * @param sRelFolder Relative path of the folder.
+     * @return The names of the indexed entries inside passed folder.
+     */
+    Set<String> getChilds( String sRelFolder )
+    {
+        Set<String> setNames = new HashSet<>();
+
+        lock.readLock().lock();
+
+        try
+        {
+            int nFolder = tree.find( sRelFolder, false );
+
+            if( nFolder != FileTree.nNONE )
+            {
+                for( int nChild = tree.getFirstChild( nFolder ); nChild != FileTree.nNONE; nChild = tree.getNextSibling( nChild ) )
+                {
+                    setNames.add( tree.getName( nChild ) );
+                }
+            }
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+
+        return setNames;
+    }
+
+    void put( String sRelPath, BasicFileAttributes attrs )
+    {
+        Object oKey = attrs.fileKey();
+
+        put( sRelPath, new Entry( attrs.isDirectory(),
+                                  (attrs.isDirectory() ? 0 : attrs.size()),
+                                  attrs.lastModifiedTime().toMillis(),
+                                  (oKey == null) ? "" : oKey.toString() ) );
+    }
+
+    void put( String sRelPath, Entry entry )
+    {
+        lock.writeLock().lock();
+
+        try
+        {
+            tree.setData( tree.find( sRelPath, true ), entry.bFolder, entry.nSize, entry.nModified, entry.sFileKey );
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes passed entry and, when it is a folder, all its contents.
+     *
+     * @param sRelPath Relative path of the entry.
+     */
+    void remove( String sRelPath )
+    {
+        lock.writeLock().lock();
+
+        try
+        {
+            int nNode = tree.find( sRelPath, false );
+
+            if( nNode != FileTree.nNONE )
+            {
+                tree.remove( nNode );
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Moves passed entry and, when it is a folder, all its contents to a new
+     * relative path (used when an entry was renamed or moved in Origin).
+     *
+     * @param sFrom Relative path of the entry.
+     * @param sTo New relative path of the entry.
+     */
+    void move( String sFrom, String sTo )
+    {
+        lock.writeLock().lock();
+
+        try
+        {
+            int nNode = tree.find( sFrom, false );
+
+            if( (nNode != FileTree.nNONE) && tree.hasData( nNode ) )
+            {
+                tree.move( nNode, sTo );
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Copies all the entries into passed tree (a picture of Origin as it was
+     * synchronized). Placeholders are copied as folders with no modified time.
+     *
+     * @param target An empty tree.
+     */
+    void copyTo( FileTree target )
+    {
+        lock.readLock().lock();
+
+        try
+        {
+            copy( FileTree.nROOT, target, FileTree.nROOT );
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the relative path of the entry named 'sName' inside folder
+     * 'sRelFolder'.
+     *
+     * @param sRelFolder
+     * @param sName
+     * @return
+     */
+    static String child( String sRelFolder, String sName )
+    {
+        return sRelFolder.isEmpty() ? sName : (sRelFolder + File.separatorChar + sName);
+    }
+
+    //----------------------------------------------------------------------------//
+
+    static String getParent( String sRelPath )
+    {
+        int index = sRelPath.lastIndexOf( File.separatorChar );
+
+        return (index == -1) ? "" : sRelPath.substring( 0, index );
+    }
+
+    static String getName( String sRelPath )
+    {
+        return sRelPath.substring( sRelPath.lastIndexOf( File.separatorChar ) + 1 );
+    }
+
+    private void copy( int nNode, FileTree target, int nTarget )
+    {
+        if( tree.hasData( nNode ) )
+        {
+            target.setData( nTarget, tree.isFolder( nNode ), tree.getSize( nNode ), tree.getModified( nNode ), tree.getFileKey( nNode ) );
+        }
+        else
+        {
+            target.setData( nTarget, true, 0, 0, "" );
+        }
+
+        for( int nChild = tree.getFirstChild( nNode ); nChild != FileTree.nNONE; nChild = tree.getNextSibling( nChild ) )
+        {
+            copy( nChild, target, target.child( nTarget, tree.getName( nChild ), true ) );
+        }
+    }
+
+    private void readEntry( DataInputStream dis, int nNode ) throws IOException
+    {
+        tree.setData( nNode, dis.readBoolean(), dis.readLong(), dis.readLong(), dis.readUTF() );
+    }
+
+    private void writeEntry( DataOutputStream dos, int nNode ) throws IOException
+    {
+        dos.writeBoolean( tree.isFolder( nNode ) );
+        dos.writeLong( tree.getSize( nNode ) );
+        dos.writeLong( tree.getModified( nNode ) );
+        dos.writeUTF( tree.getFileKey( nNode ) );
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+
+    static final class Entry
+    {
+        final boolean bFolder;
+        final long    nSize;
+        final long    nModified;    // Millis
+        final String  sFileKey;     // "" when the file system does not provide it
+
+        Entry( boolean bFolder, long nSize, long nModified, String sFileKey )
+        {
+            this.bFolder   = bFolder;
+            this.nSize     = nSize;
+            this.nModified = nModified;
+            this.sFileKey  = sFileKey;
+        }
+
+        /**
+         * Returns true if passed attributes belong to the same file or folder
+         * that this entry describes, even if it is now at another path (it
+         * was renamed or moved). Files are compared by file key, size and
+         * modified time (file keys are reused by the file system after a file
+         * is deleted); folders only by file key. When there is no file key,
+         * it is the same as ::isSameAs(...).
+         *
+         * @param attrs Attributes of an entry of Origin.
+         * @return true if passed attributes belong to the same file or folder.
+         */
+        boolean isSameFile( BasicFileAttributes attrs )
+        {
+            Object oKey = attrs.fileKey();
+
+            if( sFileKey.isEmpty() || (oKey == null) )
+            {
+                return isSameAs( attrs );
+            }
+
+            return sFileKey.equals( oKey.toString() )
+                   &&
+                   (bFolder ? attrs.isDirectory() : isSameAs( attrs ));
+        }
+
+        boolean isSameAs( BasicFileAttributes attrs )
+        {
+            return (bFolder == attrs.isDirectory())
+                   &&
+                   (nModified == attrs.lastModifiedTime().toMillis())
+                   &&
+                   (bFolder || (nSize == attrs.size()));
+        }
+    }
+}
\ No newline at end of file
@@ -16,10 +16,17 @@
 
 package com.peyrona.jsync.synchronizer;
 
+import com.peyrona.jsync.DigestCache;
+import com.peyrona.jsync.EntryFilter;
 import com.peyrona.jsync.Main;
+import com.peyrona.jsync.SharedReads;
+import com.peyrona.jsync.Throttle;
+import com.peyrona.jsync.config.Task;
+import com.peyrona.jsync.metrics.Metrics;
 import java.io.File;
-import java.io.FileFilter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 
 /**
@@ -28,36 +35,77 @@ import java.util.logging.Level;
  * <ul>
  * <li>First FullSync class makes that Origin and Destination will have the same
  * contents (update changes since last execution of this application).</li>
- * <li>Later, Watcher will monitorize changes in Origin folder and will replicate
- * these changes into Destination folder.</li>
+ * <li>Meanwhile and later, Watcher will monitorize changes in Origin folder and
+ * will replicate these changes into Destination folder (Poller is used instead
+ * when the task asks for polling: file systems that do not notify changes).</li>
  * </ul>
+ * When a task has more than one Destination, Origin is replicated into all of
+ * them: every Destination has its own state (index and journal), FullSync,
+ * ChangeQueue and Stages (so a slow or failing Destination does not hold the
+ * others back), but Origin is scanned and watched only once and the contents
+ * read from Origin are shared (see OriginListings and SharedReads), as well as
+ * the digests of the files (every Origin file is digested only once).
  *
  * @author peyrona
  */
 public final class Synchronizer
 {
-    private final File       fOrigin;
-    private final File       fDestin;
-    private final FileFilter filter;
-    private final Watcher    watcher;
+    private static final int nQUEUE_SIZE = 1024;     // Max jobs waiting in every pipeline stage
+
+    private final File          fOrigin;
+    private final List<Replica> lstReplicas = new ArrayList<>();
+    private final DigestCache   digests;          // null == files contents are not compared
+    private final Thread        watcher;          // Watcher or Poller
 
     //----------------------------------------------------------------------------//
 
-    public Synchronizer( File fOrigin, File fDestin, FileFilter filter )
+    /**
+     * Constructor.
+     *
+     * @param task What to synchronize.
+     * @param filter Which files and folders are synchronized.
+     * @param scheduler Shares I/O among all tasks.
+     * @param throttle Limits shared by all tasks (null == no global limits).
+     */
+    public Synchronizer( Task task, EntryFilter filter, Scheduler scheduler, Throttle throttle )
     {
-        this.fOrigin = fOrigin;
-        this.fDestin = fDestin;
-        this.filter  = filter;
+        this.fOrigin = new File( task.getOriginFolder() );
+        this.digests = (task.isCompareData() ? new DigestCache( getStateFile( task, "digests" ) ) : null);
 
         checkOrigin();
-        checkDestination();
+
+        List<Task>  lstTasks = task.perDestination();
+        SharedReads reads    = ((lstTasks.size() > 1) ? new SharedReads( lstTasks.size() ) : null);
+
+        for( Task destTask : lstTasks )
+        {
+            File fDestin = new File( destTask.getDestinFolder() );
+
+            if( checkDestination( fDestin ) )
+            {
+                lstReplicas.add( new Replica( destTask, filter, scheduler, throttle, reads, digests ) );
+            }
+        }
+
+        if( lstReplicas.isEmpty() )
+        {
+            Main.log( Level.SEVERE, new IOException( "There is no usable Destination for '"+ fOrigin +"': can not continue." ) );
+            System.exit( 1 );
+        }
 
         // Initialize Watcher Service --------------------------
-        Watcher w;
+        List<ChangeQueue> lstQueues = new ArrayList<>();
+        Thread            w;
+
+        for( Replica replica : lstReplicas )
+        {
+            lstQueues.add( replica.queue );
+        }
 
         try
         {
-            w = new Watcher( fOrigin, fDestin, filter );
+            w = (task.isPolling() ? new Poller( fOrigin, filter, lstQueues, lstReplicas.get( 0 ).index, lstReplicas.get( 0 ).metrics, task.getPollInterval(), task.isIndexOffHeap() )
+                                  : new Watcher( fOrigin, filter, lstQueues, lstReplicas.get( 0 ).metrics ));
         }
         catch( IOException ioe )
         {
@@ -68,32 +116,150 @@ public final class Synchronizer
         this.watcher = w;
         // -------------------------------------------------------
 
-        Main.info( "Origin folder: '"+ fOrigin +"'\n"+
-                   "Destination folder: '"+ fDestin +"'" );
+        StringBuilder sb = new StringBuilder( "Origin folder: '"+ fOrigin +"'" );
+
+        for( Replica replica : lstReplicas )
+        {
+            sb.append( "\nDestination folder: '" ).append( replica.fDestin ).append( '\'' );
+        }
+
+        Main.info( sb.toString() );
     }
 
     //----------------------------------------------------------------------------//
 
     public void start()
     {
-        Main.info( "Updating '"+ fDestin +"' with changes made in '"+ fOrigin +"' since "+ Main.sAPP_NAME +" ran last time." );
-        (new FullSync( fOrigin, fDestin, filter )).sync();
+        if( digests != null )
+        {
+            digests.load();
+        }
 
-        // If watcher can not ran, then, there is nothing else to do.
-        if( watcher != null )
+        for( Replica replica : lstReplicas )
         {
-            Main.info( "Monitoring changes in '"+ fOrigin +"'." );
-            watcher.start();
+            Main.info( "Updating '"+ replica.fDestin +"' with changes made in '"+ fOrigin +"' since "+ Main.sAPP_NAME +" ran last time." );
+            replica.loadState();
         }
-        else
+
+        for( Replica replica : lstReplicas )
+        {
+            if( ! replica.lstUnfinished.isEmpty() )
+            {
+                replica.fullSync.recover( replica.lstUnfinished );
+                replica.lstUnfinished.clear();
+            }
+
+            if( replica.trash != null )
+            {
+                replica.trash.start();        // What was left in the trash last time is purged too
+            }
+        }
+
+        Runtime.getRuntime().addShutdownHook( new Thread( this::saveState, Main.sAPP_NAME +":StateSaver" ) );
+
+        // If watcher can not ran, then, there is nothing else to do.
+        if( watcher == null )
         {
             Main.log( Level.SEVERE, new IOException( "Can not monitorize changes in '"+ fOrigin +"'. "+ Main.sAPP_NAME +" aborted." ) );
             System.exit( 1 );
         }
+
+        // Changes made while FullSync runs are applied as soon as their folders
+        // are reconciled (see FullSync::claim(...)).
+        Main.info( "Monitoring changes in '"+ fOrigin +"'." );
+        lstReplicas.forEach( (replica) -> replica.queue.start() );
+        watcher.start();
+
+        if( lstReplicas.size() == 1 )
+        {
+            lstReplicas.get( 0 ).fullSync.sync();
+        }
+        else
+        {
+            fullSyncAll();
+        }
+
+        saveState();
     }
 
     //----------------------------------------------------------------------------//
 
+    /**
+     * Updates all Destinations at the same time (every one in its own thread),
+     * sharing Origin listings: a Destination that is slower than the others
+     * does not make them wait (it will list by itself what they already
+     * discarded).
+     */
+    private void fullSyncAll()
+    {
+        List<FullSync> lstReaders = new ArrayList<>();
+        List<Thread>   lstThreads = new ArrayList<>();
+
+        lstReplicas.forEach( (replica) -> lstReaders.add( replica.fullSync ) );
+
+        OriginListings listings = new OriginListings( lstReaders );
+
+        for( Replica replica : lstReplicas )
+        {
+            replica.fullSync.share( listings );
+
+            Thread thread = new Thread( replica.fullSync::sync, Main.sAPP_NAME +":FullSync:"+ replica.fDestin.getName() );
+                   thread.start();
+
+            lstThreads.add( thread );
+        }
+
+        for( Thread thread : lstThreads )
+        {
+            try
+            {
+                thread.join();
+            }
+            catch( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        for( Replica replica : lstReplicas )
+        {
+            replica.fullSync.share( null );
+        }
+
+        listings.clear();
+    }
+
+    private void saveState()
+    {
+        lstReplicas.forEach( Replica::saveState );
+
+        if( digests != null )
+        {
+            digests.save();
+        }
+    }
+
+    /**
+     * Returns the file where passed task keeps part of its state: these files
+     * are placed in the same folder as the log file.
+     */
+    private static File getStateFile( Task task, String sExtension )
+    {
+        return new File( Main.sAPP_NAME +"-"+ task.getName() +"."+ sExtension );
+    }
+
+    /**
+     * Returns a string that identifies the task definition: an index created
+     * for a different definition can not be used.
+     */
+    private static String getSignature( Task task, EntryFilter filter )
+    {
+        return task.getOriginFolder() +'|'+
+               task.getDestinFolder() +'|'+
+               filter.getSignature();
+    }
+
     private void checkOrigin()
     {
         if( ! fOrigin.exists() )
@@ -115,30 +281,99 @@ public final class Synchronizer
         }
     }
 
-    private void checkDestination()
+    /**
+     * Checks that passed Destination can be used (creating it if needed).
+     *
+     * @param fDestin Destination folder.
+     * @return true if it can be used (otherwise the reason is logged).
+     */
+    private static boolean checkDestination( File fDestin )
     {
+        String sError = null;
+
         if( fDestin.exists() && (! fDestin.isDirectory()) )
         {
-            Main.log( Level.SEVERE, new IOException( fDestin +" is not a directory: can not continue." ) );
-            System.exit( 1 );
+            sError = fDestin +" is not a directory";
+        }
+        else if( (! fDestin.exists()) && (! fDestin.mkdirs()) )
+        {
+            sError = "Unable to create '"+ fDestin +"'";
+        }
+        else if( ! fDestin.canRead() )
+        {
+            sError = fDestin +" is can not be read";
+        }
+        else if( ! fDestin.getAbsoluteFile().getParentFile().canWrite() )
+        {
+            sError = fDestin +" is read-only (can not write)";
         }
 
-        if( (! fDestin.exists()) && (! fDestin.mkdirs()) )
+        if( sError != null )
         {
-            Main.log( Level.SEVERE, new IOException( "Unable to create '"+ fDestin +"'. Can not continue." ) );
-            System.exit( 1 );
+            Main.log( Level.SEVERE, new IOException( sError +": it will not be synchronized." ) );
+        }
+
+        return sError == null;
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Everything needed to replicate Origin into one Destination.
+     */
+    private static final class Replica
+    {
+        private final File             fDestin;
+        private final SyncIndex        index;
+        private final Journal          journal;
+        private final Trash            trash;            // null == Destination entries are deleted at once
+        private final FullSync         fullSync;
+        private final ChangeQueue      queue;
+        private final Metrics          metrics;
+        private final List<Journal.Op> lstUnfinished = new ArrayList<>();    // Operations that did not end last time
+
+        Replica( Task task, EntryFilter filter, Scheduler scheduler, Throttle throttle, SharedReads reads, DigestCache digests )
+        {
+            this.fDestin = new File( task.getDestinFolder() );
+            this.index   = new SyncIndex( getStateFile( task, "index" ), getSignature( task, filter ), task.isIndexOffHeap() );
+            this.journal = new Journal( getStateFile( task, "journal" ), getSignature( task, filter ), this::saveState );
+            this.metrics = Metrics.get( task.getName() );
+
+            // Compare stage is not scheduled: its jobs feed copy stage and they would hold
+            // a Scheduler permit while waiting for room in the copy stage (dead-lock).
+            Stage stgCompare = new Stage( task.getName() +":Compare", task.getCopyThreads(), nQUEUE_SIZE, null );
+            Stage stgCopy    = new Stage( task.getName() +":Copy"   , task.getCopyThreads(), nQUEUE_SIZE,
+                                          scheduler.newTicket( task.getWeight(), fDestin ) );
+
+            Throttle thrTask = Throttle.create( task.getMaxBandwidth(), task.getMaxOpsPerSec(), throttle );
+
+            this.trash    = (task.isTrash() ? new Trash( fDestin, task.getTrashKeep(), task.getPurgeThreads(), thrTask ) : null);
+            this.fullSync = new FullSync( task, filter, index, digests, journal, trash, thrTask, reads, stgCompare, stgCopy );
+            this.queue    = new ChangeQueue( fullSync, stgCopy, task.getQuietPeriod(), metrics );
+
+            metrics.setQueues( queue::size, stgCompare::getPending, stgCopy::getPending );
         }
 
-        if( ! fDestin.canRead() )
+        void loadState()
         {
-            Main.log( Level.SEVERE, new IOException( fDestin +" is can not be read: can not continue." ) );
-            System.exit( 1 );
+            index.load();
+            lstUnfinished.addAll( journal.recover( index ) );
         }
 
-        if( ! fDestin.getParentFile().canWrite() )
+        /**
+         * Saves the index: records of the journal that are in the saved index
+         * are not needed any more (digests are saved by Synchronizer::saveState()).
+         */
+        void saveState()
         {
-            Main.log( Level.SEVERE, new IOException( fDestin +" is read-only (can not write): can not continue." ) );
-            System.exit( 1 );
+            long nMark = journal.mark();
+
+            if( index.save() )
+            {
+                journal.checkpoint( nMark );
+            }
         }
     }
 }
\ No newline at end of file
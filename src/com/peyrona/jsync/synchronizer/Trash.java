@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2017 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.jsync.synchronizer;
+
+import com.peyrona.jsync.Main;
+import com.peyrona.jsync.Throttle;
+import static com.peyrona.jsync.Main.sAPP_NAME;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Trash of a Destination: entries deleted from Destination are moved into it
+ * (a single rename, no matter how big they are) and purged later in
+ * background, so deleting a big folder does not hold the synchronization.
+ * <p>
+ * The trash is a folder inside Destination folder (so it is in the same file
+ * system and entries can be renamed into it); when an entry can not be renamed
+ * into the trash, it has to be deleted as usual.
+ * <p>
+ * Trashed entries are kept during the retention time and then purged by a
+ * pool of threads: folders are purged post-order (contents first), every
+ * sub-folder by its own thread. Entries that were not purged when the
+ * application ended are purged next time it runs.
+ *
+ * @author peyrona
+ */
+final class Trash extends Thread
+{
+    static final String sFOLDER = "."+ sAPP_NAME +"-trash";      // Name of the trash inside Destination folder
+
+    private final File                 fTrash;
+    private final long                 nRetention;       // Millis
+    private final Throttle             throttle;         // null == no limits
+    private final ForkJoinPool         pool;
+    private final AtomicLong           nCount    = new AtomicLong();
+    private final PriorityQueue<Entry> pqTrashed = new PriorityQueue<>( (e1, e2) -> Long.compare( e1.nDue, e2.nDue ) );    // Guarded by 'this'
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Constructor.
+     *
+     * @param fDestin Destination folder.
+     * @param nRetention Millis trashed entries are kept before being purged.
+     * @param nThreads Threads purging entries.
+     * @param throttle Limits deletions per second (null == no limits).
+     */
+    Trash( File fDestin, long nRetention, int nThreads, Throttle throttle )
+    {
+        super( sAPP_NAME +":"+ Trash.class.getSimpleName() +":"+ fDestin.getName() );
+
+        this.fTrash     = new File( fDestin, sFOLDER );
+        this.nRetention = Math.max( 0, nRetention );
+        this.throttle   = throttle;
+        this.pool       = new ForkJoinPool( Math.max( 1, nThreads ) );
+
+        setDaemon( true );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Starts purging: entries that were trashed the last time the application
+     * ran are purged when their retention time expires.
+     */
+    @Override
+    public synchronized void start()
+    {
+        File[] afTrashed = fTrash.listFiles();
+
+        if( afTrashed != null )
+        {
+            for( File fTrashed : afTrashed )
+            {
+                long nTrashed;
+
+                try
+                {
+                    nTrashed = Long.parseLong( fTrashed.getName().substring( 0, fTrashed.getName().indexOf( '-' ) ) );
+                }
+                catch( NumberFormatException | StringIndexOutOfBoundsException exc )
+                {
+                    nTrashed = 0;          // Not created by this class: purged now
+                }
+
+                pqTrashed.add( new Entry( fTrashed.toPath(), nTrashed + nRetention ) );
+            }
+        }
+
+        super.start();
+    }
+
+    @Override
+    public void run()
+    {
+        while( ! isInterrupted() )
+        {
+            Entry entry;
+
+            synchronized( this )
+            {
+                try
+                {
+                    long nWait = (pqTrashed.isEmpty() ? 0 : pqTrashed.peek().nDue - System.currentTimeMillis());
+
+                    if( pqTrashed.isEmpty() || (nWait > 0) )
+                    {
+                        wait( nWait );
+                        continue;
+                    }
+                }
+                catch( InterruptedException ie )
+                {
+                    return;
+                }
+
+                entry = pqTrashed.poll();
+            }
+
+            pool.execute( new Purge( entry.path, true ) );
+        }
+    }
+
+    /**
+     * Moves passed entry of Destination into the trash.
+     *
+     * @param fEntry File or folder to delete.
+     * @return true if it was moved into the trash; false if it could not be
+     *         (then it has to be deleted as usual).
+     */
+    boolean put( File fEntry )
+    {
+        if( Main.isTesting() )             // Nothing is really deleted
+        {
+            return false;
+        }
+
+        long nNow     = System.currentTimeMillis();
+        Path pTrashed = fTrash.toPath().resolve( nNow +"-"+ nCount.incrementAndGet() );
+
+        if( throttle != null )
+        {
+            throttle.operation();
+        }
+
+        try
+        {
+            Files.createDirectories( fTrash.toPath() );
+            Files.move( fEntry.toPath(), pTrashed, StandardCopyOption.ATOMIC_MOVE );
+        }
+        catch( IOException ioe )
+        {
+            Main.log( Level.FINE, "Can not move '"+ fEntry +"' into the trash", ioe );
+            return false;
+        }
+
+        Main.info( () -> fEntry +" --> moved into the trash ("+ pTrashed.getFileName() +')' );
+
+        synchronized( this )
+        {
+            pqTrashed.add( new Entry( pTrashed, nNow + nRetention ) );
+            notifyAll();
+        }
+
+        return true;
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+
+    private static final class Entry
+    {
+        final Path path;
+        final long nDue;          // When it has to be purged
+
+        Entry( Path path, long nDue )
+        {
+            this.path = path;
+            this.nDue = nDue;
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Deletes a trashed entry: when it is a folder, its sub-folders are
+     * deleted (in parallel) before it. Links are deleted, not followed.
+     */
+    private final class Purge extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Path    path;
+        private final boolean bTrashed;      // It is a trashed entry (not something inside it)
+
+        Purge( Path path, boolean bTrashed )
+        {
+            this.path     = path;
+            this.bTrashed = bTrashed;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if( Files.isDirectory( path, LinkOption.NOFOLLOW_LINKS ) )
+            {
+                List<Purge> lstSubTasks = new ArrayList<>();
+
+                try( DirectoryStream<Path> stream = Files.newDirectoryStream( path ) )
+                {
+                    for( Path child : stream )
+                    {
+                        if( Files.isDirectory( child, LinkOption.NOFOLLOW_LINKS ) )
+                        {
+                            lstSubTasks.add( new Purge( child, false ) );
+                        }
+                        else
+                        {
+                            delete( child );
+                        }
+                    }
+                }
+                catch( IOException ioe )
+                {
+                    Main.log( Level.WARNING, "Can not purge '"+ path +"'", ioe );
+                }
+
+                invokeAll( lstSubTasks );
+            }
+
+            if( delete( path ) && bTrashed )
+            {
+                Main.info( () -> path +" --> purged from the trash" );
+            }
+        }
+
+        private boolean delete( Path pEntry )
+        {
+            if( throttle != null )
+            {
+                throttle.operation();
+            }
+
+            try
+            {
+                Files.deleteIfExists( pEntry );
+                return true;
+            }
+            catch( IOException ioe )     // It will be purged next time the application runs
+            {
+                Main.log( Level.WARNING, "Can not purge '"+ pEntry +"'", ioe );
+                return false;
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -16,15 +16,18 @@
 
 package com.peyrona.jsync.synchronizer;
 
+import com.peyrona.jsync.EntryFilter;
 import com.peyrona.jsync.Main;
+import com.peyrona.jsync.metrics.Metrics;
 import static com.peyrona.jsync.Main.sAPP_NAME;
-import com.peyrona.jsync.Utils;
 import java.io.File;
-import java.io.FileFilter;
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
@@ -32,32 +35,56 @@ import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
 
 /**
  * Is in charge of monitorizing Origin folder changes.
- * 
+ * <p>
+ * All folders under Origin (except those that are not accepted by the filter)
+ * are registered with the WatchService; folders created later are registered
+ * as soon as they are detected and their keys are cancelled when they are
+ * deleted.
+ * <p>
+ * Detected changes are not applied here: they are passed to the ChangeQueue
+ * (when Origin is replicated into several Destinations, every change is passed
+ * to the ChangeQueue of every Destination).
+ * <p>
+ * When the events of a folder are lost (overflow), its new sub-folders are
+ * registered and the folder is passed to the ChangeQueue to be rescanned (only
+ * that folder, not all Origin).
+ *
  * @author peyrona
  */
 final class Watcher extends Thread
 {
-    private final File         fOrig;
-    private final File         fDest;
-    private final FileFilter   filter;
-    private final WatchService watcher;
+    private final File                     fOrig;
+    private final EntryFilter              filter;
+    private final List<ChangeQueue>        lstQueues;                       // One per Destination
+    private final Metrics                  metrics;
+    private final WatchService             watcher;
+    private final Map<WatchKey,Path>       mapKeys    = new HashMap<>();    // Key -> Folder that it watches
+    private final TreeMap<String,WatchKey> mapPaths   = new TreeMap<>();    // Folder -> Its key (sorted: sub-folders follow their folder)
+    private       long                     nOverflows = 0;                  // Overflows since last time they were reported
+    private       long                     nReported  = 0;                  // When overflows were reported last time
 
     //----------------------------------------------------------------------------//
 
-    Watcher( File fOrig, File fDest, FileFilter filter ) throws IOException
+    Watcher( File fOrig, EntryFilter filter, List<ChangeQueue> lstQueues, Metrics metrics ) throws IOException
     {
         super( sAPP_NAME +":"+ Watcher.class.getSimpleName() );
 
-        this.fOrig   = fOrig;
-        this.fDest   = fDest;
-        this.filter  = filter;
-        this.watcher = FileSystems.getDefault().newWatchService();
+        this.fOrig     = fOrig;
+        this.filter    = filter;
+        this.lstQueues = lstQueues;
+        this.metrics   = metrics;
+        this.watcher   = FileSystems.getDefault().newWatchService();
 
-        Path dir = Paths.get( fOrig.getAbsolutePath() );
-             dir.register( this.watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY );
+        register( fOrig.getAbsoluteFile().toPath() );
     }
 
     //----------------------------------------------------------------------------//
@@ -83,31 +110,196 @@ final class Watcher extends Thread
                 return;
             }
 
-            for( WatchEvent<?> event : key.pollEvents() )
-            {
-                WatchEvent.Kind kind = event.kind();
-                Path            path = ((WatchEvent<Path>) event).context();
-                File            file = path.toFile();
+            Path dir = mapKeys.get( key );
 
-                if( (kind != OVERFLOW) && filter.accept( file ) )
+            if( dir != null )
+            {
+                for( WatchEvent<?> event : key.pollEvents() )
                 {
-                    if( (kind == ENTRY_CREATE ) || (kind == ENTRY_MODIFY) )
+                    if( event.kind() == OVERFLOW )
                     {
-                        Utils.copy( file, Utils.getEquivalent( fOrig, fDest, file ) );
-                        Main.info( file +": detected to be changed in Origin. Copied to Destination." );
+                        metrics.overflow();
+                        onOverflow( dir );
                     }
-                    else if( kind == ENTRY_DELETE )
+                    else
                     {
-                        Utils.delete( Utils.getEquivalent( fOrig, fDest, file ) );
-                        Main.info( file +": detected to be deleted in Origin. Deleting in Destination." );
+                        metrics.event();
+                        onEvent( event.kind(), dir.resolve( (Path) event.context() ) );
                     }
                 }
+            }
+
+            if( ! key.reset() )              // Folder is not accessible any more
+            {
+                Path gone = mapKeys.remove( key );
 
-                if( ! key.reset() )
+                if( gone != null )
                 {
+                    mapPaths.remove( gone.toString(), key );
+                }
+
+                if( mapKeys.isEmpty() )
+                {
+                    Main.log( Level.SEVERE, new IOException( fOrig +" can not be monitorized any more." ) );
                     return;
                 }
             }
         }
     }
+
+    //----------------------------------------------------------------------------//
+
+    private void onEvent( WatchEvent.Kind<?> kind, Path path )
+    {
+        // Attributes are read only once: they are used by the filter and by the queue.
+        // A deleted entry has no attributes: it was a folder if it was being watched.
+        BasicFileAttributes attrs = ((kind == ENTRY_DELETE) ? null : readAttributes( path ));
+        boolean             bPass = ((kind == ENTRY_DELETE) ? filter.accept( path, mapPaths.containsKey( path.toString() ) )
+                                                            : filter.accept( path, attrs ));
+
+        if( ! bPass )
+        {
+            return;
+        }
+
+        if( kind == ENTRY_DELETE )
+        {
+            unregister( path );
+            lstQueues.forEach( (queue) -> queue.deleted( path ) );
+        }
+        else if( kind == ENTRY_CREATE )
+        {
+            if( (attrs != null) && attrs.isDirectory() )  // Has to be done now: its contents can change at any moment
+            {
+                register( path );
+            }
+
+            lstQueues.forEach( (queue) -> queue.created( path, attrs ) );
+        }
+        else
+        {
+            lstQueues.forEach( (queue) -> queue.modified( path, attrs ) );
+        }
+    }
+
+    private void onOverflow( Path dir )
+    {
+        long nNow = System.currentTimeMillis();
+
+        nOverflows++;
+
+        if( nNow - nReported >= 60 * 1000 )  // Reported once per minute at most
+        {
+            Main.log( Level.WARNING, nOverflows +" file system events overflow(s) since last report (last one at '"+ dir +"'): "+
+                                     "affected folders will be rescanned", null );
+            nOverflows = 0;
+            nReported  = nNow;
+        }
+
+        // Folders created while events were lost have to be watched too
+        try( DirectoryStream<Path> stream = Files.newDirectoryStream( dir ) )
+        {
+            for( Path child : stream )
+            {
+                BasicFileAttributes attrs = readAttributes( child );
+
+                if( (attrs != null) && attrs.isDirectory() && (! mapPaths.containsKey( child.toString() )) && filter.accept( child, attrs ) )
+                {
+                    register( child );
+                }
+            }
+        }
+        catch( IOException ioe )
+        {
+            // Folder was deleted: its delete event will come
+        }
+
+        lstQueues.forEach( (queue) -> queue.rescan( dir ) );
+    }
+
+    private static BasicFileAttributes readAttributes( Path path )
+    {
+        try
+        {
+            return Files.readAttributes( path, BasicFileAttributes.class );
+        }
+        catch( IOException ioe )         // Deleted meanwhile: its delete event will come
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Registers passed folder and all its sub-folders (except those that are
+     * not accepted by the filter).
+     *
+     * @param start Folder to register.
+     */
+    private void register( final Path start )
+    {
+        try
+        {
+            Files.walkFileTree( start, new SimpleFileVisitor<Path>()
+            {
+                @Override
+                public FileVisitResult preVisitDirectory( Path dir, BasicFileAttributes attrs ) throws IOException
+                {
+                    if( (! dir.equals( start )) && (! filter.accept( dir, attrs )) )
+                    {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+
+                    WatchKey key = dir.register( watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY );
+
+                    mapKeys.put( key, dir );
+                    mapPaths.put( dir.toString(), key );
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed( Path file, IOException exc )
+                {
+                    Main.log( Level.WARNING, "Can not monitorize '"+ file +"'", exc );
+                    return FileVisitResult.CONTINUE;
+                }
+            } );
+        }
+        catch( IOException ex )
+        {
+            Main.log( Level.WARNING, "Can not monitorize '"+ start +"'", ex );
+        }
+    }
+
+    /**
+     * Cancels the keys of passed folder and all its sub-folders. Only the
+     * folder itself is looked up when it was not a watched folder (e.g. a file
+     * was deleted); otherwise its sub-folders are found by range (they follow
+     * it in the sorted map), so the cost does not depend on how many folders
+     * are watched.
+     *
+     * @param path Deleted folder (nothing is done if it was a file).
+     */
+    private void unregister( Path path )
+    {
+        String sPath = path.toString();
+
+        if( ! mapPaths.containsKey( sPath ) )
+        {
+            return;
+        }
+
+        cancel( mapPaths.remove( sPath ) );
+
+        // Sub-folders are the keys starting with "folder/": from "folder/" up to "folder0" ('0' follows '/')
+        Map<String,WatchKey> mapSubs = mapPaths.subMap( sPath + File.separatorChar, sPath + (char) (File.separatorChar + 1) );
+
+        mapSubs.values().forEach( this::cancel );
+        mapSubs.clear();
+    }
+
+    private void cancel( WatchKey key )
+    {
+        key.cancel();
+        mapKeys.remove( key );
+    }
 }
\ No newline at end of file
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2017 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.jsync;
+
+import com.peyrona.jsync.config.Task;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Minimal support for the tests (they do not need any library): every test
+ * class has a main(...) that runs its tests using ::run(...), which reports
+ * every test and exits with 1 when any of them failed.
+ *
+ * @author peyrona
+ */
+public final class Check
+{
+    private static int nFailed = 0;
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Runs one test, reporting if it passed or failed.
+     *
+     * @param sName Name of the test.
+     * @param test The test.
+     */
+    public static void run( String sName, Test test )
+    {
+        try
+        {
+            test.run();
+            System.out.println( "PASS  "+ sName );
+        }
+        catch( Throwable th )
+        {
+            nFailed++;
+            System.out.println( "FAIL  "+ sName +": "+ th );
+            th.printStackTrace( System.out );
+        }
+    }
+
+    /**
+     * Ends a test class: exits with 1 if any test failed.
+     */
+    public static void done()
+    {
+        if( nFailed > 0 )
+        {
+            System.out.println( nFailed +" test(s) failed" );
+            System.exit( 1 );
+        }
+
+        System.exit( 0 );     // Some tests leave non daemon threads running
+    }
+
+    public static void isTrue( boolean bCondition, String sWhat )
+    {
+        if( ! bCondition )
+        {
+            throw new AssertionError( sWhat );
+        }
+    }
+
+    public static void equal( Object expected, Object actual, String sWhat )
+    {
+        if( ! Objects.equals( expected, actual ) )
+        {
+            throw new AssertionError( sWhat +": expected <"+ expected +"> but was <"+ actual +">" );
+        }
+    }
+
+    /**
+     * Waits until passed condition is true (things done by other threads).
+     *
+     * @param condition What has to become true.
+     * @param sWhat What is waited for (to report it when it times out).
+     */
+    public static void await( BooleanSupplier condition, String sWhat ) throws InterruptedException
+    {
+        long nLimit = System.currentTimeMillis() + 10_000;
+
+        while( ! condition.getAsBoolean() )
+        {
+            if( System.currentTimeMillis() > nLimit )
+            {
+                throw new AssertionError( "Timed out waiting for: "+ sWhat );
+            }
+
+            Thread.sleep( 20 );
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // AUXILIARY
+
+    /**
+     * Returns a new empty folder (it is deleted when the JVM ends).
+     *
+     * @param sPrefix Beginning of its name.
+     * @return A new empty folder.
+     */
+    public static File newFolder( String sPrefix ) throws IOException
+    {
+        final Path path = Files.createTempDirectory( "jsync-"+ sPrefix +"-" );
+
+        Runtime.getRuntime().addShutdownHook( new Thread( () -> delete( path ) ) );
+
+        return path.toFile();
+    }
+
+    public static void write( File file, String sContents ) throws IOException
+    {
+        file.getParentFile().mkdirs();
+        Files.write( file.toPath(), sContents.getBytes( StandardCharsets.UTF_8 ) );
+    }
+
+    public static String read( File file ) throws IOException
+    {
+        return new String( Files.readAllBytes( file.toPath() ), StandardCharsets.UTF_8 );
+    }
+
+    /**
+     * Creates a task from passed definition (what goes inside the task element
+     * after origin and destination).
+     *
+     * @param fOrigin Origin folder.
+     * @param fDestin Destination folder.
+     * @param sXML More task elements (or "").
+     * @return The task.
+     */
+    public static Task newTask( File fOrigin, File fDestin, String sXML ) throws Exception
+    {
+        File fConfig = new File( newFolder( "config" ), "test.config.xml" );
+
+        write( fConfig, "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"+
+                        "<root><task>"+
+                        "<origin>"+ fOrigin.getAbsolutePath() +"</origin>"+
+                        "<destination>"+ fDestin.getAbsolutePath() +"</destination>"+
+                        sXML +
+                        "</task></root>" );
+
+        return Task.loadTasks( fConfig ).iterator().next();
+    }
+
+    private static void delete( Path path )
+    {
+        try
+        {
+            Files.walkFileTree( path, new SimpleFileVisitor<Path>()
+            {
+                @Override
+                public FileVisitResult visitFile( Path file, BasicFileAttributes attrs ) throws IOException
+                {
+                    Files.delete( file );
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory( Path dir, IOException exc ) throws IOException
+                {
+                    Files.delete( dir );
+                    return FileVisitResult.CONTINUE;
+                }
+            } );
+        }
+        catch( IOException ioe )
+        {
+            // Nothing to do: it is in the temporary folder
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+
+    public interface Test
+    {
+        void run() throws Exception;
+    }
+}
\ No newline at end of file
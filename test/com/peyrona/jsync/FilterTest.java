@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2017 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.jsync;
+
+import java.io.File;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Tests of Filter: how exclude and include rules (globs, regular expressions
+ * and filter files) are compiled and matched against the entries of Origin.
+ *
+ * @author peyrona
+ */
+public final class FilterTest
+{
+    public static void main( String[] args )
+    {
+        Check.run( "unanchored glob matches at any depth", FilterTest::unanchored );
+        Check.run( "anchored glob matches from Origin"   , FilterTest::anchored   );
+        Check.run( "'**/' matches zero or more folders"  , FilterTest::anyFolders );
+        Check.run( "character classes and '[!...]'"      , FilterTest::classes    );
+        Check.run( "escaped and special characters"      , FilterTest::escapes    );
+        Check.run( "trailing '/' is only for folders"    , FilterTest::dirOnly    );
+        Check.run( "'regex:' rules"                      , FilterTest::regex      );
+        Check.run( "invalid 'regex:' rule fails at once" , FilterTest::badRegex   );
+        Check.run( "include overrides exclude"           , FilterTest::include    );
+        Check.run( "rules read from a filter file"       , FilterTest::filterFile );
+        Check.done();
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private static void unanchored() throws Exception
+    {
+        File   fOrigin = Check.newFolder( "origin" );
+        Filter filter  = newFilter( fOrigin, "<exclude>data?.txt</exclude>" );
+
+        Check.isTrue( ! accepts( filter, fOrigin, "data1.txt"    , false ), "data1.txt excluded"     );
+        Check.isTrue( ! accepts( filter, fOrigin, "a/b/data2.txt", false ), "a/b/data2.txt excluded" );
+        Check.isTrue(   accepts( filter, fOrigin, "data12.txt"   , false ), "data12.txt accepted"    );
+        Check.isTrue(   accepts( filter, fOrigin, "data.txt"     , false ), "data.txt accepted"      );
+    }
+
+    private static void anchored() throws Exception
+    {
+        File   fOrigin = Check.newFolder( "origin" );
+        Filter filter  = newFilter( fOrigin, "<exclude>docs/*.md</exclude><exclude>/root?.txt</exclude>" );
+
+        Check.isTrue( ! accepts( filter, fOrigin, "docs/a.md"     , false ), "docs/a.md excluded"         );
+        Check.isTrue(   accepts( filter, fOrigin, "x/docs/a.md"   , false ), "x/docs/a.md accepted"       );
+        Check.isTrue(   accepts( filter, fOrigin, "docs/sub/a.md" , false ), "'*' does not cross folders" );
+        Check.isTrue( ! accepts( filter, fOrigin, "root1.txt"     , false ), "root1.txt excluded"         );
+        Check.isTrue(   accepts( filter, fOrigin, "sub/root1.txt" , false ), "sub/root1.txt accepted"     );
+    }
+
+    private static void anyFolders() throws Exception
+    {
+        File   fOrigin = Check.newFolder( "origin" );
+        Filter filter  = newFilter( fOrigin, "<exclude>**/cache/*.bin</exclude><exclude>logs/**</exclude>" );
+
+        Check.isTrue( ! accepts( filter, fOrigin, "cache/a.bin"      , false ), "cache/a.bin excluded"      );
+        Check.isTrue( ! accepts( filter, fOrigin, "x/y/cache/a.bin"  , false ), "x/y/cache/a.bin excluded"  );
+        Check.isTrue(   accepts( filter, fOrigin, "cache/sub/a.bin"  , false ), "cache/sub/a.bin accepted"  );
+        Check.isTrue( ! accepts( filter, fOrigin, "logs/a/b/c.txt"   , false ), "logs/a/b/c.txt excluded"   );
+        Check.isTrue(   accepts( filter, fOrigin, "x/logs/c.txt"     , false ), "x/logs/c.txt accepted"     );
+    }
+
+    private static void classes() throws Exception
+    {
+        File   fOrigin = Check.newFolder( "origin" );
+        Filter filter  = newFilter( fOrigin, "<exclude>file[!0-9].txt</exclude><exclude>v[ab].txt</exclude>" );
+
+        Check.isTrue( ! accepts( filter, fOrigin, "filea.txt", false ), "filea.txt excluded" );
+        Check.isTrue(   accepts( filter, fOrigin, "file1.txt", false ), "file1.txt accepted" );
+        Check.isTrue( ! accepts( filter, fOrigin, "vb.txt"   , false ), "vb.txt excluded"    );
+        Check.isTrue(   accepts( filter, fOrigin, "vc.txt"   , false ), "vc.txt accepted"    );
+    }
+
+    private static void escapes() throws Exception
+    {
+        File   fOrigin = Check.newFolder( "origin" );
+        Filter filter  = newFilter( fOrigin, "<exclude>a\\*b?</exclude><exclude>note.t?t</exclude><exclude>(x)+?</exclude>" );
+
+        Check.isTrue( ! accepts( filter, fOrigin, "a*b1"    , false ), "a*b1 excluded"          );
+        Check.isTrue(   accepts( filter, fOrigin, "axb1"    , false ), "'\\*' is a literal '*'" );
+        Check.isTrue( ! accepts( filter, fOrigin, "note.txt", false ), "note.txt excluded"      );
+        Check.isTrue(   accepts( filter, fOrigin, "noteatxt", false ), "'.' is a literal '.'"   );
+        Check.isTrue( ! accepts( filter, fOrigin, "(x)+1"   , false ), "(x)+1 excluded"         );
+        Check.isTrue(   accepts( filter, fOrigin, "xx1"     , false ), "'(', ')' and '+' are literals" );
+    }
+
+    private static void dirOnly() throws Exception
+    {
+        File   fOrigin = Check.newFolder( "origin" );
+        Filter filter  = newFilter( fOrigin, "<exclude>out?/</exclude><exclude>tmp?</exclude>" );
+
+        Check.isTrue( ! accepts( filter, fOrigin, "out1"     , true  ), "folder out1 excluded"   );
+        Check.isTrue(   accepts( filter, fOrigin, "a/out2"   , false ), "file out2 accepted"     );
+        Check.isTrue( ! accepts( filter, fOrigin, "tmp1"     , true  ), "folder tmp1 excluded"   );
+        Check.isTrue( ! accepts( filter, fOrigin, "a/tmp2"   , false ), "file tmp2 excluded"     );
+
+        // Deleted entries: there are no attributes, but it is known if they were folders
+        Check.isTrue( ! filter.accept( new File( fOrigin, "out3" ).toPath(), true  ), "deleted folder out3 excluded" );
+        Check.isTrue(   filter.accept( new File( fOrigin, "out3" ).toPath(), false ), "deleted file out3 accepted"   );
+    }
+
+    private static void regex() throws Exception
+    {
+        File   fOrigin = Check.newFolder( "origin" );
+        Filter filter  = newFilter( fOrigin, "<exclude>regex:.*\\.tmp[0-9]+</exclude><exclude>regex:build</exclude>" );
+
+        Check.isTrue( ! accepts( filter, fOrigin, "a/b.tmp12", false ), "a/b.tmp12 excluded"              );
+        Check.isTrue(   accepts( filter, fOrigin, "a/b.tmp"  , false ), "a/b.tmp accepted"                );
+        Check.isTrue( ! accepts( filter, fOrigin, "build"    , true  ), "folder build excluded"           );
+        Check.isTrue(   accepts( filter, fOrigin, "x/build"  , true  ), "regex is matched from Origin"    );
+    }
+
+    private static void badRegex() throws Exception
+    {
+        File fOrigin = Check.newFolder( "origin" );
+
+        try
+        {
+            newFilter( fOrigin, "<exclude>regex:[a-</exclude>" );
+            throw new AssertionError( "invalid regex was accepted" );
+        }
+        catch( PatternSyntaxException pse )
+        {
+            // Expected
+        }
+    }
+
+    private static void include() throws Exception
+    {
+        File   fOrigin = Check.newFolder( "origin" );
+        Filter filter  = newFilter( fOrigin, "<exclude>*.log</exclude><exclude>regex:.*\\.dat</exclude>"+
+                                             "<include>keep.log</include><include>important/*.dat</include>" );
+
+        Check.isTrue( ! accepts( filter, fOrigin, "x.log"          , false ), "x.log excluded"           );
+        Check.isTrue(   accepts( filter, fOrigin, "a/keep.log"     , false ), "a/keep.log included"      );
+        Check.isTrue( ! accepts( filter, fOrigin, "other/a.dat"    , false ), "other/a.dat excluded"     );
+        Check.isTrue(   accepts( filter, fOrigin, "important/a.dat", false ), "important/a.dat included" );
+    }
+
+    private static void filterFile() throws Exception
+    {
+        File fOrigin = Check.newFolder( "origin" );
+
+        Check.write( new File( fOrigin, ".syncignore" ), "# A comment\n"+
+                                                         "\n"+
+                                                         "*.o   \n"+
+                                                         "!main.o\n"+
+                                                         "bin/\n"+
+                                                         "\\#hash\n" );
+
+        Filter filter = newFilter( fOrigin, "<filter_file>.syncignore</filter_file>" );
+
+        Check.isTrue( ! accepts( filter, fOrigin, "src/a.o"   , false ), "src/a.o excluded"       );
+        Check.isTrue(   accepts( filter, fOrigin, "src/main.o", false ), "src/main.o included"    );
+        Check.isTrue( ! accepts( filter, fOrigin, "bin"       , true  ), "folder bin excluded"    );
+        Check.isTrue(   accepts( filter, fOrigin, "x/bin"     , false ), "file bin accepted"      );
+        Check.isTrue( ! accepts( filter, fOrigin, "#hash"     , false ), "escaped '#' is a rule"  );
+        Check.isTrue(   accepts( filter, fOrigin, "# A comment", false ), "comments are not rules" );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private static Filter newFilter( File fOrigin, String sXML ) throws Exception
+    {
+        return new Filter( Check.newTask( fOrigin, Check.newFolder( "destin" ), sXML ) );
+    }
+
+    /**
+     * Creates passed entry (a file or a folder) inside Origin and returns if
+     * the filter accepts it.
+     */
+    private static boolean accepts( Filter filter, File fOrigin, String sRelPath, boolean bFolder ) throws Exception
+    {
+        File file = new File( fOrigin, sRelPath );
+
+        if( bFolder )
+        {
+            file.mkdirs();
+        }
+        else
+        {
+            Check.write( file, "x" );
+        }
+
+        return filter.accept( file );
+    }
+}
\ No newline at end of file
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2017 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.jsync.synchronizer;
+
+import com.peyrona.jsync.Check;
+import com.peyrona.jsync.EntryFilter;
+import com.peyrona.jsync.config.Task;
+import com.peyrona.jsync.metrics.Metrics;
+import com.peyrona.jsync.synchronizer.ChangeQueue.Kind;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import static com.peyrona.jsync.synchronizer.ChangeQueue.Kind.CREATE;
+import static com.peyrona.jsync.synchronizer.ChangeQueue.Kind.DELETE;
+import static com.peyrona.jsync.synchronizer.ChangeQueue.Kind.MODIFY;
+import static com.peyrona.jsync.synchronizer.ChangeQueue.Kind.MOVE;
+import static com.peyrona.jsync.synchronizer.ChangeQueue.Kind.REPLACE;
+import static com.peyrona.jsync.synchronizer.ChangeQueue.Kind.RESCAN;
+
+/**
+ * Tests of ChangeQueue: how changes of the same path are merged and how merged
+ * changes are applied into Destination.
+ *
+ * @author peyrona
+ */
+public final class ChangeQueueTest
+{
+    public static void main( String[] args )
+    {
+        Check.run( "merge: every transition"          , ChangeQueueTest::mergeTransitions  );
+        Check.run( "apply: file replaced by a folder" , ChangeQueueTest::fileBecomesFolder );
+        Check.run( "apply: folder replaced by a file" , ChangeQueueTest::folderBecomesFile );
+        Check.run( "apply: folder not known as folder", ChangeQueueTest::folderNotKnown    );
+        Check.run( "apply: folder deleted and created", ChangeQueueTest::folderRecreated   );
+        Check.done();
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private static void mergeTransitions()
+    {
+        // Rows: change before; columns: change received after (CREATE, MODIFY, DELETE, RESCAN)
+        Object[][] aoExpected = { { CREATE , CREATE , CREATE , null  , CREATE  },
+                                  { MODIFY , MODIFY , MODIFY , DELETE, RESCAN  },
+                                  { DELETE , REPLACE, REPLACE, DELETE, DELETE  },
+                                  { RESCAN , CREATE , RESCAN , DELETE, RESCAN  },
+                                  { MOVE   , MOVE   , MOVE   , DELETE, MOVE    },
+                                  { REPLACE, REPLACE, REPLACE, DELETE, REPLACE } };
+        Kind[] aAfter = { CREATE, MODIFY, DELETE, RESCAN };
+
+        Check.equal( Kind.values().length, aoExpected.length, "every kind has its row" );
+
+        for( Object[] aoRow : aoExpected )
+        {
+            for( int n = 0; n < aAfter.length; n++ )
+            {
+                Check.equal( aoRow[n+1], ChangeQueue.merge( (Kind) aoRow[0], aAfter[n] ), aoRow[0] +" + "+ aAfter[n] );
+            }
+        }
+    }
+
+    private static void fileBecomesFolder() throws Exception
+    {
+        Fixture fixture = new Fixture();
+        File    fOrig   = new File( fixture.fOrigin, "entry" );
+        File    fDest   = new File( fixture.fDestin, "entry" );
+
+        Check.write( fOrig, "a file" );
+        fixture.syncAll();
+        Check.isTrue( fDest.isFile(), "file copied by initial synchronization" );
+
+        Files.delete( fOrig.toPath() );
+        fixture.queue.deleted( fOrig.toPath() );
+        Check.write( new File( fOrig, "inside" ), "now a folder" );
+        fixture.queue.created( fOrig.toPath(), attributes( fOrig ) );
+
+        Check.await( () -> new File( fDest, "inside" ).isFile(), "Destination file replaced by the folder" );
+    }
+
+    private static void folderBecomesFile() throws Exception
+    {
+        Fixture fixture = new Fixture();
+        File    fOrig   = new File( fixture.fOrigin, "entry" );
+        File    fDest   = new File( fixture.fDestin, "entry" );
+
+        Check.write( new File( fOrig, "inside" ), "a folder" );
+        fixture.syncAll();
+        Check.isTrue( new File( fDest, "inside" ).isFile(), "folder copied by initial synchronization" );
+
+        Files.delete( new File( fOrig, "inside" ).toPath() );
+        Files.delete( fOrig.toPath() );
+        fixture.queue.deleted( fOrig.toPath() );
+        Check.write( fOrig, "now a file" );
+        fixture.queue.created( fOrig.toPath(), attributes( fOrig ) );
+
+        Check.await( () -> fDest.isFile(), "Destination folder replaced by the file" );
+        Check.equal( "now a file", Check.read( fDest ), "contents" );
+    }
+
+    private static void folderNotKnown() throws Exception
+    {
+        Fixture fixture = new Fixture();
+        File    fOrig   = new File( fixture.fOrigin, "dir" );
+
+        fixture.syncAll();
+
+        // Its attributes could not be read when it was created: it is decided when applied
+        Check.write( new File( fOrig, "file" ), "inside" );
+        fixture.queue.created( fOrig.toPath(), null );
+
+        Check.await( () -> new File( fixture.fDestin, "dir/file" ).isFile(), "folder synchronized (not by a copy job)" );
+    }
+
+    private static void folderRecreated() throws Exception
+    {
+        Fixture fixture = new Fixture();
+        File    fOrig   = new File( fixture.fOrigin, "dir" );
+        File    fDest   = new File( fixture.fDestin, "dir" );
+
+        Check.write( new File( fOrig, "old" ), "old" );
+        fixture.syncAll();
+        Check.isTrue( new File( fDest, "old" ).isFile(), "folder copied by initial synchronization" );
+
+        // rm -rf dir; mkdir dir; echo new > dir/new (all inside the quiet period)
+        Files.delete( new File( fOrig, "old" ).toPath() );
+        fixture.queue.deleted( new File( fOrig, "old" ).toPath() );
+        Files.delete( fOrig.toPath() );
+        fixture.queue.deleted( fOrig.toPath() );
+        Check.write( new File( fOrig, "new" ), "new" );
+        fixture.queue.created( fOrig.toPath(), attributes( fOrig ) );
+        fixture.queue.created( new File( fOrig, "new" ).toPath(), attributes( new File( fOrig, "new" ) ) );
+
+        Check.await( () -> new File( fDest, "new" ).isFile() && (! new File( fDest, "old" ).exists()),
+                     "old contents deleted and new ones copied" );
+    }
+
+    private static BasicFileAttributes attributes( File file ) throws IOException
+    {
+        return Files.readAttributes( file.toPath(), BasicFileAttributes.class );
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+
+    /**
+     * An Origin and a Destination with their FullSync and ChangeQueue (no
+     * Watcher: tests pass the changes to the queue).
+     */
+    static final class Fixture
+    {
+        final File        fOrigin;
+        final File        fDestin;
+        final FullSync    fullSync;
+        final ChangeQueue queue;
+
+        Fixture() throws Exception
+        {
+            fOrigin = Check.newFolder( "origin" );
+            fDestin = Check.newFolder( "destin" );
+
+            Task      task     = Check.newTask( fOrigin, fDestin, "<quiet_period>50</quiet_period>" );
+            SyncIndex index    = new SyncIndex( new File( Check.newFolder( "state" ), "test.index" ), "test", false );
+            Stage     stgComp  = new Stage( "Compare", 2, 16, null );
+            Stage     stgCopy  = new Stage( "Copy"   , 2, 16, null );
+
+            fullSync = new FullSync( task, new AcceptAll(), index, null, null, null, null, null, stgComp, stgCopy );
+            queue    = new ChangeQueue( fullSync, stgCopy, task.getQuietPeriod(), Metrics.get( task.getName() ) );
+        }
+
+        /**
+         * Runs the initial synchronization and starts the queue.
+         */
+        void syncAll()
+        {
+            fullSync.sync();
+            queue.start();
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+
+    static final class AcceptAll implements EntryFilter
+    {
+        @Override public boolean accept( File file )                               { return true;  }
+        @Override public boolean accept( Path path, BasicFileAttributes attrs )    { return true;  }
+        @Override public boolean accept( Path path, boolean bFolder )              { return true;  }
+        @Override public String  getSignature()                                    { return "all"; }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2017 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.jsync.synchronizer;
+
+import com.peyrona.jsync.Check;
+import java.io.File;
+
+/**
+ * Tests of DestinCache: cached listings are forgotten (with their sub-folders)
+ * when folders are deleted or moved.
+ *
+ * @author peyrona
+ */
+public final class DestinCacheTest
+{
+    public static void main( String[] args )
+    {
+        Check.run( "deleted folder forgets its sub-folders only", DestinCacheTest::forgetSubFolders );
+        Check.run( "moved folder is listed at its new place"    , DestinCacheTest::moveFolder       );
+        Check.done();
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private static void forgetSubFolders() throws Exception
+    {
+        File        fDestin = Check.newFolder( "destin" );
+        DestinCache cache   = new DestinCache( fDestin, -1 );      // Cached forever: only changes notified by the application are seen
+
+        // "a b" and "a0" sort right before and after "a/" (the range of the sub-folders of "a")
+        for( String sFile : new String[] { "a/x/f", "a b/f", "a0/f" } )
+        {
+            Check.write( new File( fDestin, sFile ), sFile );
+        }
+
+        for( String sFolder : new String[] { "", "a", "a/x", "a b", "a0" } )
+        {
+            Check.equal( (sFolder.isEmpty() ? 3 : 1), cache.list( sFolder ).size(), "'"+ sFolder +"' listed" );
+        }
+
+        for( String sFile : new String[] { "a/x/f2", "a b/f2", "a0/f2" } )     // Not known by the cache
+        {
+            Check.write( new File( fDestin, sFile ), sFile );
+        }
+
+        cache.deleted( "a" );
+
+        Check.equal( 2, cache.list( "a/x" ).size(), "sub-folder of deleted folder listed again" );
+        Check.equal( 1, cache.list( "a b" ).size(), "'a b' still cached" );
+        Check.equal( 1, cache.list( "a0"  ).size(), "'a0' still cached" );
+        Check.isTrue( cache.get( "a" ) == null, "deleted folder is not in its parent" );
+    }
+
+    private static void moveFolder() throws Exception
+    {
+        File        fDestin = Check.newFolder( "destin" );
+        DestinCache cache   = new DestinCache( fDestin, -1 );
+
+        Check.write( new File( fDestin, "from/sub/f" ), "f" );
+        Check.equal( 1, cache.list( "from/sub" ).size(), "listed" );
+
+        new File( fDestin, "to" ).mkdir();
+        Check.isTrue( new File( fDestin, "from/sub" ).renameTo( new File( fDestin, "to/sub" ) ), "moved" );
+        cache.moved( "from/sub", "to/sub" );
+
+        Check.equal( 0, cache.list( "from/sub" ).size(), "old place forgotten" );
+        Check.equal( 1, cache.list( "to/sub"   ).size(), "new place listed" );
+    }
+}
\ No newline at end of file
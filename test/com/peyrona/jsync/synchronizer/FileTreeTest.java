@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2017 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.jsync.synchronizer;
+
+import com.peyrona.jsync.Check;
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Tests of FileTree (heap and off-heap) and of SyncIndex, which keeps its
+ * entries in a FileTree and saves them into a file.
+ *
+ * @author peyrona
+ */
+public final class FileTreeTest
+{
+    private static final char   cSEP    = File.separatorChar;
+    private static final String sKEY    = "(dev=803,ino=123456)";     // As Linux file keys
+    private static final String sKEYSTR = "volume-7:file-42";         // A format FileTree does not know
+
+    public static void main( String[] args )
+    {
+        for( boolean bOffHeap : new boolean[] { false, true } )
+        {
+            String sHeap = (bOffHeap ? " (off-heap)" : " (heap)");
+
+            Check.run( "insert"+ sHeap              , () -> insert( bOffHeap )    );
+            Check.run( "remove"+ sHeap              , () -> remove( bOffHeap )    );
+            Check.run( "move"+ sHeap                , () -> move( bOffHeap )      );
+            Check.run( "grow and reuse nodes"+ sHeap, () -> grow( bOffHeap )      );
+            Check.run( "index save and load"+ sHeap , () -> roundTrip( bOffHeap ) );
+        }
+
+        Check.done();
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private static void insert( boolean bOffHeap )
+    {
+        FileTree tree  = new FileTree( bOffHeap );
+        int      nFile = tree.find( path( "a", "b", "file.txt" ), true );
+
+        tree.setData( nFile, false, 100, 5000, sKEY );
+
+        Check.equal( 4, tree.size(), "root, 2 placeholders and the file" );
+        Check.equal( path( "a", "b", "file.txt" ), tree.getPath( nFile ), "path" );
+        Check.equal( "file.txt", tree.getName( nFile ), "name" );
+        Check.equal( nFile, tree.find( path( "a", "b", "file.txt" ), false ), "found again" );
+        Check.equal( FileTree.nNONE, tree.find( path( "a", "x" ), false ), "not created when not asked to" );
+        Check.isTrue( ! tree.hasData( tree.find( "a", false ) ), "parents are placeholders" );
+
+        Check.isTrue( tree.hasData( nFile ), "has data" );
+        Check.isTrue( ! tree.isFolder( nFile ), "is a file" );
+        Check.equal( 100L , tree.getSize( nFile )    , "size" );
+        Check.equal( 5000L, tree.getModified( nFile ), "modified" );
+        Check.equal( sKEY , tree.getFileKey( nFile ) , "file key" );
+
+        int nOther = tree.child( tree.find( path( "a", "b" ), false ), "other", true );
+
+        tree.setData( nOther, true, 0, 7000, sKEYSTR );
+
+        Check.equal( sKEYSTR, tree.getFileKey( nOther ), "file key of unknown format" );
+        Check.isTrue( tree.isFolder( nOther ), "is a folder" );
+        Check.equal( new HashSet<>( Arrays.asList( "file.txt", "other" ) ), childs( tree, path( "a", "b" ) ), "children" );
+    }
+
+    private static void remove( boolean bOffHeap )
+    {
+        FileTree tree = new FileTree( bOffHeap );
+
+        tree.setData( tree.find( path( "a", "b", "c" ), true ), false, 1, 1, "" );
+        tree.setData( tree.find( path( "a", "d" ), true ), false, 2, 2, "" );
+
+        tree.remove( tree.find( path( "a", "b" ), false ) );
+
+        Check.equal( FileTree.nNONE, tree.find( path( "a", "b", "c" ), false ), "removed with its folder" );
+        Check.equal( new HashSet<>( Arrays.asList( "d" ) ), childs( tree, "a" ), "sibling is kept" );
+
+        tree.remove( tree.find( path( "a", "d" ), false ) );
+
+        Check.equal( FileTree.nNONE, tree.find( "a", false ), "empty placeholder is removed" );
+        Check.equal( 1, tree.size(), "only the root is left" );
+
+        tree.setData( tree.find( path( "x", "y" ), true ), false, 3, 3, "" );
+        tree.remove( FileTree.nROOT );
+
+        Check.equal( 1, tree.size(), "removing the root removes its subtree" );
+    }
+
+    private static void move( boolean bOffHeap )
+    {
+        FileTree tree = new FileTree( bOffHeap );
+
+        tree.setData( tree.find( path( "a", "b" ), true ), true, 0, 1, "" );
+        tree.setData( tree.find( path( "a", "b", "c" ), true ), false, 10, 2, sKEY );
+
+        Check.isTrue( tree.move( tree.find( path( "a", "b" ), false ), path( "z", "moved" ) ), "moved" );
+
+        int nMoved = tree.find( path( "z", "moved", "c" ), false );
+
+        Check.isTrue( nMoved != FileTree.nNONE, "contents moved with the folder" );
+        Check.equal( sKEY, tree.getFileKey( nMoved ), "data moved with the node" );
+        Check.equal( FileTree.nNONE, tree.find( path( "a", "b" ), false ), "not at old place" );
+        Check.isTrue( ! tree.move( tree.find( "z", false ), path( "z", "moved", "inside" ) ), "can not be moved inside itself" );
+    }
+
+    private static void grow( boolean bOffHeap )
+    {
+        FileTree tree = new FileTree( bOffHeap );
+
+        // Columns start with room for 1024 nodes and the hash tables for 2048 slots
+
+        for( int nFolder = 0; nFolder < 50; nFolder++ )
+        {
+            for( int nFile = 0; nFile < 200; nFile++ )
+            {
+                tree.setData( tree.find( path( "folder-"+ nFolder, "file-"+ nFile ), true ), false, nFile, nFolder, "" );
+            }
+        }
+
+        Check.equal( 1 + 50 + 50*200, tree.size(), "nodes" );
+        checkGrown( tree, 0 );
+
+        for( int nFolder = 0; nFolder < 50; nFolder += 2 )       // Their nodes and names are reused below
+        {
+            tree.remove( tree.find( "folder-"+ nFolder, false ) );
+        }
+
+        for( int nFolder = 0; nFolder < 50; nFolder += 2 )
+        {
+            for( int nFile = 0; nFile < 200; nFile++ )
+            {
+                tree.setData( tree.find( path( "folder-"+ nFolder, "file-"+ nFile ), true ), false, nFile, nFolder + 1000, "" );
+            }
+        }
+
+        Check.equal( 1 + 50 + 50*200, tree.size(), "nodes after reusing them" );
+        checkGrown( tree, 1000 );
+    }
+
+    private static void roundTrip( boolean bOffHeap ) throws Exception
+    {
+        File      fIndex = new File( Check.newFolder( "index" ), "test.index" );
+        SyncIndex index  = new SyncIndex( fIndex, "signature", bOffHeap );
+
+        index.put( "", new SyncIndex.Entry( true, 0, 1, "" ) );
+        index.put( "a", new SyncIndex.Entry( true, 0, 2, sKEYSTR ) );
+        index.put( path( "a", "file" ), new SyncIndex.Entry( false, 42, 3, sKEY ) );
+        index.put( path( "p", "q", "deep" ), new SyncIndex.Entry( false, 7, 4, "" ) );    // Under placeholders
+
+        Check.isTrue( index.save(), "saved" );
+
+        SyncIndex loaded = new SyncIndex( fIndex, "signature", bOffHeap );
+
+        Check.isTrue( loaded.load(), "loaded" );
+
+        for( String sPath : new String[] { "", "a", path( "a", "file" ), path( "p", "q", "deep" ) } )
+        {
+            SyncIndex.Entry saved = index.get( sPath );
+            SyncIndex.Entry read  = loaded.get( sPath );
+
+            Check.isTrue( read != null, "'"+ sPath +"' was loaded" );
+            Check.equal( saved.bFolder  , read.bFolder  , sPath +" folder"   );
+            Check.equal( saved.nSize    , read.nSize    , sPath +" size"     );
+            Check.equal( saved.nModified, read.nModified, sPath +" modified" );
+            Check.equal( saved.sFileKey , read.sFileKey , sPath +" file key" );
+        }
+
+        Check.equal( null, loaded.get( "p" ), "placeholders have no data" );
+        Check.equal( index.getChilds( "" ), loaded.getChilds( "" ), "children of root" );
+        Check.isTrue( ! new SyncIndex( fIndex, "other signature", bOffHeap ).load(), "index of another task is ignored" );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private static void checkGrown( FileTree tree, int nModifiedBase )
+    {
+        for( int nFolder = 0; nFolder < 50; nFolder++ )
+        {
+            int nBase = ((nFolder % 2 == 0) ? nModifiedBase : 0);
+
+            Check.equal( 200, childs( tree, "folder-"+ nFolder ).size(), "files in folder-"+ nFolder );
+
+            for( int nFile = 0; nFile < 200; nFile += 37 )
+            {
+                String sPath = path( "folder-"+ nFolder, "file-"+ nFile );
+                int    nNode = tree.find( sPath, false );
+
+                Check.equal( sPath, tree.getPath( nNode ), "path" );
+                Check.equal( (long) nFile, tree.getSize( nNode ), sPath +" size" );
+                Check.equal( (long) (nFolder + nBase), tree.getModified( nNode ), sPath +" modified" );
+            }
+        }
+    }
+
+    private static HashSet<String> childs( FileTree tree, String sFolder )
+    {
+        HashSet<String> setNames = new HashSet<>();
+
+        for( int nChild = tree.getFirstChild( tree.find( sFolder, false ) ); nChild != FileTree.nNONE; nChild = tree.getNextSibling( nChild ) )
+        {
+            setNames.add( tree.getName( nChild ) );
+        }
+
+        return setNames;
+    }
+
+    private static String path( String... asNames )
+    {
+        return String.join( String.valueOf( cSEP ), asNames );
+    }
+}
\ No newline at end of file
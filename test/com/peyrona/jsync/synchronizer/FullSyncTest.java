@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2017 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.jsync.synchronizer;
+
+import com.peyrona.jsync.Check;
+import com.peyrona.jsync.Copier;
+import java.io.File;
+
+/**
+ * Tests of FullSync: how a listed Origin folder is reconciled with its
+ * Destination equivalent.
+ *
+ * @author peyrona
+ */
+public final class FullSyncTest
+{
+    public static void main( String[] args )
+    {
+        Check.run( "rescan: temporary files of copies are kept", FullSyncTest::temporaryKept );
+        Check.done();
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private static void temporaryKept() throws Exception
+    {
+        ChangeQueueTest.Fixture fixture = new ChangeQueueTest.Fixture();
+        File                    fOrig   = new File( fixture.fOrigin, "dir" );
+        File                    fDest   = new File( fixture.fDestin, "dir" );
+
+        Check.write( new File( fOrig, "a" ), "a" );
+        fixture.syncAll();
+        Check.isTrue( new File( fDest, "a" ).isFile(), "folder copied by initial synchronization" );
+
+        // A copy into Destination is in progress while the folder changes and is rescanned
+        File fTemp = Copier.getTemporary( new File( fDest, "b" ) );
+
+        Check.write( fTemp, "half of b" );
+        Check.write( new File( fDest, "stray" ), "not in Origin" );
+        Check.write( new File( fOrig, "c" ), "c" );
+        Check.isTrue( fOrig.setLastModified( fOrig.lastModified() + 2000 ), "folder modified time changed" );
+
+        fixture.fullSync.rescan( fOrig.toPath() );
+
+        Check.isTrue( new File( fDest, "c" ).isFile(), "new file copied" );
+        Check.isTrue( ! new File( fDest, "stray" ).exists(), "entry only in Destination deleted" );
+        Check.isTrue( fTemp.isFile(), "temporary file of the copy in progress kept" );
+    }
+}
\ No newline at end of file
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2017 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.jsync.synchronizer;
+
+import com.peyrona.jsync.Check;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+
+/**
+ * Tests of Journal recovery: what a new Journal (as after the application
+ * died) applies to the index and which operations it reports as not ended.
+ *
+ * @author peyrona
+ */
+public final class JournalTest
+{
+    public static void main( String[] args )
+    {
+        Check.run( "recover: ended are replayed, begun are returned", JournalTest::recover    );
+        Check.run( "recover: after a checkpoint"                     , JournalTest::checkpoint );
+        Check.run( "recover: last record partially written"          , JournalTest::tornRecord );
+        Check.done();
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private static void recover() throws Exception
+    {
+        File                fJournal = newJournalFile();
+        BasicFileAttributes attrs    = newFileAttributes();
+        Journal             journal  = new Journal( fJournal, "signature", null );
+
+        journal.recover( newIndex() );
+
+        journal.end( journal.begin( Journal.cCOPY  , "copied" , null ), true , attrs );
+        journal.end( journal.begin( Journal.cCOPY  , "failed" , null ), false, null  );
+        journal.end( journal.begin( Journal.cDELETE, "deleted", null ), true , null  );
+        journal.end( journal.begin( Journal.cMOVE  , "to"     , "from" ), true , null  );
+        journal.begin( Journal.cCOPY, "open", null );           // Waits until all previous records are in disk
+
+        SyncIndex index = newIndex();
+
+        index.put( "deleted", new SyncIndex.Entry( false, 1, 1, "" ) );
+        index.put( "from"   , new SyncIndex.Entry( false, 2, 2, "" ) );
+
+        List<Journal.Op> lstOpen = new Journal( fJournal, "signature", null ).recover( index );
+
+        Check.equal( 1, lstOpen.size(), "operations not ended" );
+        Check.equal( "open", lstOpen.get( 0 ).sPath, "operation not ended" );
+        Check.equal( Journal.cCOPY, lstOpen.get( 0 ).cOp, "operation not ended" );
+
+        Check.isTrue( index.get( "copied" ) != null, "copy replayed" );
+        Check.isTrue( index.get( "copied" ).isSameAs( attrs ), "copy replayed with file attributes" );
+        Check.equal( null, index.get( "failed" ) , "failed copy not replayed" );
+        Check.equal( null, index.get( "deleted" ), "delete replayed" );
+        Check.equal( null, index.get( "from" )   , "move replayed (old path)" );
+        Check.equal( 2L  , index.get( "to" ).nSize, "move replayed (new path)" );
+    }
+
+    private static void checkpoint() throws Exception
+    {
+        File    fJournal = newJournalFile();
+        Journal journal  = new Journal( fJournal, "signature", null );
+
+        journal.recover( newIndex() );
+        journal.end( journal.begin( Journal.cCOPY, "before", null ), true, newFileAttributes() );
+
+        long nOpen = journal.begin( Journal.cDELETE, "open", null );
+
+        journal.checkpoint( journal.mark() );      // As if the index had been saved
+        journal.end( journal.begin( Journal.cCOPY, "after", null ), true, newFileAttributes() );
+        journal.begin( Journal.cCOPY, "last", null );
+
+        SyncIndex        index   = newIndex();
+        List<Journal.Op> lstOpen = new Journal( fJournal, "signature", null ).recover( index );
+
+        Check.equal( null, index.get( "before" ), "ended before the checkpoint: it is in the saved index" );
+        Check.isTrue( index.get( "after" ) != null, "ended after the checkpoint: replayed" );
+        Check.equal( 2, lstOpen.size(), "operations not ended" );
+        Check.isTrue( lstOpen.stream().anyMatch( (op) -> op.nOp == nOpen ), "begun before the checkpoint is kept" );
+    }
+
+    private static void tornRecord() throws Exception
+    {
+        File    fJournal = newJournalFile();
+        Journal journal  = new Journal( fJournal, "signature", null );
+
+        journal.recover( newIndex() );
+        journal.end( journal.begin( Journal.cCOPY, "copied", null ), true, newFileAttributes() );
+        journal.begin( Journal.cCOPY, "open", null );
+
+        try( RandomAccessFile raf = new RandomAccessFile( fJournal, "rw" ) )
+        {
+            raf.setLength( raf.length() - 3 );        // Last record ('open' begin) was not completely written
+        }
+
+        SyncIndex        index   = newIndex();
+        List<Journal.Op> lstOpen = new Journal( fJournal, "signature", null ).recover( index );
+
+        Check.isTrue( index.get( "copied" ) != null, "complete records are replayed" );
+        Check.isTrue( lstOpen.isEmpty(), "incomplete record is discarded" );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private static File newJournalFile() throws Exception
+    {
+        return new File( Check.newFolder( "journal" ), "test.journal" );
+    }
+
+    private static SyncIndex newIndex() throws Exception
+    {
+        return new SyncIndex( new File( Check.newFolder( "journal" ), "test.index" ), "signature", false );
+    }
+
+    private static BasicFileAttributes newFileAttributes() throws Exception
+    {
+        File file = new File( Check.newFolder( "journal" ), "file" );
+
+        Check.write( file, "contents" );
+
+        return Files.readAttributes( file.toPath(), BasicFileAttributes.class );
+    }
+}
\ No newline at end of file
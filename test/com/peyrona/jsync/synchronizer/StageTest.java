@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2017 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.jsync.synchronizer;
+
+import com.peyrona.jsync.Check;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests of Stage: what ::await() waits for and the job number it returns.
+ *
+ * @author peyrona
+ */
+public final class StageTest
+{
+    public static void main( String[] args )
+    {
+        Check.run( "await: returns the last finished job", StageTest::lastFinishedJob );
+        Check.run( "await: not from a job of the stage"  , StageTest::awaitFromJob    );
+        Check.done();
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private static void lastFinishedJob() throws Exception
+    {
+        Stage          stage = new Stage( "Test", 2, 16, null );
+        CountDownLatch latch = new CountDownLatch( 1 );
+
+        stage.submit( () -> {} );
+        stage.submit( () -> {} );
+
+        long nBefore = stage.getLastJob();
+
+        Check.equal( 2L, nBefore, "last job" );
+        Check.isTrue( stage.await() >= nBefore, "jobs submitted before are finished" );
+
+        stage.submit( () -> awaitLatch( latch ) );     // Job 3 does not finish until the latch is released
+
+        AtomicLong nAwaited = new AtomicLong( -1 );
+        Thread     thread   = new Thread( () -> nAwaited.set( stage.await() ) );
+
+        thread.start();
+        thread.join( 200 );
+        Check.equal( -1L, nAwaited.get(), "waits for job 3" );
+
+        latch.countDown();
+        thread.join();
+        Check.equal( 3L, nAwaited.get(), "job 3 is finished" );
+    }
+
+    private static void awaitFromJob() throws Exception
+    {
+        Stage                      stage = new Stage( "Test", 1, 16, null );
+        AtomicReference<Throwable> error = new AtomicReference<>();
+
+        stage.submit( () ->
+                      {
+                          try
+                          {
+                              stage.await();
+                          }
+                          catch( Throwable th )
+                          {
+                              error.set( th );
+                          }
+                      } );
+
+        stage.await();
+
+        Check.isTrue( error.get() instanceof IllegalStateException, "a job can not wait for its own stage" );
+    }
+
+    private static void awaitLatch( CountDownLatch latch )
+    {
+        try
+        {
+            latch.await();
+        }
+        catch( InterruptedException ie )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
\ No newline at end of file